@@ -0,0 +1,206 @@
+package com.offerready.xslt;
+
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.servlet.AsyncContext;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends a document to an HTTP client using Servlet 3.1 non-blocking IO, so that no container thread is held
+ * while the document is generated, or while a slow client downloads it.
+ *    <p>
+ * Usage from a servlet:
+ * <pre>
+ *   val destination = new AsyncHttpResponseDocumentGenerationDestination(request.startAsync());
+ *   generator.transformAsync(destination, () -&gt; xml, true, null, language, executor);
+ * </pre>
+ * {@link DocumentGenerator#transformAsync} ends the response once the document has been generated, or aborts it
+ * if the document could not be generated. Otherwise, closing the output stream ends the response.
+ *    <p>
+ * The document is written, on the thread generating it, in chunks to a queue.
+ * The chunks are written to the client whenever the container reports that the client can accept more data.
+ * If the queue is full, the thread generating the document waits, so a slow client does not cause the whole
+ * document to be held in memory.
+ */
+public class AsyncHttpResponseDocumentGenerationDestination implements DocumentGenerationDestination {
+
+    protected static final byte[] endOfDocument = new byte[0];
+
+    protected final @Nonnull AsyncContext asyncContext;
+    protected final @Nonnull HttpServletResponse response;
+    protected final int chunkSizeBytes;
+    protected final @Nonnull BlockingQueue<byte[]> chunks;
+    protected @CheckForNull ChunkOutputStream outputStream = null; // Java silently ignores setting headers after content started, we make it non-silent
+    protected volatile @CheckForNull Throwable clientError = null;
+    protected boolean completed = false; // guarded by "this"
+
+    /**
+     * If false, closing the output stream does not end the response, {@link #end()} or {@link #abort(Throwable)} does.
+     * The stream is also closed if the document could not be generated, so a client which has already received
+     * the rest of the document would otherwise receive an apparently complete response.
+     * Set by {@link DocumentGenerator#transformAsync}, which ends or aborts the response once the document is generated.
+     */
+    protected volatile @Setter boolean endOnClose = true;
+
+    /** Completes when the document has been sent, or completes exceptionally if it could not be */
+    protected final @Nonnull CompletableFuture<Void> delivered = new CompletableFuture<>();
+
+    /**
+     * @param asyncContext from {@link javax.servlet.ServletRequest#startAsync()}
+     * @param maxQueuedChunks the thread generating the document waits, if this many chunks have not yet been sent
+     */
+    public AsyncHttpResponseDocumentGenerationDestination(@Nonnull AsyncContext asyncContext, int chunkSizeBytes, int maxQueuedChunks) {
+        this.asyncContext = asyncContext;
+        this.response = (HttpServletResponse) asyncContext.getResponse();
+        this.chunkSizeBytes = chunkSizeBytes;
+        this.chunks = new ArrayBlockingQueue<>(maxQueuedChunks);
+    }
+
+    /** @param asyncContext from {@link javax.servlet.ServletRequest#startAsync()} */
+    public AsyncHttpResponseDocumentGenerationDestination(@Nonnull AsyncContext asyncContext) {
+        this(asyncContext, 16 * 1024, 16);
+    }
+
+    @Override public void setContentType(@Nonnull String contentType) {
+        if (outputStream != null) throw new IllegalStateException("Cannot set headers after content started");
+        response.setContentType(contentType);
+    }
+
+    @Override public void setContentDispositionToDownload(@CheckForNull String filename) {
+        if (outputStream != null) throw new IllegalStateException("Cannot set headers after content started");
+        if (filename == null) {
+            response.setHeader("content-disposition", "attachment");
+        } else {
+            if ( ! filename.matches("[\\w\\.\\-]+")) throw new RuntimeException("Filename '" + filename + "' invalid");
+            response.setHeader("content-disposition", "attachment; filename=\"" + filename + "\"");
+        }
+    }
+
+    /** @return completes when the document has been sent, or completes exceptionally if it could not be */
+    public @Nonnull CompletableFuture<Void> getDelivered() {
+        return delivered;
+    }
+
+    /** Writes queued chunks while the client can accept them; called by the generating thread and by the container */
+    protected synchronized void drain() throws IOException {
+        if (completed) return;
+        val out = response.getOutputStream();
+        while (out.isReady()) { // if false, the container calls onWritePossible when the client can accept more
+            val chunk = chunks.poll();
+            if (chunk == null) return; // the generating thread calls drain when it has queued the next chunk
+            if (chunk == endOfDocument) {
+                completed = true;
+                asyncContext.complete();
+                delivered.complete(null);
+                return;
+            }
+            out.write(chunk);
+        }
+    }
+
+    protected void enqueue(@Nonnull byte[] chunk) throws IOException {
+        try {
+            while ( ! chunks.offer(chunk, 1, TimeUnit.SECONDS))
+                if (clientError != null) break;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for HTTP client");
+        }
+        if (clientError != null) throw new IOException("HTTP client did not accept document", clientError);
+        drain();
+    }
+
+    protected class ChunkOutputStream extends OutputStream {
+        protected byte[] buffer = new byte[chunkSizeBytes];
+        protected int length = 0;
+        protected boolean closed = false;
+
+        protected void enqueueBuffer() throws IOException {
+            if (length == 0) return;
+            val chunk = new byte[length];
+            System.arraycopy(buffer, 0, chunk, 0, length);
+            length = 0;
+            enqueue(chunk);
+        }
+
+        @Override public void write(int b) throws IOException {
+            if (length == buffer.length) enqueueBuffer();
+            buffer[length++] = (byte) b;
+        }
+
+        @Override public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == buffer.length) enqueueBuffer();
+                val n = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, n);
+                length += n; off += n; len -= n;
+            }
+        }
+
+        @Override public void flush() throws IOException {
+            enqueueBuffer();
+        }
+
+        @Override public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            enqueueBuffer();
+            if (endOnClose) enqueue(endOfDocument);
+        }
+    }
+
+    @SneakyThrows(IOException.class)
+    @Override public @Nonnull OutputStream getOutputStream() {
+        if (outputStream == null) {
+            outputStream = new ChunkOutputStream();
+            response.getOutputStream().setWriteListener(new WriteListener() {
+                @Override public void onWritePossible() throws IOException { drain(); }
+                @Override public void onError(Throwable t) { abort(t); }
+            });
+        }
+        return outputStream;
+    }
+
+    /** Ends the response, once the chunks already queued have been sent, after the document has been generated */
+    protected void end() throws IOException {
+        getOutputStream().close();
+        enqueue(endOfDocument);
+    }
+
+    /**
+     * Ends the response after the document could not be generated or sent.
+     * If no content has been sent yet, the client receives an error status; otherwise the response is truncated.
+     */
+    public void abort(@Nonnull Throwable e) {
+        synchronized (this) {
+            if (completed) return;
+            completed = true;
+        }
+        clientError = e;
+        chunks.clear(); // the generating thread might be waiting for space
+        Logger.getLogger(getClass()).warn("Document could not be sent to HTTP client", e);
+        try {
+            if ( ! response.isCommitted()) response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        catch (IOException | IllegalStateException ignored) { } // client has gone away
+        finally {
+            asyncContext.complete();
+            delivered.completeExceptionally(e);
+        }
+    }
+}
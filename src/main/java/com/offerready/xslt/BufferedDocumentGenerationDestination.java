@@ -1,20 +1,56 @@
 package com.offerready.xslt;
 
+import com.offerready.xslt.SegmentedByteArrayOutputStream.ChunkPool;
 import lombok.Getter;
+import lombok.SneakyThrows;
+import lombok.val;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 
+/**
+ * Holds the document in memory.
+ * The body is held in chunks from a {@link ChunkPool}, see {@link SegmentedByteArrayOutputStream}.
+ */
 public class BufferedDocumentGenerationDestination implements DocumentGenerationDestination {
 
+    protected final @Nonnull ChunkPool chunkPool;
     protected @Getter String contentType;
     protected @Getter @CheckForNull String filenameOrNull = null;
-    protected @Getter ByteArrayOutputStream body = null;
+    protected @CheckForNull SegmentedByteArrayOutputStream body = null;
+
+    public BufferedDocumentGenerationDestination(@Nonnull ChunkPool chunkPool) { this.chunkPool = chunkPool; }
+    public BufferedDocumentGenerationDestination() { this(ChunkPool.defaultPool); }
 
     @Override public void setContentType(@Nonnull String contentType) { this.contentType = contentType; }
     @Override public void setContentDispositionToDownload(@CheckForNull String filename) { this.filenameOrNull = filename; }
-    @Override public @Nonnull OutputStream getOutputStream() { return body = new ByteArrayOutputStream(); }
-    
+    @Override public @Nonnull OutputStream getOutputStream() { return body = new SegmentedByteArrayOutputStream(chunkPool); }
+
+    /** @return the body, without copying it, or null if nothing has been written */
+    public @CheckForNull SegmentedByteArrayOutputStream getSegmentedBody() {
+        return body;
+    }
+
+    /**
+     * @return a copy of the body, or null if nothing has been written. Each call copies the whole body,
+     *         so callers which read it often, or which only write it somewhere, should use {@link #getSegmentedBody()}.
+     *    <p>
+     * The body is empty once it has been released, see {@link #releaseBody()}.
+     */
+    @SneakyThrows(IOException.class)
+    public @CheckForNull ByteArrayOutputStream getBody() {
+        val segmented = getSegmentedBody();
+        if (segmented == null) return null;
+        val result = new ByteArrayOutputStream(segmented.size());
+        segmented.writeTo(result);
+        return result;
+    }
+
+    /** Returns the memory used by the body to the pool; the body is empty afterwards */
+    public void releaseBody() {
+        if (body != null) body.release();
+    }
 }
@@ -2,20 +2,41 @@ package com.offerready.xslt;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.offerready.xslt.SegmentedByteArrayOutputStream.ChunkPool;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.SneakyThrows;
-import org.apache.commons.io.IOUtils;
+import lombok.val;
 
+/**
+ * Holds the document in memory, and sends it, with its status code, or a redirect, to a response.
+ *    <p>
+ * If an {@link HttpCompressionPolicy} is set, and {@link #deliver(HttpServletRequest, HttpServletResponse)} is used,
+ * the document is compressed if the client accepts it and the policy allows it.
+ * The compressed form is created once per encoding and kept with the document, so the document can be delivered
+ * to many clients without compressing it again.
+ *    <p>
+ * The body is kept after delivery, until {@link #releaseBody()} is called, unless {@link #setReleaseAfterDelivery(boolean)} is set.
+ */
 public class BufferedHttpResponseDocumentGenerationDestination extends BufferedDocumentGenerationDestination {
 
     protected @Getter int statusCode = HttpServletResponse.SC_OK;
     protected @CheckForNull String reasonPhrase = null;
     protected @CheckForNull URL redirectUrl = null;
+    protected @Setter @CheckForNull HttpCompressionPolicy compression = null;
+    protected @Setter boolean releaseAfterDelivery = false;
+    protected final @Nonnull Map<String, SegmentedByteArrayOutputStream> compressedBodyForEncoding = new HashMap<>();
+
+    public BufferedHttpResponseDocumentGenerationDestination(@Nonnull ChunkPool chunkPool) { super(chunkPool); }
+    public BufferedHttpResponseDocumentGenerationDestination() { super(); }
 
     public void setStatusCode(int code) { statusCode = code; reasonPhrase = null; }
     public void setStatusCode(int code, @Nonnull String phrase) { statusCode = code; reasonPhrase = phrase; }
@@ -32,28 +53,88 @@ public class BufferedHttpResponseDocumentGenerationDestination extends BufferedD
         super.setContentDispositionToDownload(filename);
     }
 
-    @SuppressWarnings("deprecation") // There's no other way to do setStatus(code, phrase)
-    @SneakyThrows(IOException.class)
-    public void deliver(@Nonnull HttpServletResponse response) {
-        if (redirectUrl != null) {
-            response.sendRedirect(redirectUrl.toExternalForm());
+    protected boolean hasBody() {
+        return body != null;
+    }
+
+    protected long getBodySizeBytes() {
+        return body.getSizeBytes();
+    }
+
+    /** @return the encoding the body is to be compressed with, or null if it is to be sent as it is */
+    protected @CheckForNull String chooseEncoding(@CheckForNull HttpServletRequest request) {
+        if (request == null || compression == null || ! compression.isCompressible(contentType)) return null;
+        if (getBodySizeBytes() < compression.getMinSizeBytes()) return null;
+        return HttpCompressionPolicy.negotiate(request.getHeader("Accept-Encoding"));
+    }
+
+    /** Writes the body, whose length is known, to the response, compressed if an encoding is given */
+    protected void writeBody(@Nonnull HttpServletResponse response, @CheckForNull String encodingOrNull) throws IOException {
+        if (encodingOrNull == null) {
+            response.setContentLengthLong(body.getSizeBytes());
+            body.writeTo(response.getOutputStream());
             return;
         }
 
-        if (body == null) {
-            if (reasonPhrase == null) response.sendError(statusCode);
-            else response.sendError(statusCode, reasonPhrase);
-        } else {
-            if (reasonPhrase == null) response.setStatus(statusCode);
-            else response.setStatus(statusCode, reasonPhrase);
+        SegmentedByteArrayOutputStream compressed;
+        synchronized (compressedBodyForEncoding) {
+            compressed = compressedBodyForEncoding.get(encodingOrNull);
+            if (compressed == null) {
+                compressed = new SegmentedByteArrayOutputStream(chunkPool);
+                try (val out = HttpCompressionPolicy.newCompressingStream(encodingOrNull, compressed)) { body.writeTo(out); }
+                compressedBodyForEncoding.put(encodingOrNull, compressed);
+            }
+        }
+        response.setHeader("Content-Encoding", encodingOrNull);
+        response.setContentLengthLong(compressed.getSizeBytes());
+        compressed.writeTo(response.getOutputStream());
+    }
 
-            response.setContentType(contentType);
+    /** Returns the memory used by the body, and by its compressed forms, to the pool */
+    @Override public void releaseBody() {
+        super.releaseBody();
+        synchronized (compressedBodyForEncoding) {
+            for (val c : compressedBodyForEncoding.values()) c.release();
+            compressedBodyForEncoding.clear();
+        }
+    }
 
-            if (filenameOrNull != null) {
-                response.setHeader("content-disposition", "attachment; filename=\"" + filenameOrNull + "\"");
-            }
+    /** Sends the document uncompressed, see {@link #deliver(HttpServletRequest, HttpServletResponse)} */
+    public void deliver(@Nonnull HttpServletResponse response) {
+        deliver(null, response);
+    }
+
+    /**
+     * Sends the document. If {@link #setReleaseAfterDelivery(boolean)} has been set, its memory is then released,
+     * so this can only be called once, and {@link #getBody()} is empty afterwards.
+     *
+     * @param requestOrNull if given, and a compression policy is set, its "Accept-Encoding" header is taken into account
+     */
+    @SuppressWarnings("deprecation") // There's no other way to do setStatus(code, phrase)
+    @SneakyThrows(IOException.class)
+    public void deliver(@CheckForNull HttpServletRequest requestOrNull, @Nonnull HttpServletResponse response) {
+        try {
+            if (redirectUrl != null) {
+                response.sendRedirect(redirectUrl.toExternalForm());
+            } else if ( ! hasBody()) {
+                if (reasonPhrase == null) response.sendError(statusCode);
+                else response.sendError(statusCode, reasonPhrase);
+            } else {
+                if (reasonPhrase == null) response.setStatus(statusCode);
+                else response.setStatus(statusCode, reasonPhrase);
+
+                response.setContentType(contentType);
 
-            IOUtils.write(body.toByteArray(), response.getOutputStream());
+                if (filenameOrNull != null) {
+                    response.setHeader("content-disposition", "attachment; filename=\"" + filenameOrNull + "\"");
+                }
+
+                if (compression != null && compression.isCompressible(contentType)) response.addHeader("Vary", "Accept-Encoding");
+                writeBody(response, chooseEncoding(requestOrNull));
+            }
+        }
+        finally {
+            if (releaseAfterDelivery) releaseBody();
         }
     }
 }
@@ -0,0 +1,19 @@
+package com.offerready.xslt;
+
+import javax.annotation.Nonnull;
+import java.io.Writer;
+
+/**
+ * A destination which can also take the document as characters, rather than as bytes.
+ *    <p>
+ * For text documents, such as HTML, {@link DocumentGenerator} writes characters to {@link #getWriter()}
+ * rather than encoding them to UTF-8 and writing them to {@link #getOutputStream()}.
+ * Destinations which hold the document as a string then need not decode the bytes again.
+ * Other documents, such as PDF, are still written to {@link #getOutputStream()}.
+ */
+public interface CharacterDocumentGenerationDestination extends DocumentGenerationDestination {
+
+    /** The content type set before this is called states the charset; the characters are written as they are */
+    public @Nonnull Writer getWriter();
+
+}
@@ -1,33 +1,76 @@
 package com.offerready.xslt;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.StringWriter;
+import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.URIResolver;
-import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 
 import com.databasesandlife.util.DomParser;
 import com.databasesandlife.util.gwtsafe.ConfigurationException;
 import lombok.SneakyThrows;
+import lombok.Value;
 import lombok.val;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.trans.XPathException;
+import org.apache.fop.apps.Fop;
 import org.apache.fop.apps.FopFactory;
 import org.apache.fop.apps.MimeConstants;
-import org.json.XML;
+import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 import com.databasesandlife.util.MD5Hex;
 import com.databasesandlife.util.Timer;
@@ -60,11 +103,136 @@ public class DocumentGenerator {
     protected final @Nonnull DocumentOutputDefinition defn;
     protected final @Nonnull WeaklyCachedXsltTransformer transformer;
     protected @CheckForNull File fopBaseDirOrNull = null, fopConfigOrNull = null, imagesBase = null;
+    protected @CheckForNull DocumentOutputCache outputCacheOrNull = null;
     
     public static class StyleVisionXslt implements Xslt {
+
+        protected static final String xslNamespace = "http://www.w3.org/1999/XSL/Transform";
+
+        /** If these attributes of a file are unchanged, its contents are assumed to be unchanged */
+        @Value protected static class FileStamp {
+            long size;
+            @Nonnull FileTime lastModified;
+            @CheckForNull Object fileKey;
+        }
+
+        @Value protected static class Fingerprint {
+            @Nonnull FileStamp stamp;
+            @Nonnull String md5;
+            /** Files referenced by top-level xsl:import and xsl:include elements of this file */
+            @Nonnull List<File> imports;
+        }
+
+        /** Avoids reading and hashing a (possibly large) XSLT file, each time an object of this class is created */
+        protected static final ConcurrentMap<Path, Fingerprint> fingerprintForPath = new ConcurrentHashMap<>();
+
         public final @Nonnull File xsltFile;
+
+        /** The files making up the XSLT, and the key calculated from them together, so that neither is seen without the other */
+        @Value protected static class FilesAndKey {
+            @Nonnull List<File> files;
+            @Nonnull String key;
+        }
+
+        /**
+         * Read and written by request threads, compilation threads, and the {@link XsltFileWatcher},
+         * so each is replaced as a whole rather than changed.
+         */
+        protected volatile @CheckForNull FilesAndKey filesAndKeyOrNull = null, sourceFilesAndKeyOrNull = null;
+
         public StyleVisionXslt(@Nonnull File x) { xsltFile = x; }
-        @Override public @Nonnull String calculateCacheKey() { return MD5Hex.md5(xsltFile); }
+
+        /** @return files referenced by top-level xsl:import and xsl:include elements; empty if the file is not valid XML */
+        @SneakyThrows({ParserConfigurationException.class, IOException.class})
+        protected static @Nonnull List<File> parseImports(@Nonnull File file) {
+            val result = new ArrayList<File>();
+            final DefaultHandler handler = new DefaultHandler() {
+                int depth = 0;
+                @Override public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    depth++;
+                    if (depth != 2 || ! xslNamespace.equals(uri)) return;
+                    if ( ! "import".equals(localName) && ! "include".equals(localName)) return;
+                    val href = attributes.getValue("href");
+                    if (href == null) return;
+                    try {
+                        val resolved = file.toURI().resolve(href);
+                        if ("file".equals(resolved.getScheme())) result.add(new File(resolved));
+                    }
+                    catch (IllegalArgumentException ignored) { } // Not a valid URI, compiler will report it
+                }
+                @Override public void endElement(String uri, String localName, String qName) { depth--; }
+            };
+            try {
+                // Only the elements are needed: don't fetch DTDs or external entities, which might be anywhere
+                val factory = SAXParserFactory.newInstance();
+                factory.setNamespaceAware(true);
+                factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+                factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+                factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+                factory.newSAXParser().parse(file, handler);
+            }
+            catch (SAXException e) { return Collections.emptyList(); } // Compiler will report it
+            return result;
+        }
+
+        /**
+         * MD5 of the file contents, and the files it imports, calculated only if the file's size, modification time
+         * or file key (e.g. inode) have changed since the last call.
+         */
+        @SneakyThrows(IOException.class)
+        protected static @Nonnull Fingerprint fingerprint(@Nonnull File file) {
+            val path = file.toPath().toAbsolutePath();
+            val attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            val stamp = new FileStamp(attributes.size(), attributes.lastModifiedTime(), attributes.fileKey());
+
+            val known = fingerprintForPath.get(path);
+            if (known != null && known.getStamp().equals(stamp)) return known;
+
+            // File read after its attributes, so a concurrent change leads to a changed stamp next time, not a stale md5
+            val result = new Fingerprint(stamp, MD5Hex.md5(file), parseImports(file));
+            fingerprintForPath.put(path, result);
+            return result;
+        }
+
+        protected static @Nonnull String md5(@Nonnull File file) {
+            return fingerprint(file).getMd5();
+        }
+
+        /**
+         * The key is the MD5 of the file contents, so identical files in different places have the same key.
+         * If the XSLT imports or includes other files, the key also contains their MD5s,
+         * so a change to a shared imported file produces a new key for all XSLTs which use it, and only those.
+         */
+        @Override public @Nonnull String calculateCacheKey() {
+            return calculateFilesAndKey().getKey();
+        }
+
+        /** See {@link #calculateCacheKey()}; the result is also published to {@link #filesAndKeyOrNull} */
+        protected @Nonnull FilesAndKey calculateFilesAndKey() {
+            val files = new ArrayList<File>();
+            val md5s = new StringBuilder();
+            val visited = new HashSet<Path>();
+            val toVisit = new ArrayDeque<File>(Collections.singletonList(xsltFile));
+            while ( ! toVisit.isEmpty()) {
+                val file = toVisit.pop();
+                if ( ! visited.add(file.toPath().toAbsolutePath().normalize())) continue;
+                if (files.size() > 0 && ! file.isFile()) continue; // Compiler will report missing import
+                val fingerprint = fingerprint(file);
+                files.add(file);
+                md5s.append(fingerprint.getMd5()).append(" ");
+                for (int i = fingerprint.getImports().size() - 1; i >= 0; i--) toVisit.push(fingerprint.getImports().get(i));
+            }
+            val key = files.size() == 1 ? md5s.toString().trim() : MD5Hex.md5(md5s.toString());
+            val result = new FilesAndKey(Collections.unmodifiableList(files), key);
+            filesAndKeyOrNull = result;
+            return result;
+        }
+
+        /** @return this file, and all files it imports or includes, directly or indirectly */
+        @Override public @Nonnull Collection<File> getFiles() {
+            val calculated = filesAndKeyOrNull;
+            return (calculated == null ? calculateFilesAndKey() : calculated).getFiles();
+        }
 
         @SneakyThrows(IOException.class)
         @Override public @Nonnull Document parseDocument() throws ConfigurationException {
@@ -95,6 +263,79 @@ public class DocumentGenerator {
 
             return result;
         }
+
+        /**
+         * Performs the same changes as {@link #parseDocument()}, but as the XSLT is read by the compiler,
+         * without building a DOM first.
+         */
+        protected static class StyleVisionFilter extends XMLFilterImpl {
+            protected int importSchemaDepth = 0;
+
+            protected StyleVisionFilter(@Nonnull XMLReader parent) { super(parent); }
+
+            @Override public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+                if (importSchemaDepth > 0 || (xslNamespace.equals(uri) && "import-schema".equals(localName))) {
+                    importSchemaDepth++;
+                    return;
+                }
+                if (xslNamespace.equals(uri) && "result-document".equals(localName) && atts.getIndex("", "href") >= 0) {
+                    val withoutHref = new AttributesImpl(atts);
+                    withoutHref.removeAttribute(atts.getIndex("", "href"));
+                    atts = withoutHref;
+                }
+                super.startElement(uri, localName, qName, atts);
+            }
+
+            @Override public void endElement(String uri, String localName, String qName) throws SAXException {
+                if (importSchemaDepth > 0) importSchemaDepth--;
+                else super.endElement(uri, localName, qName);
+            }
+
+            @Override public void characters(char[] ch, int start, int length) throws SAXException {
+                if (importSchemaDepth == 0) super.characters(ch, start, length);
+            }
+
+            @Override public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+                if (importSchemaDepth == 0) super.ignorableWhitespace(ch, start, length);
+            }
+
+            @Override public void processingInstruction(String target, String data) throws SAXException {
+                if (importSchemaDepth == 0) super.processingInstruction(target, data);
+            }
+        }
+
+        /**
+         * The file is read here, once, and its MD5 checked against the key, so that if the file changes after
+         * its key was calculated, it is not compiled and cached under the key of the previous version.
+         * Imported files are read by the compiler.
+         */
+        @Override public @Nonnull Source newSource() throws ConfigurationException {
+            try {
+                byte[] bytes = null;
+                for (int attempt = 0; bytes == null; attempt++) {
+                    if (attempt == 3) throw new ConfigurationException("XSLT file '" + xsltFile.getAbsolutePath() + "' keeps changing");
+                    val read = Files.readAllBytes(xsltFile.toPath());
+                    val calculated = calculateFilesAndKey();
+                    if (fingerprint(xsltFile).getMd5().equals(MD5Hex.md5(read))) { bytes = read; sourceFilesAndKeyOrNull = calculated; }
+                    else fingerprintForPath.remove(xsltFile.toPath().toAbsolutePath()); // e.g. changed within mtime resolution
+                }
+
+                val factory = SAXParserFactory.newInstance();
+                factory.setNamespaceAware(true);
+                val filter = new StyleVisionFilter(factory.newSAXParser().getXMLReader());
+                val input = new InputSource(new ByteArrayInputStream(bytes));
+                input.setSystemId(xsltFile.toURI().toString()); // resolves relative xsl:import
+                return new SAXSource(filter, input);
+            }
+            catch (ParserConfigurationException | SAXException | IOException e) {
+                throw new ConfigurationException("XSLT file '" + xsltFile.getAbsolutePath() + "': " + e.getMessage(), e);
+            }
+        }
+
+        @Override public @CheckForNull String getSourceCacheKey() {
+            val source = sourceFilesAndKeyOrNull;
+            return source == null ? null : source.getKey();
+        }
     }
     
     public DocumentGenerator(
@@ -124,8 +365,50 @@ public class DocumentGenerator {
         this.imagesBase = imagesBase;
     }
 
+    /** @param outputCacheOrNull if not null, generated documents are cached, see {@link #transform(String, DocumentGenerationDestination, Supplier, boolean, URIResolver, String)} */
+    public void setOutputCache(@CheckForNull DocumentOutputCache outputCacheOrNull) {
+        this.outputCacheOrNull = outputCacheOrNull;
+    }
+
+    /**
+     * @return identifies the input, by the SHA-256 of its serialized form.
+     *    <p>
+     * This serializes and hashes the whole DOM, each time a document is requested, even if it is then found in the cache.
+     * Callers which can identify their input more cheaply, for example by a database row's ID and version,
+     * should use {@link #transform(String, DocumentGenerationDestination, Supplier, boolean, URIResolver, String)}.
+     */
+    @SneakyThrows({NoSuchAlgorithmException.class, TransformerException.class})
+    protected static @Nonnull String newInputKey(@Nonnull Document xml) {
+        val digest = MessageDigest.getInstance("SHA-256");
+        val digestOutput = new OutputStream() {
+            @Override public void write(int b) { digest.update((byte) b); }
+            @Override public void write(@Nonnull byte[] b, int off, int len) { digest.update(b, off, len); }
+        };
+        WeaklyCachedXsltTransformer.transformerFactory.newTransformer()
+            .transform(new DOMSource(xml), new StreamResult(digestOutput));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+    }
+
+    /**
+     * @return identifies a generated document: everything which affects the output of
+     *         {@link #transform(DocumentGenerationDestination, Source, boolean, URIResolver, String)}
+     */
+    @SneakyThrows(NoSuchAlgorithmException.class)
+    protected @Nonnull String newOutputCacheKey(@Nonnull String inputKey, boolean transform, @CheckForNull String language) {
+        val parameters = defn.xsltParameters.getSnapshot(language); // languages without their own values have the same key
+        val key = String.join("\n",
+            String.valueOf(getTransformer().getCacheKey()), inputKey, String.valueOf(transform),
+            new TreeMap<>(parameters.getStrings()).toString(), new TreeMap<>(parameters.types).toString(),
+            defn.outputConversion.name(), String.valueOf(defn.contentType), defn.inputDecimalSeparator.name(),
+            defn.htmlScriptsToIgnore.toString(),
+            String.valueOf(fopBaseDirOrNull), String.valueOf(fopConfigOrNull),
+            String.valueOf(fopConfigOrNull == null ? 0 : fopConfigOrNull.lastModified()), String.valueOf(imagesBase));
+        val digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+    }
+
     @SneakyThrows({TransformerException.class, IOException.class})
-    protected void writePlainXml(@Nonnull DocumentGenerationDestination response, @Nonnull Document xml) {
+    protected void writePlainXml(@Nonnull DocumentGenerationDestination response, @Nonnull Source xml) {
         val systemProperties = System.getProperties();
         systemProperties.remove("javax.xml.transform.TransformerFactory");
         System.setProperties(systemProperties);
@@ -135,38 +418,77 @@ public class DocumentGenerator {
         transformer.setOutputProperty(OutputKeys.INDENT, "yes");
         transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
         transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-        val source = new DOMSource(xml);
+        if (response instanceof CharacterDocumentGenerationDestination) {
+            try (val writer = ((CharacterDocumentGenerationDestination) response).getWriter()) {
+                transformer.transform(xml, new StreamResult(writer));
+            }
+            return;
+        }
         val result = new StreamResult(response.getOutputStream());
-        transformer.transform(source, result);
+        transformer.transform(xml, result);
         response.getOutputStream().close();
     }
 
-    @SneakyThrows({TransformerException.class, IOException.class, SAXException.class})
-    protected void writePdfFromXslFo(@Nonnull OutputStream pdf, @Nonnull Document fo, @CheckForNull URIResolver uriResolverOrNull) {
-        try (val t = new Timer("Create PDF from XSL-FO")) {
-            // Get a FOP instance (can convert XSL-FO into PDF)
-            val fopFactory = FopFactory.newInstance();
-            if (fopBaseDirOrNull != null) fopFactory.setFontBaseURL(fopBaseDirOrNull.toURI().toString());
-            if (fopConfigOrNull != null) fopFactory.setUserConfig(fopConfigOrNull);
-            val foUserAgent = fopFactory.newFOUserAgent();
-            if (imagesBase != null) foUserAgent.setBaseURL(imagesBase.toURI().toString());
-            if (uriResolverOrNull != null) foUserAgent.setURIResolver(uriResolverOrNull);
-            val fop = fopFactory.newFop(MimeConstants.MIME_PDF, foUserAgent, pdf);
-
-            // Setup JAXP using identity transformer
-            val factory = TransformerFactory.newInstance();
-            val transformer = factory.newTransformer(); // identity transformer
-            
-            // Resulting SAX events (the generated FO) must be piped through to FOP
-            val res = new SAXResult(fop.getDefaultHandler());
+    /** Identifies FOP configuration; a changed config file is a different configuration */
+    @Value protected static class FopFactoryKey {
+        @CheckForNull File fontBaseDirOrNull, configOrNull, imagesBaseOrNull;
+        long configLastModified;
 
-            // Start XSLT transformation and FOP processing
-            transformer.transform(new DOMSource(fo), res);
+        boolean isSameFiles(@Nonnull FopFactoryKey other) {
+            return Objects.equals(fontBaseDirOrNull, other.fontBaseDirOrNull) && Objects.equals(configOrNull, other.configOrNull)
+                && Objects.equals(imagesBaseOrNull, other.imagesBaseOrNull);
         }
     }
 
+    /** FopFactory parses the config file, and caches font metrics and images, so it is expensive to create */
+    protected static final @Nonnull ConcurrentMap<FopFactoryKey, FopFactory> fopFactoryForKey = new ConcurrentHashMap<>();
+
+    @SneakyThrows({IOException.class, SAXException.class})
+    protected static @Nonnull FopFactory newFopFactory(@CheckForNull File fontBaseDirOrNull, @CheckForNull File configOrNull) {
+        val fopFactory = FopFactory.newInstance();
+        if (fontBaseDirOrNull != null) fopFactory.setFontBaseURL(fontBaseDirOrNull.toURI().toString());
+        if (configOrNull != null) fopFactory.setUserConfig(configOrNull);
+        return fopFactory;
+    }
+
+    /**
+     * @param imagesBaseOrNull part of the key, as FOP caches images by the URI in the XSL-FO, before it is resolved
+     * @return shared factory for this configuration
+     */
+    protected static @Nonnull FopFactory getFopFactory(
+        @CheckForNull File fontBaseDirOrNull, @CheckForNull File configOrNull, @CheckForNull File imagesBaseOrNull
+    ) {
+        val key = new FopFactoryKey(fontBaseDirOrNull, configOrNull, imagesBaseOrNull, configOrNull == null ? 0 : configOrNull.lastModified());
+        val existing = fopFactoryForKey.get(key);
+        if (existing != null) return existing;
+
+        fopFactoryForKey.keySet().removeIf(k -> k.isSameFiles(key)); // previous versions of config file
+        return fopFactoryForKey.computeIfAbsent(key, k -> newFopFactory(fontBaseDirOrNull, configOrNull));
+    }
+
+    /** 
+     * @param uriResolverOrNull if not null, a new FopFactory is used: FOP caches images by URI within a factory,
+     *                          and such a resolver may produce different images for the same URI, for example charts
+     * @return FOP instance which writes PDF to the stream, from the XSL-FO SAX events sent to its default handler
+     */
+    @SneakyThrows(SAXException.class)
+    protected @Nonnull Fop newFop(@Nonnull OutputStream pdf, @CheckForNull URIResolver uriResolverOrNull) {
+        val fopFactory = uriResolverOrNull == null
+            ? getFopFactory(fopBaseDirOrNull, fopConfigOrNull, imagesBase)
+            : newFopFactory(fopBaseDirOrNull, fopConfigOrNull);
+        val foUserAgent = fopFactory.newFOUserAgent();
+        if (imagesBase != null) foUserAgent.setBaseURL(imagesBase.toURI().toString());
+        if (uriResolverOrNull != null) foUserAgent.setURIResolver(uriResolverOrNull);
+        return fopFactory.newFop(MimeConstants.MIME_PDF, foUserAgent, pdf);
+    }
+
+    /** @return the object for our XSLT file, which is replaced if the file changes, see {@link WeaklyCachedXsltTransformer#forFile(File)} */
+    protected @Nonnull WeaklyCachedXsltTransformer getTransformer() {
+        return defn.xsltFileOrNull == null ? transformer : transformer.forFile(defn.xsltFileOrNull);
+    }
+
     public void assertTemplateValid() throws DocumentTemplateInvalidException {
-        transformer.assertValid();
+        getTransformer().assertValid();
     }
     
     /**
@@ -174,57 +496,304 @@ public class DocumentGenerator {
      * @param transform if false, then don't do transformation, but output XML instead (for debugging)
      * @param uriResolverOrNull if not null, pass an object which can, for example, fetch or create images via programmatic logic
      * @param language for example "de" to choose different XSLT params (placeholder values). Or null to just use the default.
+     *    <p>
+     * If an output cache has been set, and there is no URIResolver, the document is taken from the cache if possible.
+     * The cache key is then the hash of the whole serialized DOM, see {@link #newInputKey(Document)}.
      */
-    @SneakyThrows({TransformerException.class, IOException.class})
     public void transform(
         @Nonnull DocumentGenerationDestination response, @Nonnull Document xml,
         boolean transform, @CheckForNull URIResolver uriResolverOrNull,
         @CheckForNull String language
+    ) throws DocumentTemplateInvalidException {
+        if (outputCacheOrNull != null && uriResolverOrNull == null)
+            transform(newInputKey(xml), response, () -> new DOMSource(xml), transform, null, language);
+        else
+            transform(response, new DOMSource(xml), transform, uriResolverOrNull, language);
+    }
+
+    /**
+     * Sends the document from the output cache if it has already been generated, otherwise generates it and caches it.
+     * The input is only requested if the document is generated.
+     * If no output cache has been set, the document is always generated.
+     *
+     * @param inputKey identifies the input, for example the ID and version of a database row, or a hash of the input.
+     *                 If there is a URIResolver, it must identify the resources the resolver delivers.
+     */
+    @SneakyThrows(IOException.class) // writing the response, as transform(DocumentGenerationDestination, Source, ...) does
+    public void transform(
+        @Nonnull String inputKey, @Nonnull DocumentGenerationDestination response, @Nonnull Supplier<Source> xml,
+        boolean transform, @CheckForNull URIResolver uriResolverOrNull,
+        @CheckForNull String language
+    ) throws DocumentTemplateInvalidException {
+        val cache = outputCacheOrNull;
+        if (cache == null) {
+            transform(response, xml.get(), transform, uriResolverOrNull, language);
+            return;
+        }
+
+        if (transform) assertTemplateValid(); // don't wait for a document which can't be generated
+        cache.writeTo(newOutputCacheKey(inputKey, transform, language), response,
+            d -> transform(d, xml.get(), transform, uriResolverOrNull, language));
+    }
+
+    /**
+     * Transforms input which need not exist as a DOM, for example a {@link javax.xml.transform.sax.SAXSource}
+     * whose {@link org.xml.sax.XMLReader} generates events from a database cursor, a {@link javax.xml.transform.stax.StAXSource},
+     * or a {@link StreamSource} over a file or channel. The XSLT processor builds its own tree from the input.
+     *    <p>
+     * The source is read exactly once, so sources which can only be read once may be used.
+     *
+     * @param response  this is closed by this method 
+     * @param transform if false, then don't do transformation, but output XML instead (for debugging)
+     * @param uriResolverOrNull if not null, pass an object which can, for example, fetch or create images via programmatic logic
+     * @param language for example "de" to choose different XSLT params (placeholder values). Or null to just use the default.
+     */
+    @SneakyThrows({TransformerException.class, IOException.class, SAXException.class})
+    public void transform(
+        @Nonnull DocumentGenerationDestination response, @Nonnull Source xml,
+        boolean transform, @CheckForNull URIResolver uriResolverOrNull,
+        @CheckForNull String language
     ) throws DocumentTemplateInvalidException {
         if (transform == false) {
             writePlainXml(response, xml);
             return;
         }
 
-        val xslt = transformer.newTransformer();
-        for (val placeholderValue : defn.xsltParameters.get(language).entrySet())
-            xslt.setParameter(placeholderValue.getKey(), placeholderValue.getValue());
+        try (val xslt = getTransformer().borrowTransformer(defn.xsltParameters.getSnapshot(language))) {
+            switch (defn.outputConversion) {
+                case xmlToJson:
+                    response.setContentType((defn.contentType == null ? "application/json" : defn.contentType) + "; charset=UTF-8");
+                    try (val outputStream = response.getOutputStream(); val json = new JsonGenerator(outputStream)) {
+                        try (val t = new Timer("XSLT Transformation")) { xslt.transform(xml, new SAXResult(json)); }
+                    }
+                    break;
 
-        switch (defn.outputConversion) {
-            case xmlToJson:
-                response.setContentType((defn.contentType == null ? "application/json" : defn.contentType) + "; charset=UTF-8");
-                val xmlOutput = new StringWriter();
-                try (val t = new Timer("XSLT Transformation")) { xslt.transform(new DOMSource(xml), new StreamResult(xmlOutput)); }
-                val json = XML.toJSONObject(xmlOutput.toString());
-                try (val outputStream = response.getOutputStream()) {
-                    outputStream.write(json.toString(2).getBytes(StandardCharsets.UTF_8));
-                }
-                break;
-
-            case xslFoToPdf:
-                response.setContentType(defn.contentType == null ? "application/pdf" : defn.contentType);
-                val xslFo = new DOMResult();
-                try (val t = new Timer("XSLT Transformation to XSL-FO")) { xslt.transform(new DOMSource(xml), xslFo); }
-                try (val outputStream = response.getOutputStream()) {
-                    writePdfFromXslFo(outputStream, (Document) xslFo.getNode(), uriResolverOrNull);
-                }
-                break;
+                case xslFoToPdf:
+                    response.setContentType(defn.contentType == null ? "application/pdf" : defn.contentType);
+                    try (val outputStream = response.getOutputStream()) {
+                        // XSL-FO is laid out by FOP as the XSLT produces it, rather than first being built as a DOM
+                        val fop = newFop(outputStream, uriResolverOrNull);
+                        try (val t = new Timer("XSLT Transformation to PDF")) { xslt.transform(xml, new SAXResult(fop.getDefaultHandler())); }
+                    }
+                    break;
 
-            case excelXmlToExcelBinary:
-                response.setContentType(defn.contentType == null ? "application/ms-excel" : defn.contentType);
-                try (val outputStream = response.getOutputStream()) {
-                    xslt.transform(new DOMSource(xml), new SAXResult(new ExcelGenerator(defn.inputDecimalSeparator, outputStream)));
-                }
-                break;
+                case excelXmlToExcelBinary:
+                    response.setContentType(defn.contentType == null ? "application/ms-excel" : defn.contentType);
+                    try (val outputStream = response.getOutputStream()) {
+                        xslt.transform(xml, new SAXResult(new ExcelGenerator(defn.inputDecimalSeparator, outputStream)));
+                    }
+                    break;
+
+                case excelXmlToXlsx:
+                    response.setContentType(defn.contentType == null ? XlsxGenerator.contentType : defn.contentType);
+                    try (val outputStream = response.getOutputStream(); val xlsx = new XlsxGenerator(defn.inputDecimalSeparator, outputStream)) {
+                        xslt.transform(xml, new SAXResult(xlsx));
+                    }
+                    break;
 
-            default:
-                response.setContentType((defn.contentType == null ? "text/plain" : defn.contentType) + "; charset=UTF-8");
-                try (val outputStream = response.getOutputStream()) {
-                    val result = new StreamResult(outputStream);
+                case htmlToBodyFragment:
+                    response.setContentType((defn.contentType == null ? "text/html" : defn.contentType) + "; charset=UTF-8");
+                    val extractor = new HtmlBodyExtractor();
+                    for (val s : defn.htmlScriptsToIgnore) extractor.addScriptToIgnore(s);
                     xslt.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
-                    try (val t = new Timer("XSLT Transformation")) { xslt.transform(new DOMSource(xml), result); }
+                    try (val writer = extractor.newExtractingWriter(response instanceof CharacterDocumentGenerationDestination
+                            ? ((CharacterDocumentGenerationDestination) response).getWriter()
+                            : new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8))) {
+                        try (val t = new Timer("XSLT Transformation")) { xslt.transform(xml, new StreamResult(writer)); }
+                    }
+                    break;
+
+                default:
+                    response.setContentType((defn.contentType == null ? "text/plain" : defn.contentType) + "; charset=UTF-8");
+                    if (response instanceof CharacterDocumentGenerationDestination) {
+                        xslt.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name()); // as stated by the content type
+                        try (val writer = ((CharacterDocumentGenerationDestination) response).getWriter()) {
+                            try (val t = new Timer("XSLT Transformation")) { xslt.transform(xml, new StreamResult(writer)); }
+                        }
+                        break;
+                    }
+                    try (val outputStream = response.getOutputStream()) {
+                        val result = new StreamResult(outputStream);
+                        xslt.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
+                        try (val t = new Timer("XSLT Transformation")) { xslt.transform(xml, result); }
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Generates a document on the executor, rather than on the calling thread.
+     *    <p>
+     * For example a servlet can call {@link javax.servlet.ServletRequest#startAsync()}, pass an
+     * {@link AsyncHttpResponseDocumentGenerationDestination}, and return, so that no container thread is held
+     * while the document is generated or sent. Such a response is ended once the document has been generated,
+     * or aborted if it could not be, as its output stream is closed in either case.
+     *
+     * @param xml called on the executor, so the input only needs to exist while the document is being generated
+     * @return completes once the document has been written to the destination, or completes exceptionally
+     *         with the exception which {@link #transform(DocumentGenerationDestination, Source, boolean, URIResolver, String)} threw
+     */
+    public @Nonnull CompletableFuture<Void> transformAsync(
+        @Nonnull DocumentGenerationDestination response, @Nonnull Supplier<Source> xml,
+        boolean transform, @CheckForNull URIResolver uriResolverOrNull,
+        @CheckForNull String language, @Nonnull Executor executor
+    ) {
+        val async = (response instanceof AsyncHttpResponseDocumentGenerationDestination)
+            ? (AsyncHttpResponseDocumentGenerationDestination) response : null;
+        if (async != null) async.setEndOnClose(false);
+        return CompletableFuture.runAsync(() -> {
+            try {
+                transform(response, xml.get(), transform, uriResolverOrNull, language);
+                if (async != null) async.end();
+            }
+            catch (Throwable e) {
+                if (async != null) async.abort(e);
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Reads the input into the XSLT processor's own compact, immutable tree, which can be passed to
+     * {@link #transform(DocumentGenerationDestination, Source, boolean, URIResolver, String)} any number of times,
+     * including concurrently, without the input being read, copied or wrapped again.
+     *    <p>
+     * Worthwhile if the same input is used for several documents, see {@link #transformEach(Source, List, URIResolver, String, Executor)}.
+     */
+    @SneakyThrows(XPathException.class)
+    public static @Nonnull Source prepareInput(@Nonnull Source xml) {
+        if (xml instanceof NodeInfo) return xml;
+        try (val t = new Timer("Prepare XSLT input")) {
+            return WeaklyCachedXsltTransformer.transformerFactory.getConfiguration().buildDocumentTree(xml).getRootNode();
+        }
+    }
+
+    /** One document to be generated by {@link #transformEach(Source, List, URIResolver, String, Executor)} */
+    @Value public static class Output {
+        @Nonnull DocumentGenerator generator;
+        @Nonnull DocumentGenerationDestination destination;
+    }
+
+    /**
+     * Generates several documents from the same input, for example the HTML, PDF and Excel versions of a report.
+     * The input is read once, see {@link #prepareInput(Source)}.
+     *    <p>
+     * Returns once all documents have been generated. If any could not be generated, the others are
+     * nevertheless generated, and then the exception of the first which failed is thrown.
+     *
+     * @param executor documents are generated in parallel on this executor, or null to generate them one after another on this thread
+     * @throws DocumentTemplateInvalidException before any document is generated
+     */
+    @SneakyThrows(Throwable.class)
+    public static void transformEach(
+        @Nonnull Source xml, @Nonnull List<Output> outputs, @CheckForNull URIResolver uriResolverOrNull,
+        @CheckForNull String language, @CheckForNull Executor executor
+    ) throws DocumentTemplateInvalidException {
+        for (val o : outputs) o.getGenerator().assertTemplateValid();
+
+        val tree = prepareInput(xml);
+        val futures = new ArrayList<CompletableFuture<Void>>();
+        for (val o : outputs) {
+            futures.add(o.getGenerator().transformAsync(o.getDestination(), () -> tree, true, uriResolverOrNull, language,
+                executor == null ? Runnable::run : executor));
+        }
+
+        Throwable first = null;
+        for (val f : futures) {
+            try { f.join(); }
+            catch (CompletionException e) { if (first == null) first = e.getCause(); }
+        }
+        if (first != null) throw first;
+    }
+
+    /** One document to be generated by {@link #transformAll(Stream, Executor, int)} */
+    @Value public static class BatchItem {
+        /** Identifies the document in {@link BatchSummary#getFailures()}, for example a customer number */
+        @Nonnull String id;
+        /** Called on the worker thread, so the input only needs to exist while its document is being generated */
+        @Nonnull Supplier<Source> xml;
+        @Nonnull Supplier<DocumentGenerationDestination> destination;
+        @CheckForNull String language;
+    }
+
+    @Value public static class BatchFailure {
+        @Nonnull String id;
+        /** Anything thrown while generating the document, including errors such as {@link StackOverflowError} */
+        @Nonnull Throwable exception;
+    }
+
+    @Value public static class BatchSummary {
+        int succeededCount;
+        @Nonnull List<BatchFailure> failures;
+        long elapsedNanos;
+
+        public double getDocumentsPerSecond() {
+            return (succeededCount + failures.size()) / Math.max(elapsedNanos / 1e9, 1e-9);
+        }
+    }
+
+    /**
+     * Generates many documents from this XSLT, for example a statement for each customer.
+     *    <p>
+     * Items are taken from the stream only as fast as they are generated: at most maxInFlight documents are
+     * being generated or waiting to be generated at any time. A document which fails does not affect the others;
+     * its exception is in the result. Returns when all documents have been generated.
+     *    <p>
+     * If the calling thread is interrupted, no further items are taken from the stream, and documents already being
+     * generated are waited for, unless the thread is interrupted again.
+     *
+     * @throws DocumentTemplateInvalidException before any document is generated
+     * @throws InterruptedException if the calling thread is interrupted; the remaining items are not generated
+     */
+    public @Nonnull BatchSummary transformAll(@Nonnull Stream<BatchItem> items, @Nonnull Executor executor, int maxInFlight)
+    throws DocumentTemplateInvalidException, InterruptedException {
+        assertTemplateValid();
+
+        val start = System.nanoTime();
+        val permits = new Semaphore(maxInFlight);
+        val succeededCount = new AtomicInteger(0);
+        val failures = new ConcurrentLinkedQueue<BatchFailure>();
+        try {
+            Iterator<BatchItem> iterator = items.iterator();
+            while (iterator.hasNext()) {
+                val item = iterator.next();
+                permits.acquire();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            val xml = item.getXml().get(); // before destination, which might e.g. create a file
+                            transform(item.getDestination().get(), xml, true, null, item.getLanguage());
+                            succeededCount.incrementAndGet();
+                        }
+                        catch (Throwable e) {
+                            Logger.getLogger(getClass()).error("Document '" + item.getId() + "' could not be generated", e);
+                            failures.add(new BatchFailure(item.getId(), e));
+                        }
+                        finally {
+                            permits.release();
+                        }
+                    });
                 }
-                break;
+                catch (RejectedExecutionException e) {
+                    permits.release();
+                    failures.add(new BatchFailure(item.getId(), e));
+                }
+            }
         }
+        finally {
+            permits.acquire(maxInFlight); // wait for documents still being generated
+        }
+
+        return new BatchSummary(succeededCount.get(), new ArrayList<>(failures), System.nanoTime() - start);
+    }
+
+    /** Generates documents on all CPU cores, see {@link #transformAll(Stream, Executor, int)} */
+    public @Nonnull BatchSummary transformAll(@Nonnull Stream<BatchItem> items)
+    throws DocumentTemplateInvalidException, InterruptedException {
+        val threadCount = Runtime.getRuntime().availableProcessors();
+        val pool = new ForkJoinPool(threadCount);
+        try { return transformAll(items, pool, 2 * threadCount); }
+        finally { pool.shutdown(); }
     }
 }
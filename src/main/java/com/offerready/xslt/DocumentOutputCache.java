@@ -0,0 +1,514 @@
+package com.offerready.xslt;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.val;
+import org.apache.log4j.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds generated documents, so that a document requested again with the same template, input and parameters
+ * is sent without running the XSLT, FOP or Excel conversion again. See {@link DocumentGenerator#setOutputCache(DocumentOutputCache)}.
+ *    <p>
+ * Documents are held in memory, up to a total number of bytes, the least recently used being removed first.
+ * Optionally documents are also written to a directory, also up to a total number of bytes, so that documents
+ * removed from memory, or generated before a restart, can be sent from there.
+ * Documents too large to be held in memory are only written to the directory, and are sent from their file,
+ * without being read into memory. Documents older than the time-to-live are not used.
+ *    <p>
+ * If a document is requested while the same document is being generated by another thread,
+ * the request waits for that document rather than generating it again.
+ * The document is generated into the cache, and sent to the client which requested it once it has been generated,
+ * so a slow client does not delay others waiting for the same document.
+ * A document found to be too large to cache is sent to its client as it is generated; any others waiting for it generate it themselves.
+ *    <p>
+ * One object may be shared by many {@link DocumentGenerator}s, as keys include the template.
+ */
+public class DocumentOutputCache {
+
+    /**
+     * A generated document, and the headers which were set when it was generated.
+     * The body is held in memory, or, if it is too large, is at the start of a file in the cache directory.
+     */
+    @Value @AllArgsConstructor(access = AccessLevel.PROTECTED)
+    public static class CachedDocument {
+        @Nonnull String contentType;
+        boolean download;
+        @CheckForNull String filenameOrNull;
+        @Getter(AccessLevel.NONE) @CheckForNull byte[] bodyOrNull; // null if the body is only in the file
+        @CheckForNull File fileOrNull;
+        long bodyLength;
+        long createdMillis;
+
+        public CachedDocument(
+            @Nonnull String contentType, boolean download, @CheckForNull String filenameOrNull, @Nonnull byte[] body, long createdMillis
+        ) {
+            this(contentType, download, filenameOrNull, body, null, body.length, createdMillis);
+        }
+
+        public boolean isInMemory() {
+            return bodyOrNull != null;
+        }
+
+        /** @return the body, which is read from the file into memory, if it is not held in memory */
+        @SneakyThrows(IOException.class)
+        public @Nonnull byte[] getBody() {
+            if (bodyOrNull != null) return bodyOrNull;
+            try (val in = new RandomAccessFile(fileOrNull, "r")) {
+                val result = new byte[Math.toIntExact(bodyLength)];
+                in.readFully(result);
+                return result;
+            }
+        }
+
+        /** @throws NoSuchFileException if the file has been removed from the cache, in which case nothing has been sent */
+        public void writeTo(@Nonnull DocumentGenerationDestination destination) throws IOException {
+            if (bodyOrNull != null) {
+                setHeaders(destination);
+                try (val out = destination.getOutputStream()) { out.write(bodyOrNull); }
+                return;
+            }
+
+            try (val file = FileChannel.open(fileOrNull.toPath(), StandardOpenOption.READ)) {
+                setHeaders(destination);
+                try (val out = destination.getOutputStream()) { copy(file, bodyLength, out); }
+            }
+        }
+
+        protected void setHeaders(@Nonnull DocumentGenerationDestination destination) {
+            destination.setContentType(contentType);
+            if (download) destination.setContentDispositionToDownload(filenameOrNull);
+        }
+    }
+
+    @Value public static class CacheStatistics {
+        long memoryHits, diskHits, misses;
+        long memoryBytes, diskBytes;
+    }
+
+    /** Sends the start of a file, without reading it into memory, see {@link FileChannel#transferTo} */
+    protected static void copy(@Nonnull FileChannel file, long length, @Nonnull OutputStream out) throws IOException {
+        val channel = Channels.newChannel(out);
+        for (long pos = 0; pos < length; ) {
+            val n = file.transferTo(pos, length - pos, channel);
+            if (n <= 0) throw new EOFException("Cached document is shorter than expected");
+            pos += n;
+        }
+    }
+
+    /**
+     * Records the document: in memory, then, once larger than {@link #maxMemoryBytes}, in a file in the cache directory.
+     * Nothing is sent to the real destination while the document is recorded.
+     * Once the document is found to be too large to cache, what has been recorded is sent to the real destination,
+     * and the rest of the document is passed straight through.
+     */
+    protected class RecordingDestination implements DocumentGenerationDestination {
+        protected final @Nonnull String key;
+        protected final @Nonnull DocumentGenerationDestination destination;
+        protected final @Nonnull Runnable onTooLarge;
+        protected @CheckForNull String contentType = null, filenameOrNull = null;
+        protected boolean download = false;
+        protected @CheckForNull ByteArrayOutputStream memoryOrNull = new ByteArrayOutputStream();
+        protected @CheckForNull File fileOrNull = null;
+        protected @CheckForNull OutputStream fileOutputOrNull = null;
+        protected long length = 0;
+        protected @CheckForNull OutputStream passThroughOrNull = null;
+        protected @CheckForNull OutputStream outputStream = null;
+
+        /** @param onTooLarge called before the document is passed through to the destination */
+        protected RecordingDestination(@Nonnull String key, @Nonnull DocumentGenerationDestination destination, @Nonnull Runnable onTooLarge) {
+            this.key = key;
+            this.destination = destination;
+            this.onTooLarge = onTooLarge;
+        }
+
+        @Override public void setContentType(@Nonnull String contentType) {
+            if (passThroughOrNull != null) destination.setContentType(contentType);
+            this.contentType = contentType;
+        }
+
+        @Override public void setContentDispositionToDownload(@CheckForNull String filename) {
+            if (passThroughOrNull != null) destination.setContentDispositionToDownload(filename);
+            download = true;
+            filenameOrNull = filename;
+        }
+
+        /** Sends what has been recorded to the destination, and from now on passes everything through */
+        protected @Nonnull OutputStream passThrough() throws IOException {
+            if (passThroughOrNull != null) return passThroughOrNull;
+            onTooLarge.run();
+            if (contentType != null) destination.setContentType(contentType);
+            if (download) destination.setContentDispositionToDownload(filenameOrNull);
+            passThroughOrNull = destination.getOutputStream();
+            if (memoryOrNull != null) memoryOrNull.writeTo(passThroughOrNull);
+            else if (fileOrNull != null) {
+                fileOutputOrNull.close();
+                try (val file = FileChannel.open(fileOrNull.toPath(), StandardOpenOption.READ)) { copy(file, length, passThroughOrNull); }
+            }
+            discard();
+            return passThroughOrNull;
+        }
+
+        /** @return where the next len bytes are to be written */
+        protected @Nonnull OutputStream target(int len) throws IOException {
+            if (passThroughOrNull != null) return passThroughOrNull;
+            val newLength = length + len;
+            if (fileOrNull == null && newLength > maxMemoryBytes) {
+                if (directoryOrNull == null || newLength > maxDiskBytes) return passThrough();
+                fileOrNull = new File(directoryOrNull, key + "." + Thread.currentThread().getId() + ".tmp");
+                fileOutputOrNull = new BufferedOutputStream(new FileOutputStream(fileOrNull), 64 * 1024);
+                memoryOrNull.writeTo(fileOutputOrNull);
+                memoryOrNull = null;
+            }
+            else if (fileOrNull != null && newLength > maxDiskBytes) return passThrough();
+            length = newLength;
+            return (fileOutputOrNull != null) ? fileOutputOrNull : memoryOrNull;
+        }
+
+        @Override public @Nonnull OutputStream getOutputStream() {
+            if (outputStream == null) {
+                outputStream = new OutputStream() {
+                    @Override public void write(int b) throws IOException { target(1).write(b); }
+                    @Override public void write(@Nonnull byte[] b, int off, int len) throws IOException { target(len).write(b, off, len); }
+                    @Override public void close() throws IOException {
+                        if (passThroughOrNull != null) passThroughOrNull.close();
+                        else if (fileOutputOrNull != null) fileOutputOrNull.flush();
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        /**
+         * Called once the document has been generated.
+         * @return the document, which has been cached; or null if it has been sent to the destination, as it was not cached
+         */
+        protected @CheckForNull CachedDocument finish() throws IOException {
+            if (passThroughOrNull != null) return null;
+            if (contentType == null || outputStream == null) {
+                passThrough().close(); // can't be cached without its headers
+                return null;
+            }
+
+            val createdMillis = System.currentTimeMillis();
+            if (memoryOrNull != null) {
+                val result = new CachedDocument(contentType, download, filenameOrNull, memoryOrNull.toByteArray(), createdMillis);
+                put(key, result);
+                return result;
+            }
+
+            try {
+                try (val out = new DataOutputStream(fileOutputOrNull)) { writeTrailer(out, contentType, download, filenameOrNull, length, createdMillis); }
+                val file = fileForKey(key);
+                Files.move(fileOrNull.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                fileOrNull = null;
+                addToDiskIndex(key, file);
+                return new CachedDocument(contentType, download, filenameOrNull, null, file, length, createdMillis);
+            }
+            catch (IOException e) {
+                Logger.getLogger(getClass()).warn("Cannot write cached document '" + fileForKey(key) + "'", e);
+                passThrough().close();
+                return null;
+            }
+        }
+
+        /** Deletes the file, if the document has not been moved into the cache */
+        protected void discard() {
+            try {
+                if (fileOutputOrNull != null) fileOutputOrNull.close();
+                if (fileOrNull != null) Files.deleteIfExists(fileOrNull.toPath());
+            }
+            catch (IOException e) { Logger.getLogger(getClass()).warn("Cannot delete '" + fileOrNull + "'", e); }
+            memoryOrNull = null;
+            fileOutputOrNull = null;
+            fileOrNull = null;
+        }
+    }
+
+    /** @param <E> the checked exception the generation may throw, which {@link #writeTo} passes on */
+    public interface DocumentGeneration<E extends Exception> {
+        void generate(@Nonnull DocumentGenerationDestination destination) throws E;
+    }
+
+    protected final long maxMemoryBytes, maxDiskBytes, timeToLiveMillis;
+    protected final @CheckForNull File directoryOrNull;
+
+    // Least recently used first; guarded by "this"
+    protected final @Nonnull LinkedHashMap<String, CachedDocument> memory = new LinkedHashMap<>(16, 0.75f, true);
+    protected long memoryBytes = 0;
+
+    // Least recently written first, with file size; guarded by "diskIndex"
+    protected final @Nonnull LinkedHashMap<String, Long> diskIndex = new LinkedHashMap<>();
+    protected long diskBytes = 0;
+
+    protected final @Nonnull ConcurrentMap<String, CompletableFuture<CachedDocument>> inProgress = new ConcurrentHashMap<>();
+    protected final @Nonnull AtomicLong memoryHits = new AtomicLong(), diskHits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * @param maxMemoryBytes total size of documents held in memory; a larger document is not cached
+     * @param directoryOrNull if not null, documents are also written to this directory, which is created if necessary.
+     *                        Files already there are used, if they have not expired. Temporary files left by writes
+     *                        which did not finish, for example as the process stopped, are deleted, so the directory
+     *                        must not be used by another cache at the same time.
+     * @param maxDiskBytes total size of files in the directory; ignored if there is no directory
+     */
+    public DocumentOutputCache(long maxMemoryBytes, @CheckForNull File directoryOrNull, long maxDiskBytes, long timeToLiveMillis)
+    throws IOException {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directoryOrNull = directoryOrNull;
+        this.maxDiskBytes = maxDiskBytes;
+        this.timeToLiveMillis = timeToLiveMillis;
+
+        if (directoryOrNull != null) {
+            Files.createDirectories(directoryOrNull.toPath());
+            val leftOver = directoryOrNull.listFiles((dir, name) -> name.endsWith(".tmp"));
+            if (leftOver != null) for (val f : leftOver) Files.deleteIfExists(f.toPath());
+            val files = directoryOrNull.listFiles((dir, name) -> name.endsWith(".doc"));
+            if (files != null) {
+                Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+                for (val f : files) {
+                    diskIndex.put(f.getName().replaceAll("\\.doc$", ""), f.length());
+                    diskBytes += f.length();
+                }
+            }
+            evictFromDisk();
+        }
+    }
+
+    public DocumentOutputCache(long maxMemoryBytes, long timeToLiveMillis) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directoryOrNull = null;
+        this.maxDiskBytes = 0;
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    protected boolean isExpired(@Nonnull CachedDocument doc) {
+        return System.currentTimeMillis() - doc.getCreatedMillis() > timeToLiveMillis;
+    }
+
+    protected @Nonnull File fileForKey(@Nonnull String key) {
+        return new File(directoryOrNull, key + ".doc");
+    }
+
+    protected synchronized @CheckForNull CachedDocument getFromMemory(@Nonnull String key) {
+        val result = memory.get(key);
+        if (result != null && isExpired(result)) { memory.remove(key); memoryBytes -= result.getBodyLength(); return null; }
+        return result;
+    }
+
+    protected synchronized void putInMemory(@Nonnull String key, @Nonnull CachedDocument doc) {
+        if ( ! doc.isInMemory() || doc.getBodyLength() > maxMemoryBytes) return;
+        val previous = memory.put(key, doc);
+        if (previous != null) memoryBytes -= previous.getBodyLength();
+        memoryBytes += doc.getBodyLength();
+        for (Iterator<CachedDocument> i = memory.values().iterator(); memoryBytes > maxMemoryBytes && i.hasNext(); ) {
+            memoryBytes -= i.next().getBodyLength();
+            i.remove();
+        }
+    }
+
+    protected void removeFromDisk(@Nonnull String key) {
+        synchronized (diskIndex) {
+            val size = diskIndex.remove(key);
+            if (size != null) diskBytes -= size;
+        }
+        fileForKey(key).delete();
+    }
+
+    protected void evictFromDisk() {
+        while (true) {
+            final String oldest;
+            synchronized (diskIndex) {
+                if (diskBytes <= maxDiskBytes || diskIndex.isEmpty()) return;
+                oldest = diskIndex.keySet().iterator().next();
+            }
+            removeFromDisk(oldest);
+        }
+    }
+
+    /**
+     * A file holds the body, so that a document recorded to a file can be moved into the cache without being copied,
+     * followed by the headers, the length of the body, and {@link #fileMagic}.
+     */
+    protected static void writeTrailer(
+        @Nonnull DataOutputStream out, @Nonnull String contentType, boolean download, @CheckForNull String filenameOrNull,
+        long bodyLength, long createdMillis
+    ) throws IOException {
+        out.writeLong(createdMillis);
+        out.writeUTF(contentType);
+        out.writeBoolean(download);
+        out.writeBoolean(filenameOrNull != null);
+        if (filenameOrNull != null) out.writeUTF(filenameOrNull);
+        out.writeLong(bodyLength);
+        out.writeInt(fileMagic);
+    }
+
+    protected static final int fileMagic = 0x444f4331;
+
+    /** A document no larger than {@link #maxMemoryBytes} is read into memory; a larger one is sent from its file */
+    protected @CheckForNull CachedDocument getFromDisk(@Nonnull String key) {
+        if (directoryOrNull == null) return null;
+        synchronized (diskIndex) { if ( ! diskIndex.containsKey(key)) return null; }
+        val file = fileForKey(key);
+        try (val in = new RandomAccessFile(file, "r")) {
+            if (in.length() < 12) throw new IOException("File too short");
+            in.seek(in.length() - 12);
+            val bodyLength = in.readLong();
+            if (in.readInt() != fileMagic || bodyLength < 0 || bodyLength > in.length() - 12) throw new IOException("Not a cached document");
+            in.seek(bodyLength);
+            val createdMillis = in.readLong();
+            val contentType = in.readUTF();
+            val download = in.readBoolean();
+            val filenameOrNull = in.readBoolean() ? in.readUTF() : null;
+
+            final CachedDocument result;
+            if (bodyLength <= maxMemoryBytes) {
+                val body = new byte[(int) bodyLength];
+                in.seek(0);
+                in.readFully(body);
+                result = new CachedDocument(contentType, download, filenameOrNull, body, createdMillis);
+            }
+            else result = new CachedDocument(contentType, download, filenameOrNull, null, file, bodyLength, createdMillis);
+            if (isExpired(result)) { removeFromDisk(key); return null; }
+            return result;
+        }
+        catch (IOException e) {
+            Logger.getLogger(getClass()).warn("Cannot read cached document '" + fileForKey(key) + "'", e);
+            removeFromDisk(key);
+            return null;
+        }
+    }
+
+    protected void addToDiskIndex(@Nonnull String key, @Nonnull File file) {
+        synchronized (diskIndex) {
+            val previous = diskIndex.put(key, file.length());
+            diskBytes += file.length() - (previous == null ? 0 : previous);
+        }
+        evictFromDisk();
+    }
+
+    /** Documents which are not in memory are already on disk */
+    protected void putOnDisk(@Nonnull String key, @Nonnull CachedDocument doc) {
+        if (directoryOrNull == null || ! doc.isInMemory() || doc.getBodyLength() > maxDiskBytes) return;
+        val file = fileForKey(key);
+        val tmp = new File(directoryOrNull, key + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            try (val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.write(doc.getBody());
+                writeTrailer(out, doc.getContentType(), doc.isDownload(), doc.getFilenameOrNull(), doc.getBodyLength(), doc.getCreatedMillis());
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            addToDiskIndex(key, file);
+        }
+        catch (IOException e) {
+            Logger.getLogger(getClass()).warn("Cannot write cached document '" + file + "'", e);
+            tmp.delete();
+        }
+    }
+
+    /** @return the document from memory or disk, or null if it is not cached or has expired */
+    public @CheckForNull CachedDocument get(@Nonnull String key) {
+        val fromMemory = getFromMemory(key);
+        if (fromMemory != null) { memoryHits.incrementAndGet(); return fromMemory; }
+
+        val fromDisk = getFromDisk(key);
+        if (fromDisk != null) { diskHits.incrementAndGet(); putInMemory(key, fromDisk); return fromDisk; } // if small enough
+
+        return null;
+    }
+
+    public void put(@Nonnull String key, @Nonnull CachedDocument doc) {
+        putInMemory(key, doc);
+        putOnDisk(key, doc);
+    }
+
+    /**
+     * Writes the cached document to the destination; or generates it into the cache, and then writes it to the destination.
+     * If the document is not cached but is already being generated by another thread, waits for that thread,
+     * and if it could not be generated or was too large to cache, generates it in this thread.
+     * The thread generating the document does not wait for its destination to accept it, unless it is too large to cache.
+     */
+    public <E extends Exception> void writeTo(
+        @Nonnull String key, @Nonnull DocumentGenerationDestination destination, @Nonnull DocumentGeneration<E> generation
+    ) throws E, IOException {
+        while (true) {
+            val cached = get(key);
+            if (cached != null) {
+                try { cached.writeTo(destination); return; }
+                catch (NoSuchFileException e) { continue; } // removed from the disk tier meanwhile
+            }
+
+            val mine = new CompletableFuture<CachedDocument>();
+            val other = inProgress.putIfAbsent(key, mine);
+            if (other != null) {
+                if (other.join() != null) continue;
+                generation.generate(destination); // other thread's document not cached
+                return;
+            }
+
+            misses.incrementAndGet();
+            CachedDocument result = null;
+            val recording = new RecordingDestination(key, destination, () -> {
+                inProgress.remove(key, mine);
+                mine.complete(null); // others don't wait for a document they can't take from the cache
+            });
+            try {
+                generation.generate(recording);
+                result = recording.finish();
+            }
+            finally {
+                recording.discard();
+                inProgress.remove(key, mine);
+                mine.complete(result);
+            }
+            if (result == null) return; // already sent
+
+            try { result.writeTo(destination); return; }
+            catch (NoSuchFileException e) { continue; }
+        }
+    }
+
+    /** Removes all documents from memory and disk */
+    public void clear() {
+        synchronized (this) { memory.clear(); memoryBytes = 0; }
+        if (directoryOrNull == null) return;
+        final String[] keys;
+        synchronized (diskIndex) { keys = diskIndex.keySet().toArray(new String[0]); }
+        for (val key : keys) removeFromDisk(key);
+    }
+
+    public @Nonnull CacheStatistics getStatistics() {
+        final long memoryBytesNow, diskBytesNow;
+        synchronized (this) { memoryBytesNow = memoryBytes; }
+        synchronized (diskIndex) { diskBytesNow = diskBytes; }
+        return new CacheStatistics(memoryHits.get(), diskHits.get(), misses.get(), memoryBytesNow, diskBytesNow);
+    }
+}
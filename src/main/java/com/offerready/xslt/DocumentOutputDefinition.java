@@ -6,17 +6,20 @@ import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 @SuppressWarnings("serial")
 public class DocumentOutputDefinition implements Serializable {
 
-    public enum OutputConversion { none, xmlToJson, xslFoToPdf, excelXmlToExcelBinary };
+    public enum OutputConversion { none, xmlToJson, xslFoToPdf, excelXmlToExcelBinary, excelXmlToXlsx, htmlToBodyFragment };
     
     public @CheckForNull File xsltFileOrNull;
     public @Nonnull XsltParameters xsltParameters;
     public @Nonnull OutputConversion outputConversion = OutputConversion.none;
     public @Nonnull InputDecimalSeparator inputDecimalSeparator = InputDecimalSeparator.dot;
     public @CheckForNull String contentType;
+    public @Nonnull List<String> htmlScriptsToIgnore = new ArrayList<>(); // see HtmlBodyExtractor.addScriptToIgnore
 
     public DocumentOutputDefinition(@Nonnull XsltParameters xsltParameters) {
         this.xsltParameters = xsltParameters;
@@ -42,7 +42,7 @@ public class DocumentOutputDefinitionParser extends OfferReadyDomParser {
         assertNoOtherElements(outputDefnElement, 
             "xslt-file", "xslt-directory", "placeholder-value", "convert-output-xml-to-json",
             "convert-output-xml-fo-to-pdf", "convert-output-xsl-fo-to-pdf", "convert-output-xml-to-excel", 
-            "content-type", "download-filename");
+            "convert-output-xml-to-xlsx", "convert-output-html-to-body-fragment", "content-type", "download-filename");
         
         final File xsltFileOrNull;
         val xsltFileEl = getOptionalSingleSubElement(outputDefnElement, "xslt-file");
@@ -60,17 +60,20 @@ public class DocumentOutputDefinitionParser extends OfferReadyDomParser {
         val contentTypeElement = getOptionalSingleSubElement(outputDefnElement, "content-type");
         if (contentTypeElement != null) contentType = getMandatoryAttribute(contentTypeElement, "type");
         
-        val result = new DocumentOutputDefinition(new XsltParameters(outputDefnElement));
+        val result = new DocumentOutputDefinition(new XsltParameters(templateContainerDirectory, outputDefnElement));
         result.xsltFileOrNull = xsltFileOrNull;
         result.outputConversion =
             getSubElements(outputDefnElement, "convert-output-xml-to-json").size() > 0 ? OutputConversion.xmlToJson :
             getSubElements(outputDefnElement, "convert-output-xml-fo-to-pdf").size() > 0 ? OutputConversion.xslFoToPdf :  // deprecated
             getSubElements(outputDefnElement, "convert-output-xsl-fo-to-pdf").size() > 0 ? OutputConversion.xslFoToPdf :
             getSubElements(outputDefnElement, "convert-output-xml-to-excel").size()  > 0 ? OutputConversion.excelXmlToExcelBinary :
+            getSubElements(outputDefnElement, "convert-output-xml-to-xlsx").size()   > 0 ? OutputConversion.excelXmlToXlsx :
+            getSubElements(outputDefnElement, "convert-output-html-to-body-fragment").size() > 0 ? OutputConversion.htmlToBodyFragment :
             OutputConversion.none;
         result.contentType = contentType;
 
-        val excel = getOptionalSingleSubElement(outputDefnElement, "convert-output-xml-to-excel");
+        val xlsx = getOptionalSingleSubElement(outputDefnElement, "convert-output-xml-to-xlsx");
+        val excel = xlsx != null ? xlsx : getOptionalSingleSubElement(outputDefnElement, "convert-output-xml-to-excel");
         if (excel != null) {
             // Deprecated, use input-decimal-separator attribute instead
             if (Boolean.parseBoolean(getOptionalAttribute(excel, "magic-numbers", "false")))
@@ -80,6 +83,13 @@ public class DocumentOutputDefinitionParser extends OfferReadyDomParser {
             if (style != null) result.inputDecimalSeparator = InputDecimalSeparator.valueOf(style);
         }
 
+        val bodyFragment = getOptionalSingleSubElement(outputDefnElement, "convert-output-html-to-body-fragment");
+        if (bodyFragment != null) {
+            assertNoOtherElements(bodyFragment, "ignore-script");
+            for (val script : getSubElements(bodyFragment, "ignore-script"))
+                result.htmlScriptsToIgnore.add(getMandatoryAttribute(script, "src-containing"));
+        }
+
         return result;
     }
 }
@@ -25,7 +25,7 @@ public class EmailPartDocumentDestination extends BufferedDocumentGenerationDest
     public static @Nonnull BodyPart newMimeBodyForDestination(BufferedDocumentGenerationDestination destination) {
         val dataSource = new DataSource() {
             @Override public String getContentType() { return destination.getContentType(); }
-            @Override public InputStream getInputStream() { return new ByteArrayInputStream(destination.getBody().toByteArray()); }
+            @Override public InputStream getInputStream() { return new ByteArrayInputStream(destination.getSegmentedBody().toByteArray()); }
             @Override public String getName() { return destination.getFilenameOrNull(); }
             @Override public OutputStream getOutputStream() { throw new RuntimeException("unreachable"); }
         };
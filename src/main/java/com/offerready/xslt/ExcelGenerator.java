@@ -5,6 +5,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -17,6 +18,7 @@ import javax.xml.parsers.SAXParserFactory;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import jxl.Workbook;
+import jxl.WorkbookSettings;
 import jxl.biff.DisplayFormat;
 import jxl.format.Alignment;
 import jxl.format.Border;
@@ -42,47 +44,37 @@ public class ExcelGenerator extends DefaultHandler {
     public enum InputDecimalSeparator {
         dot {
             public @CheckForNull Double tryParseNumber(@Nonnull String str) {
-                try { return new Double(str.replace(",","")); }
-                catch (NumberFormatException ignored) { return null; }
+                return parseDoubleOrNull(removeChars(str, ","));
             }
             public int determineDecimalPlaces(@Nonnull String string) {
-                if (string.contains(".")) return string.trim().length() - string.trim().lastIndexOf(".") - 1;
-                else return 0;
+                return countCharsAfterLast(string, '.');
             }
         },
         comma {
             public @CheckForNull Double tryParseNumber(@Nonnull String str) {
-                try { return new Double(str.replace(".", "").replace(",", ".")); }
-                catch (NumberFormatException ignored) { return null; }
+                return parseDoubleOrNull(removeChars(str, ".").replace(',', '.'));
             }
             public int determineDecimalPlaces(@Nonnull String string) {
-                if (string.contains(",")) return string.trim().length() - string.trim().lastIndexOf(",") - 1;
-                else return 0;
+                return countCharsAfterLast(string, ',');
             }
         },
         magic {
             public @CheckForNull Double tryParseNumber(@Nonnull String str) {
-                Matcher matcherDecimal = Pattern.compile("(-?[\\d,.']+)[,.](\\d{2})").matcher(str);
+                if (str.isEmpty() || "-0123456789,.'".indexOf(str.charAt(0)) < 0) return null; // neither pattern can match
+
+                Matcher matcherDecimal = magicDecimalNumber.matcher(str);
                 if (matcherDecimal.matches()) {
-                    try { 
-                        return new Double(matcherDecimal.group(1).replaceAll("[,.']", "") 
-                            + "." + matcherDecimal.group(2)); 
-                    }
-                    catch (NumberFormatException ignored) { }
+                    Double result = parseDoubleOrNull(removeChars(matcherDecimal.group(1), ",.'") + "." + matcherDecimal.group(2));
+                    if (result != null) return result;
                 }
 
-                Matcher matcherInteger = Pattern.compile("(-?[\\d,.']+)").matcher(str);
-                if (matcherInteger.matches()) {
-                    try { 
-                        return new Double(matcherInteger.group(1).replaceAll("[,.']", "")); 
-                    }
-                    catch (NumberFormatException ignored) { }
-                }
+                Matcher matcherInteger = magicIntegerNumber.matcher(str);
+                if (matcherInteger.matches()) return parseDoubleOrNull(removeChars(matcherInteger.group(1), ",.'"));
 
                 return null;
             }
             public int determineDecimalPlaces(@Nonnull String string) {
-                return (string.matches("\\s*-?[\\d',.]*[.,]\\d{2}\\s*")) ? 2 : 0;
+                return magicTwoDecimalPlaces.matcher(string).matches() ? 2 : 0;
             }
         };
         public abstract @CheckForNull Double tryParseNumber(@Nonnull String potentialNumber);
@@ -104,6 +96,40 @@ public class ExcelGenerator extends DefaultHandler {
         public abstract Colour toExcelColour();
     }
 
+    protected static final Pattern magicDecimalNumber = Pattern.compile("(-?[\\d,.']+)[,.](\\d{2})");
+    protected static final Pattern magicIntegerNumber = Pattern.compile("(-?[\\d,.']+)");
+    protected static final Pattern magicTwoDecimalPlaces = Pattern.compile("\\s*-?[\\d',.]*[.,]\\d{2}\\s*");
+
+    /** @return the string without any of the chars; the string itself if it contains none of them */
+    protected static @Nonnull String removeChars(@Nonnull String str, @Nonnull String chars) {
+        int i = 0;
+        while (i < str.length() && chars.indexOf(str.charAt(i)) < 0) i++;
+        if (i == str.length()) return str;
+
+        val result = new StringBuilder(str.length()).append(str, 0, i);
+        for (; i < str.length(); i++) if (chars.indexOf(str.charAt(i)) < 0) result.append(str.charAt(i));
+        return result.toString();
+    }
+
+    /**
+     * As "new Double(str)", but returning null if the string is not a number.
+     * Most text cannot be a number from its first character on, which is checked before throwing and catching an exception.
+     */
+    protected static @CheckForNull Double parseDoubleOrNull(@Nonnull String str) {
+        int i = 0;
+        while (i < str.length() && str.charAt(i) <= ' ') i++; // as Double.parseDouble trims the string
+        if (i == str.length() || "+-.0123456789NI".indexOf(str.charAt(i)) < 0) return null;
+
+        try { return Double.valueOf(str); }
+        catch (NumberFormatException ignored) { return null; }
+    }
+
+    protected static int countCharsAfterLast(@Nonnull String string, char separator) {
+        if (string.indexOf(separator) < 0) return 0;
+        val trimmed = string.trim();
+        return trimmed.length() - trimmed.lastIndexOf(separator) - 1;
+    }
+
     @EqualsAndHashCode
     protected static class CellFormat {
         public boolean isCentered = false;
@@ -138,20 +164,39 @@ public class ExcelGenerator extends DefaultHandler {
     
     protected static class CellFromHtml {
         public int colspan = 1;
-        public @Nonnull CellFormat format = new CellFormat();
+        public @Nonnull CellFormat format;
         public boolean forceText = false;
         public @Nonnull StringBuilder string = new StringBuilder();
+
+        public CellFromHtml(@Nonnull CellFormat format) { this.format = format; }
     }
+
+    protected static final Pattern centeredStyle = Pattern.compile(".*text-align:\\s*center.*");
+    protected static final Pattern boldStyle = Pattern.compile(".*font-weight:\\s*bold.*");
+    protected static final Pattern colorStyle = Pattern.compile("color:\\s*(\\w+)");
+    protected static final int maxStylesCached = 1000;
+
+    protected static final String[] numberFormatForDecimalPlaces = new String[16];
+    static { for (int i = 0; i < numberFormatForDecimalPlaces.length; i++) numberFormatForDecimalPlaces[i] = newNumberFormat(i); }
+
+    protected static final double[] powersOfTen = new double[16];
+    static { for (int i = 0; i < powersOfTen.length; i++) powersOfTen[i] = Double.parseDouble("1e" + i); }
     
     // Configuration
     protected @Nonnull InputDecimalSeparator inputDecimalSeparator;
     
-    // Connection to Excel
-    protected @Nonnull WritableWorkbook workbook;
-    protected @Nonnull WritableSheet excelSheet;
+    // Connection to Excel; null in subclasses which write another format
+    protected WorkbookSettings workbookSettings;
+    protected WritableWorkbook workbook;
+    protected WritableSheet excelSheet;
 
     // Intermediate store of values
     protected int nextRowInExcel = 0;
+    protected final @Nonnull Map<CellAndNumberFormat, WritableCellFormat> formats = new HashMap<>();
+    protected final @Nonnull Map<CellFormat, Map<String, WritableCellFormat>> formatsForCellFormat = new IdentityHashMap<>();
+    protected final @Nonnull Map<CellFormat, CellFormat> canonicalCellFormats = new HashMap<>();
+    protected final @Nonnull CellFormat unformatted = getCanonicalCellFormat(new CellFormat());
+    protected final @Nonnull Map<String, CellFormat> cellFormatForStyle = new HashMap<>();
     protected @Nonnull List<Integer> maxCharsSeenInColumn = new ArrayList<Integer>();
     protected List<List<CellFromHtml>> currentHeadMatrix=null, currentFootMatrix=null, currentBodyMatrix=null, currentMatrix=null;
     protected List<CellFromHtml> currentRow=null;
@@ -167,9 +212,20 @@ public class ExcelGenerator extends DefaultHandler {
     public ExcelGenerator(@Nonnull InputDecimalSeparator inputDecimalSeparator, @Nonnull OutputStream xls) {
         this.inputDecimalSeparator = inputDecimalSeparator;
 
-        workbook = Workbook.createWorkbook(xls);
+        // jxl checks, before writing, that no two merged ranges intersect, by comparing each with every other.
+        // Each cell is merged with the columns of its colspan, so this takes most of the time of a large document.
+        // These ranges cannot intersect unless a colspan is less than one, in which case the check is enabled again.
+        workbookSettings = new WorkbookSettings();
+        workbookSettings.setMergedCellChecking(false);
+
+        workbook = Workbook.createWorkbook(xls, workbookSettings);
         excelSheet = workbook.createSheet("Report", 0);
     }
+
+    /** For subclasses which write the cells in another format */
+    protected ExcelGenerator(@Nonnull InputDecimalSeparator inputDecimalSeparator) {
+        this.inputDecimalSeparator = inputDecimalSeparator;
+    }
     
     /** @return String or Double */
     protected @Nonnull Object parseString(@Nonnull String str) {
@@ -179,7 +235,7 @@ public class ExcelGenerator extends DefaultHandler {
         return str.trim();
     }
 
-    protected @Nonnull String getNumberFormat(int decimalPlaces) {
+    protected static @Nonnull String newNumberFormat(int decimalPlaces) {
         StringBuilder f = new StringBuilder("#,##0");
         if (decimalPlaces > 0) {
             f.append(".");
@@ -188,42 +244,116 @@ public class ExcelGenerator extends DefaultHandler {
         return f.toString();
     }
 
-    @SneakyThrows(WriteException.class)
+    protected @Nonnull String getNumberFormat(int decimalPlaces) {
+        if (decimalPlaces < numberFormatForDecimalPlaces.length) return numberFormatForDecimalPlaces[decimalPlaces];
+        return newNumberFormat(decimalPlaces);
+    }
+
+    /**
+     * @return the length of String.format("%.nf", value), where n is the number of decimal places.
+     *    <p>
+     * Only the width of a number cell is needed, not its text, so this is computed from the value where that is easy.
+     * Where rounding might add a digit, e.g. 99.995 which is formatted as "100.00", the value is formatted.
+     */
+    protected static int getFormattedLength(double value, int decimalPlaces) {
+        val magnitude = Math.abs(value);
+        if ( ! (magnitude < powersOfTen[powersOfTen.length - 1])) return String.format("%."+decimalPlaces+"f", value).length();
+
+        val integerPart = (long) magnitude;
+        int digits = 1;
+        while (integerPart >= powersOfTen[digits]) digits++;
+
+        val roundingMargin = 1 / powersOfTen[Math.min(decimalPlaces, powersOfTen.length - 1)] + Math.ulp(magnitude);
+        if (powersOfTen[digits] - magnitude <= roundingMargin) return String.format("%."+decimalPlaces+"f", value).length();
+
+        val sign = Double.doubleToRawLongBits(value) < 0 ? 1 : 0; // String.format writes "-0.00" for -0.0, and for -0.001
+        return sign + digits + (decimalPlaces > 0 ? 1 + decimalPlaces : 0);
+    }
+
+    /** @return an equal format, the same object for all equal formats, so that formats may be compared by identity */
+    protected @Nonnull CellFormat getCanonicalCellFormat(@Nonnull CellFormat format) {
+        return canonicalCellFormats.computeIfAbsent(format, f -> f);
+    }
+
+    protected @Nonnull CellFormat parseStyle(@Nonnull String style) {
+        val result = new CellFormat();
+        result.isCentered = centeredStyle.matcher(style).matches();
+        result.isBold = boldStyle.matcher(style).matches();
+        result.hasTopBorder = style.contains("border-top:");
+
+        Matcher colorMatcher = colorStyle.matcher(style);
+        if (colorMatcher.find()) {
+            try { result.color = Color.valueOf(colorMatcher.group(1)); }
+            catch (IllegalArgumentException ignored) { } // if user writes "color:purple", just ignore it
+        }
+
+        return getCanonicalCellFormat(result);
+    }
+
+    /** Reports generally use a few styles for many cells, so the format of each style is parsed once */
+    protected @Nonnull CellFormat getCellFormatForStyle(@Nonnull String style) {
+        val cached = cellFormatForStyle.get(style);
+        if (cached != null) return cached;
+
+        val result = parseStyle(style);
+        if (cellFormatForStyle.size() < maxStylesCached) cellFormatForStyle.put(style, result);
+        return result;
+    }
+
+    /** @param format a canonical format, see {@link #getCanonicalCellFormat(CellFormat)} */
+    protected @Nonnull WritableCellFormat getWritableCellFormat(@Nonnull CellFormat format, @CheckForNull String numberFormat) {
+        Map<String, WritableCellFormat> formatForNumberFormat = formatsForCellFormat.computeIfAbsent(format, f -> new HashMap<>());
+        WritableCellFormat result = formatForNumberFormat.get(numberFormat);
+        if (result == null) {
+            result = formats.computeIfAbsent(new CellAndNumberFormat(format, numberFormat), CellAndNumberFormat::newFormat);
+            formatForNumberFormat.put(numberFormat, result);
+        }
+        return result;
+    }
+
+    protected void recordColumnWidth(int colIdx, int columnWidthChars) {
+        while (maxCharsSeenInColumn.size() <= colIdx) maxCharsSeenInColumn.add(0);
+        if (columnWidthChars > maxCharsSeenInColumn.get(colIdx)) maxCharsSeenInColumn.set(colIdx, columnWidthChars);
+    }
+
     protected void writeMatrixToExcel(@Nonnull List<List<CellFromHtml>> matrix) {
         // If we generate a new WritableCellFormat for each cell, at some point we get the error:
         //    Warning:  Maximum number of format records exceeded.  Using default format.
         // Therefore, cache them
-        val formats = new HashMap<CellAndNumberFormat, WritableCellFormat>();
-
-        for (val row : matrix) {
-            int colIdx = 0;
-            for (val cell : row) {
-                val cellValue = cell.forceText ? cell.string.toString() : parseString(cell.string.toString());
-                int columnWidthChars = 0;
-                CellValue excelCell;
-                if (cellValue instanceof Double) {
-                    int decimalPlaces = inputDecimalSeparator.determineDecimalPlaces(cell.string.toString());
-                    val cellAndNumberFormat = new CellAndNumberFormat(cell.format, getNumberFormat(decimalPlaces));
-                    val format = formats.computeIfAbsent(cellAndNumberFormat, CellAndNumberFormat::newFormat);
-                    excelCell = new Number(colIdx, nextRowInExcel, (Double) cellValue, format);
-                    columnWidthChars = String.format("%."+decimalPlaces+"f", ((Double) cellValue)).length();
-                } else if (cellValue instanceof String) {
-                    val cellAndNumberFormat = new CellAndNumberFormat(cell.format, null);
-                    val format = formats.computeIfAbsent(cellAndNumberFormat, CellAndNumberFormat::newFormat);
-                    excelCell = new Label(colIdx, nextRowInExcel, (String) cellValue, format);
-                    columnWidthChars = ((String) cellValue).length();
-                } else {
-                    throw new RuntimeException("Unreachable: " + cellValue.getClass());
-                }
+        formats.clear();
+        formatsForCellFormat.clear();
 
-                while (maxCharsSeenInColumn.size() <= colIdx) maxCharsSeenInColumn.add(0);
-                if (columnWidthChars > maxCharsSeenInColumn.get(colIdx)) maxCharsSeenInColumn.set(colIdx, columnWidthChars);
+        for (val row : matrix) writeRow(row);
+    }
 
-                excelSheet.addCell(excelCell);
-                excelSheet.mergeCells(colIdx, nextRowInExcel, (colIdx += cell.colspan) - 1, nextRowInExcel);
+    @SneakyThrows(WriteException.class)
+    protected void writeRow(@Nonnull List<CellFromHtml> row) {
+        int colIdx = 0;
+        for (val cell : row) {
+            val text = cell.string.toString();
+            val cellValue = cell.forceText ? text : parseString(text);
+            int columnWidthChars = 0;
+            CellValue excelCell;
+            if (cellValue instanceof Double) {
+                int decimalPlaces = inputDecimalSeparator.determineDecimalPlaces(text);
+                val format = getWritableCellFormat(cell.format, getNumberFormat(decimalPlaces));
+                excelCell = new Number(colIdx, nextRowInExcel, (Double) cellValue, format);
+                columnWidthChars = getFormattedLength((Double) cellValue, decimalPlaces);
+            } else if (cellValue instanceof String) {
+                val format = getWritableCellFormat(cell.format, null);
+                excelCell = new Label(colIdx, nextRowInExcel, (String) cellValue, format);
+                columnWidthChars = ((String) cellValue).length();
+            } else {
+                throw new RuntimeException("Unreachable: " + cellValue.getClass());
             }
-            nextRowInExcel++;
+
+            recordColumnWidth(colIdx, columnWidthChars);
+
+            excelSheet.addCell(excelCell);
+            if (cell.colspan < 1) workbookSettings.setMergedCellChecking(true);
+            excelSheet.mergeCells(colIdx, nextRowInExcel, (colIdx += cell.colspan) - 1, nextRowInExcel);
         }
+        nextRowInExcel++;
     }
     
     @Override public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
@@ -239,27 +369,21 @@ public class ExcelGenerator extends DefaultHandler {
         if ("script".equals(qName)) inScript = true;
         if ("thead".equals(qName)) currentMatrix = currentHeadMatrix;
         if ("tfoot".equals(qName)) currentMatrix = currentFootMatrix;
-        if ("tr".equals(qName)) currentMatrix.add(currentRow = new ArrayList<>());
+        if ("tr".equals(qName)) currentRow = new ArrayList<>();
         if ("td".equals(qName) || "th".equals(qName)) {
-            currentRow.add(currentCell = new CellFromHtml());
+            String style = attributes.getValue("style");
+            currentRow.add(currentCell = new CellFromHtml(style == null ? unformatted : getCellFormatForStyle(style)));
             String colspan = attributes.getValue("colspan");
             if (colspan != null) currentCell.colspan = Integer.parseInt(colspan);
-            String style = attributes.getValue("style");
-            if (style != null) {
-                currentCell.format.isCentered = style.matches(".*text-align:\\s*center.*");
-                currentCell.format.isBold = style.matches(".*font-weight:\\s*bold.*");
-                currentCell.format.hasTopBorder = style.contains("border-top:");
-
-                Matcher colorMatcher = Pattern.compile("color:\\s*(\\w+)").matcher(style);
-                if (colorMatcher.find()) {
-                    try { currentCell.format.color = Color.valueOf(colorMatcher.group(1)); }
-                    catch (IllegalArgumentException ignored) { } // if user writes "color:purple", just ignore it
-                }
-            }
             if ("text".equals(attributes.getValue("excel-type"))) currentCell.forceText = true;
         }
     }
   
+    /** Called for each row of the outermost table which contains text; rows are written when the table ends */
+    protected void endRow(@Nonnull List<CellFromHtml> row) {
+        currentMatrix.add(row);
+    }
+
     @Override public void endElement(String uri, String localName, String qName) throws SAXException {
         if ("table".equals(qName)) {
             if (tableDepth == 1) {
@@ -276,7 +400,7 @@ public class ExcelGenerator extends DefaultHandler {
         if ("tr".equals(qName)) {
             boolean isEmpty = true;
             for (CellFromHtml cell : currentRow) if (cell.string.length() > 0) isEmpty = false;
-            if (isEmpty) currentMatrix.remove(currentMatrix.size()-1);
+            if ( ! isEmpty) endRow(currentRow);
             currentRow = null;
         }
         if ("td".equals(qName) || "th".equals(qName)) currentCell = null;
@@ -286,9 +410,11 @@ public class ExcelGenerator extends DefaultHandler {
         if (tableDepth != 1) return;
         if (inScript) return;
         if (currentCell != null) {
-            String chars = new String(ch, start, length);
-            chars = chars.replace("\u00A0", " "); // Non-breaking spaces aren't desired (trim(), later, removes only normal space)
-            currentCell.string.append(chars);
+            val string = currentCell.string;
+            int appendedIdx = string.length();
+            string.append(ch, start, length);
+            for (; appendedIdx < string.length(); appendedIdx++)  // Non-breaking spaces aren't desired (trim(), later, removes only normal space)
+                if (string.charAt(appendedIdx) == '\u00A0') string.setCharAt(appendedIdx, ' ');
         }
     }
     
@@ -1,10 +1,15 @@
 package com.offerready.xslt;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeMap;
 import java.util.regex.Pattern;
 
 import com.databasesandlife.util.Timer;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
 import lombok.val;
 
 import javax.annotation.CheckForNull;
@@ -13,28 +18,40 @@ import javax.annotation.Nonnull;
 /**
  * Extracts the body of an HTML report document.
  *    <p>
- * An "HTML document generator" generates HTML, suitable for viewing in a browser, or inclusion in an iframe. 
+ * An "HTML document generator" generates HTML, suitable for viewing in a browser, or inclusion in an iframe.
  * However this HTML contains e.g. &lt;html&gt; tags which are not suitable for display within a &lt;div&gt;.
  * Objects of this class extract the relevant information from the HTML document, and return an HTML
  * string suitable for inclusion in a &lt;div&gt;.
  *    <p>
  * The entire contents of the &lt;body&gt; are returned.
  * Any &lt;style&gt; tags in the &lt;head&gt; are extracted are prepended to this body.
+ *    <p>
+ * The document is scanned once, for the start of all the elements extracted.
+ * An element within another element which is extracted, for example a &lt;style&gt; within the &lt;body&gt;, is
+ * not extracted a second time. An element whose end is missing is not extracted.
+ *    <p>
+ * The extractor can also be used as the last stage of XSLT output, see {@link #newExtractingWriter(Writer)}.
  */
 public class HtmlBodyExtractor {
-    
+
     protected List<String> scriptsToIgnore = new ArrayList<String>();
-    
-    protected static class Range {
-        int startIncl, endExcl;
-        Range(int s, int e) { startIncl = s; endExcl = e; }
-        boolean overlaps(Range x) { 
-            if (x.endExcl <= startIncl) return false;
-            if (x.startIncl >= endExcl) return false;
-            return true;
-        }
+
+    /** The src attribute is group 1 */
+    protected static final Pattern scriptTag = Pattern.compile("<script src=['\"]([^'\"]*)['\"]></script>");
+
+    /** What is extracted; where elements overlap, earlier ones take precedence */
+    @RequiredArgsConstructor
+    protected enum Extracted {
+        body               ("<body",         ">",  "</body>"),
+        ieOnly             ("<!--[if IE]>",  null, "<![endif]-->"),
+        notIe              ("<!--[if !IE]>", null, "<!--<![endif]-->"),
+        style              ("<style",        null, "</style>");
+
+        final @Nonnull String start;
+        final @CheckForNull String endOfStartOrNull; // if not null, only the content is extracted, not the start and end tags
+        final @Nonnull String end;
     }
-    
+
     /**
      * For example if JQuery should not be included; simply add "jquery" to this method and this &lt;script&gt;
      * tag will not be included in the result.
@@ -43,48 +60,128 @@ public class HtmlBodyExtractor {
         scriptsToIgnore.add(scriptSubstring);
         return this;
     }
-    
+
+    protected static boolean startsWith(@Nonnull CharSequence text, int idx, @Nonnull String prefix) {
+        if (idx + prefix.length() > text.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) if (text.charAt(idx + i) != prefix.charAt(i)) return false;
+        return true;
+    }
+
+    protected static int indexOf(@Nonnull CharSequence text, char c, int fromIdx) {
+        if (text instanceof String) return ((String) text).indexOf(c, fromIdx);
+        for (int i = fromIdx; i < text.length(); i++) if (text.charAt(i) == c) return i;
+        return -1;
+    }
+
+    protected static int indexOf(@Nonnull CharSequence text, @Nonnull String str, int fromIdx) {
+        if (text instanceof String) return ((String) text).indexOf(str, fromIdx);
+        val first = str.charAt(0);
+        for (int i = Math.max(fromIdx, 0); i <= text.length() - str.length(); i++)
+            if (text.charAt(i) == first && startsWith(text, i, str)) return i;
+        return -1;
+    }
+
+    /** Appends the range, with any script tags to ignore replaced by a comment */
+    @SneakyThrows(IOException.class)
+    protected void appendIgnoringScripts(@Nonnull Appendable result, @Nonnull CharSequence html, int startIncl, int endExcl) {
+        if (scriptsToIgnore.isEmpty()) { result.append(html, startIncl, endExcl); return; }
+
+        int pos = startIncl;
+        val m = scriptTag.matcher(html);
+        for (int idx = indexOf(html, '<', startIncl); idx >= 0 && idx < endExcl; idx = indexOf(html, '<', idx)) {
+            if ( ! startsWith(html, idx, "<script src=") || ! m.region(idx, endExcl).lookingAt()) { idx++; continue; }
+            idx = m.end();
+            String ignored = null;
+            for (val s : scriptsToIgnore) if (m.group(1).contains(s)) { ignored = s; break; }
+            if (ignored == null) continue;
+            result.append(html, pos, m.start()).append("<!-- ignoring ").append(ignored).append(" -->");
+            pos = m.end();
+        }
+        result.append(html, pos, endExcl);
+    }
+
     protected @Nonnull String ignoreScripts(@Nonnull String html) {
-        for (val s : scriptsToIgnore)
-            html = html.replaceAll(
-                "<script src=['\"][^'\"]*" + Pattern.quote(s) + "[^'\"]*['\"]></script>", 
-                "<!-- ignoring " + s + " -->");
-        return html;
+        val result = new StringBuilder(html.length());
+        appendIgnoringScripts(result, html, 0, html.length());
+        return result.toString();
     }
-    
-    protected void extractElements(
-        @Nonnull StringBuilder result, @Nonnull String input,
-        @Nonnull List<Range> ranges,
-        @Nonnull String start, @CheckForNull String endOfStartOrNull, @Nonnull String end
-    ) {
-        int startIdx = -1;
-        val ourResult = new StringBuilder();
-        while ((startIdx = input.indexOf(start, startIdx+1)) >= 0) {
-            int idxOfEndTag = input.indexOf(end, startIdx);
-            Range range = endOfStartOrNull == null 
-                ? new Range(startIdx, idxOfEndTag + end.length())
-                : new Range(input.indexOf(endOfStartOrNull, startIdx) + endOfStartOrNull.length(), idxOfEndTag);
-            boolean rangeOverlaps = false;
-            for (Range r : ranges) if (r.overlaps(range)) rangeOverlaps = true;
-            if (rangeOverlaps) continue;
-            ourResult.append(ignoreScripts(input.substring(range.startIncl, range.endExcl)));
-            ranges.add(range);
+
+    /** @return the start (incl) and end (excl) of each element of each type which is extracted, in document order */
+    protected static @Nonnull List<List<int[]>> findRanges(@Nonnull CharSequence html) {
+        val candidates = new ArrayList<List<int[]>>();
+        for (int k = 0; k < Extracted.values().length; k++) candidates.add(new ArrayList<>());
+
+        for (int idx = indexOf(html, '<', 0); idx >= 0; idx = indexOf(html, '<', idx + 1)) {
+            for (val e : Extracted.values()) {
+                if ( ! startsWith(html, idx, e.start)) continue;
+                val idxOfEndTag = indexOf(html, e.end, idx);
+                if (idxOfEndTag < 0) continue;
+                val range = e.endOfStartOrNull == null
+                    ? new int[] { idx, idxOfEndTag + e.end.length() }
+                    : new int[] { indexOf(html, e.endOfStartOrNull, idx) + e.endOfStartOrNull.length(), idxOfEndTag };
+                if (range[0] > range[1]) continue;
+                candidates.get(e.ordinal()).add(range);
+            }
         }
-        ourResult.append("\n");
-        result.insert(0, ourResult);
+
+        // Extracted ranges never overlap, so the one starting latest before a candidate's end is the only one which can
+        val endForStart = new TreeMap<Integer, Integer>();
+        val result = new ArrayList<List<int[]>>();
+        for (val ranges : candidates) {
+            val extracted = new ArrayList<int[]>();
+            for (val range : ranges) {
+                val before = endForStart.lowerEntry(range[1]);
+                if (before != null && before.getValue() > range[0]) continue;
+                endForStart.merge(range[0], range[1], Math::max);
+                extracted.add(range);
+            }
+            result.add(extracted);
+        }
+        return result;
     }
-    
-    public @Nonnull String extractBody(@Nonnull String htmlText) {
+
+    /** Appends the extracted elements: styles first, then conditional comments, then the body */
+    @SneakyThrows(IOException.class)
+    public void extractBody(@Nonnull CharSequence htmlText, @Nonnull Appendable result) {
         try (val t = new Timer("HtmlBodyExtractor.extractBody")) {
-            val result  = new StringBuilder();  // 2.5 seconds at 1k iterations on i3
-            val ranges = new ArrayList<Range>();
-            
-            extractElements(result, htmlText, ranges, "<body",         ">",  "</body>");
-            extractElements(result, htmlText, ranges, "<!--[if IE]>",  null, "<![endif]-->");
-            extractElements(result, htmlText, ranges, "<!--[if !IE]>", null, "<!--<![endif]-->");
-            extractElements(result, htmlText, ranges, "<style",        null, "</style>");
-                
-            return result.toString();
+            val ranges = findRanges(htmlText);
+            for (int k = ranges.size() - 1; k >= 0; k--) {
+                for (val r : ranges.get(k)) appendIgnoringScripts(result, htmlText, r[0], r[1]);
+                result.append("\n");
+            }
         }
     }
+
+    public @Nonnull String extractBody(@Nonnull String htmlText) {
+        val result = new StringBuilder(htmlText.length());
+        extractBody(htmlText, result);
+        return result.toString();
+    }
+
+    /**
+     * A writer to which an HTML document can be written, for example by an XSLT transformation,
+     * and which writes only the extracted body to the underlying writer, when it is closed.
+     *    <p>
+     * The document is held until it is closed: the styles in the head are written before the body,
+     * and what is extracted depends on elements which may follow.
+     * The document is neither encoded nor copied into a string.
+     */
+    public @Nonnull Writer newExtractingWriter(@Nonnull Writer out) {
+        return new Writer() {
+            protected final @Nonnull StringBuilder html = new StringBuilder();
+            protected boolean closed = false;
+
+            @Override public void write(int c) { html.append((char) c); }
+            @Override public void write(@Nonnull char[] c, int off, int len) { html.append(c, off, len); }
+            @Override public void write(@Nonnull String str, int off, int len) { html.append(str, off, off + len); }
+            @Override public void flush() { }
+
+            @Override public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                extractBody(html, out);
+                out.close();
+            }
+        };
+    }
 }
@@ -0,0 +1,136 @@
+package com.offerready.xslt;
+
+import lombok.Getter;
+import lombok.val;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides whether, and how, a document sent over HTTP is compressed.
+ *    <p>
+ * The encoding is chosen from the request's "Accept-Encoding" header: "gzip" or "deflate".
+ * Documents whose content type is already compressed, such as PDF or Excel, and documents smaller than a minimum size,
+ * are not compressed, as compressing them costs CPU and saves little or nothing.
+ */
+public class HttpCompressionPolicy {
+
+    public static final @Nonnull List<String> defaultExcludedContentTypes = Collections.unmodifiableList(Arrays.asList(
+        "application/pdf", "application/ms-excel", "application/vnd.ms-excel", "application/vnd.openxmlformats",
+        "application/zip", "application/gzip", "image/", "audio/", "video/"));
+
+    public static final @Nonnull HttpCompressionPolicy defaultPolicy = new HttpCompressionPolicy(1024, defaultExcludedContentTypes);
+
+    protected final @Getter int minSizeBytes;
+    protected final @Nonnull List<String> excludedContentTypes;
+
+    /** @param excludedContentTypes content types, or prefixes of them such as "image/", which are not compressed */
+    public HttpCompressionPolicy(int minSizeBytes, @Nonnull List<String> excludedContentTypes) {
+        this.minSizeBytes = minSizeBytes;
+        this.excludedContentTypes = excludedContentTypes;
+    }
+
+    public boolean isCompressible(@CheckForNull String contentType) {
+        if (contentType == null) return false;
+        val type = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+        for (val excluded : excludedContentTypes) if (type.startsWith(excluded)) return false;
+        return true;
+    }
+
+    /** @return the q-value for the encoding in an Accept-Encoding header, taking "*" into account */
+    protected static double getQuality(@Nonnull String acceptEncoding, @Nonnull String encoding) {
+        Double exact = null, wildcard = null;
+        for (val part : acceptEncoding.split(",")) {
+            val params = part.split(";");
+            val name = params[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                val p = params[i].trim();
+                if (p.startsWith("q=")) {
+                    try { q = Double.parseDouble(p.substring(2).trim()); }
+                    catch (NumberFormatException e) { q = 0; }
+                }
+            }
+            if (name.equals(encoding) || (encoding.equals("gzip") && name.equals("x-gzip"))) exact = q;
+            else if (name.equals("*")) wildcard = q;
+        }
+        if (exact != null) return exact;
+        if (wildcard != null) return wildcard;
+        return 0;
+    }
+
+    /** @return "gzip", "deflate", or null if the client accepts neither */
+    public static @CheckForNull String negotiate(@CheckForNull String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        val gzip = getQuality(acceptEncoding, "gzip");
+        val deflate = getQuality(acceptEncoding, "deflate");
+        if (gzip > 0 && gzip >= deflate) return "gzip";
+        if (deflate > 0) return "deflate";
+        return null;
+    }
+
+    /** @param encoding "gzip" or "deflate" */
+    public static @Nonnull DeflaterOutputStream newCompressingStream(@Nonnull String encoding, @Nonnull OutputStream out)
+    throws IOException {
+        switch (encoding) {
+            case "gzip": return new GZIPOutputStream(out, 8 * 1024);
+            case "deflate": return new DeflaterOutputStream(out); // HTTP "deflate" is the zlib format
+            default: throw new IllegalArgumentException("Unknown encoding '" + encoding + "'");
+        }
+    }
+
+    public interface EncodingListener {
+        /** Called before the first byte is written, with the encoding chosen, or null if the document is not compressed */
+        void onEncoding(@CheckForNull String encodingOrNull);
+    }
+
+    /**
+     * Holds back the first bytes written, until it is known whether the document reaches the minimum size.
+     * Then writes the document compressed, or, if it is smaller, as it is.
+     */
+    public @Nonnull OutputStream newCompressingStreamIfLarge(
+        @Nonnull String encoding, @Nonnull OutputStream out, @Nonnull EncodingListener listener
+    ) {
+        return new OutputStream() {
+            protected @CheckForNull ByteArrayOutputStream start = new ByteArrayOutputStream(); // null once decided
+            protected @Nonnull OutputStream target = out;
+
+            protected void decide(boolean compress) throws IOException {
+                listener.onEncoding(compress ? encoding : null);
+                if (compress) target = newCompressingStream(encoding, out);
+                start.writeTo(target);
+                start = null;
+            }
+
+            @Override public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+                if (start != null) {
+                    if (start.size() + len < minSizeBytes) { start.write(b, off, len); return; }
+                    decide(true);
+                }
+                target.write(b, off, len);
+            }
+
+            @Override public void flush() throws IOException {
+                if (start == null) target.flush(); // flushing before the decision would commit the headers
+            }
+
+            @Override public void close() throws IOException {
+                if (start != null) decide(false);
+                target.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,498 @@
+package com.offerready.xslt;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import lombok.val;
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+import org.json.XML;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.databasesandlife.util.Timer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes JSON to a stream from the SAX events of an XML document, for example the output of an XSLT.
+ *    <p>
+ * The conventions are those of {@link XML#toJSONObject(String)}: the document becomes an object whose key is the
+ * name of the root element; attributes and child elements become keys; elements with the same name become an array;
+ * an element with only text becomes that value; text alongside attributes or child elements becomes the key "content";
+ * "true", "false", "null" and numbers become JSON values of those types.
+ *    <p>
+ * Unlike {@link XML#toJSONObject(String)}, the document is not held in memory. Whether an element becomes an array
+ * can only be known once its siblings are seen, so the children of each element are held until they exceed
+ * {@link #maxBufferedChars}, after which they are written as they arrive. After that point, an element
+ * with the same name as an earlier sibling, but not directly following it, cannot be merged into an array with it,
+ * and an exception is thrown.
+ *    <p>
+ * Optionally, such a document can still be converted: the JSON is held, and the XML recorded, both in temporary files
+ * once they exceed {@link #maxBufferedChars}. The JSON is then only written once the document ends; if such an element
+ * has been seen, the recorded XML is converted again, holding all children in memory, as {@link XML#toJSONObject(String)} does.
+ * {@link #close()} deletes the temporary files, if the document does not end, for example as the XSLT fails.
+ */
+public class JsonGenerator extends DefaultHandler implements AutoCloseable {
+
+    /** Characters held in memory, and in a temporary file once they exceed {@link #maxBufferedChars} */
+    protected class SpillingWriter extends Writer {
+        protected final @Nonnull String prefix;
+        protected @Nonnull StringBuilder memory = new StringBuilder();
+        protected @CheckForNull File fileOrNull = null;
+        protected @CheckForNull Writer fileWriterOrNull = null;
+
+        protected SpillingWriter(@Nonnull String prefix) { this.prefix = prefix; }
+
+        @Override public void write(@Nonnull char[] chars, int offset, int length) throws IOException {
+            if (fileWriterOrNull == null && memory.length() + (long) length > maxBufferedChars) {
+                fileOrNull = File.createTempFile(prefix, ".tmp", tempDirectoryOrNull);
+                fileWriterOrNull = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileOrNull), UTF_8), 64 * 1024);
+                fileWriterOrNull.append(memory);
+                memory = new StringBuilder();
+            }
+            if (fileWriterOrNull == null) memory.append(chars, offset, length);
+            else fileWriterOrNull.write(chars, offset, length);
+        }
+
+        @Override public @Nonnull Writer append(@Nonnull CharSequence str) throws IOException {
+            if (fileWriterOrNull == null && memory.length() + (long) str.length() <= maxBufferedChars) memory.append(str);
+            else write(str.toString());
+            return this;
+        }
+
+        /** @return what has been written; no more may be written */
+        protected @Nonnull Reader newReader() throws IOException {
+            if (fileWriterOrNull == null) return new StringReader(memory.toString());
+            fileWriterOrNull.close();
+            return new BufferedReader(new InputStreamReader(new FileInputStream(fileOrNull), UTF_8), 64 * 1024);
+        }
+
+        @Override public void flush() { }
+
+        /** Deletes the temporary file */
+        @Override public void close() throws IOException {
+            if (fileWriterOrNull != null) fileWriterOrNull.close();
+            if (fileOrNull != null) Files.deleteIfExists(fileOrNull.toPath());
+            fileWriterOrNull = null;
+            fileOrNull = null;
+        }
+    }
+
+    /** Another element with the same name has already been written, so the XML cannot be converted as it arrives */
+    protected static class NotAdjacentException extends SAXException {
+        protected NotAdjacentException(@Nonnull String msg) { super(msg); }
+    }
+
+    protected interface Sink {
+        void append(@Nonnull CharSequence str) throws SAXException;
+    }
+
+    protected enum GroupState { first, array, single }
+
+    /** Holds the output of a child element, until it is known whether it is a single value or part of an array */
+    protected static class ChildSink implements Sink {
+        protected final @Nonnull Element parent;
+        protected @CheckForNull StringBuilder buffer = new StringBuilder(); // null once written directly to parent
+
+        protected ChildSink(@Nonnull Element parent) { this.parent = parent; }
+
+        @Override public void append(@Nonnull CharSequence str) throws SAXException {
+            if (buffer == null) parent.out.append(str);
+            else { buffer.append(str); parent.childGrew(); }
+        }
+    }
+
+    /** An element, or the document, being converted to a JSON value */
+    protected class Element {
+        protected final int depth;
+        protected final @Nonnull Sink out;
+        protected boolean isObject, streaming = false, keyWritten = false;
+        protected final @Nonnull StringBuilder text = new StringBuilder();
+        protected final @Nonnull List<CharSequence> content = new ArrayList<>();
+
+        // Before streaming: all keys, in order of first appearance, with their values
+        protected final @Nonnull Map<String, List<CharSequence>> pending = new LinkedHashMap<>();
+        protected long pendingChars = 0;
+
+        // While streaming: keys already written, and the key of the most recent child elements
+        protected final @Nonnull Set<String> writtenNames = new HashSet<>();
+        protected @CheckForNull String groupName = null;
+        protected @CheckForNull GroupState groupState = null;
+        protected @CheckForNull CharSequence groupFirstValue = null;
+
+        protected @CheckForNull String childName = null;
+        protected @CheckForNull ChildSink child = null;
+
+        protected Element(int depth, @Nonnull Sink out, boolean isObject) {
+            this.depth = depth; this.out = out; this.isObject = isObject;
+        }
+
+        protected @Nonnull NotAdjacentException notAdjacent(@Nonnull String name) {
+            return new NotAdjacentException("Elements or attributes named '" + name + "' cannot be converted to a JSON array: " +
+                "more than " + maxBufferedChars + " characters of JSON were converted between them");
+        }
+
+        protected void addAttribute(@Nonnull String name, @Nonnull String value) {
+            val json = JSONObject.valueToString(XML.stringToValue(value));
+            pending.computeIfAbsent(name, k -> new ArrayList<>()).add(json);
+            pendingChars += json.length();
+            isObject = true;
+        }
+
+        protected void endText() {
+            val str = text.toString().trim();
+            text.setLength(0);
+            if ( ! str.isEmpty()) content.add(JSONObject.valueToString(XML.stringToValue(str)));
+        }
+
+        protected void writeKey(@Nonnull String name) throws SAXException {
+            if (keyWritten) out.append(",");
+            out.append("\n");
+            for (int i = 0; i <= depth; i++) out.append("  ");
+            out.append(JSONObject.quote(name));
+            out.append(": ");
+            keyWritten = true;
+        }
+
+        protected void writeValues(@Nonnull List<CharSequence> values) throws SAXException {
+            if (values.size() == 1) { out.append(values.get(0)); return; }
+            out.append("[");
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) out.append(", ");
+                out.append(values.get(i));
+            }
+            out.append("]");
+        }
+
+        protected void writeGroup(@Nonnull String name, @Nonnull List<CharSequence> values) throws SAXException {
+            if (writtenNames.contains(name)) throw notAdjacent(name);
+            writeKey(name);
+            writeValues(values);
+            writtenNames.add(name);
+        }
+
+        protected void closeGroup() throws SAXException {
+            if (groupName == null) return;
+            if (groupState == GroupState.first) { writeKey(groupName); out.append(groupFirstValue); }
+            else if (groupState == GroupState.array) out.append("]");
+            writtenNames.add(groupName);
+            groupName = null;
+        }
+
+        /** Children are too large to hold: write those seen so far, and write further children as they arrive */
+        protected void startStreaming() throws SAXException {
+            streaming = true;
+            out.append("{");
+            for (val e : pending.entrySet())
+                if ( ! e.getKey().equals(childName)) writeGroup(e.getKey(), e.getValue());
+
+            val earlier = pending.get(childName);
+            pending.clear();
+            pendingChars = 0;
+            groupName = childName;
+            if (earlier == null) groupState = GroupState.first;
+            else {
+                writeKey(childName);
+                out.append("[");
+                for (val value : earlier) { out.append(value); out.append(", "); }
+                val buffer = child.buffer;
+                child.buffer = null;
+                out.append(buffer);
+                groupState = GroupState.array;
+            }
+        }
+
+        protected void childGrew() throws SAXException {
+            if ( ! streaming && pendingChars + child.buffer.length() > maxBufferedChars) startStreaming();
+            if (streaming && groupState == GroupState.first && child.buffer != null && child.buffer.length() > maxBufferedChars) {
+                // Too large to hold until we know if the next sibling has the same name; assume it isn't
+                writeKey(groupName);
+                val buffer = child.buffer;
+                child.buffer = null;
+                out.append(buffer);
+                groupState = GroupState.single;
+            }
+        }
+
+        protected @Nonnull Sink startChild(@Nonnull String name) throws SAXException {
+            endText();
+            isObject = true;
+            childName = name;
+            child = new ChildSink(this);
+            if ( ! streaming) return child;
+
+            if (name.equals(groupName)) {
+                switch (groupState) {
+                    case first:
+                        writeKey(name);
+                        out.append("[");
+                        out.append(groupFirstValue);
+                        out.append(", ");
+                        groupState = GroupState.array;
+                        break;
+                    case array:
+                        out.append(", ");
+                        break;
+                    default:
+                        throw notAdjacent(name);
+                }
+                child.buffer = null;
+            }
+            else {
+                closeGroup();
+                if (writtenNames.contains(name)) throw notAdjacent(name);
+                groupName = name;
+                groupState = GroupState.first;
+                groupFirstValue = null;
+            }
+            return child;
+        }
+
+        protected void endChild() {
+            if ( ! streaming) {
+                pending.computeIfAbsent(childName, k -> new ArrayList<>()).add(child.buffer);
+                pendingChars += child.buffer.length();
+            }
+            else if (groupState == GroupState.first) groupFirstValue = child.buffer;
+            child = null;
+            childName = null;
+        }
+
+        protected void end() throws SAXException {
+            endText();
+            if ( ! isObject) {
+                if (content.isEmpty()) out.append("\"\"");
+                else writeValues(content);
+                return;
+            }
+
+            if (streaming) {
+                closeGroup();
+                if ( ! content.isEmpty()) writeGroup("content", content);
+            }
+            else {
+                if ( ! content.isEmpty()) pending.computeIfAbsent("content", k -> new ArrayList<>()).addAll(content);
+                out.append("{");
+                for (val e : pending.entrySet()) writeGroup(e.getKey(), e.getValue());
+            }
+
+            if (keyWritten) {
+                out.append("\n");
+                for (int i = 0; i < depth; i++) out.append("  ");
+            }
+            out.append("}");
+        }
+    }
+
+    protected final int maxBufferedChars;
+    protected final boolean convertAgainIfNotAdjacent;
+    protected final @CheckForNull File tempDirectoryOrNull;
+    protected final @Nonnull OutputStream outputStream;
+    protected final @Nonnull Writer json;
+    protected final @Nonnull Deque<Element> elements = new ArrayDeque<>();
+    protected final @Nonnull Map<String, String> namespaceDeclarations = new LinkedHashMap<>();
+    protected @CheckForNull Timer timer = null;
+
+    /** Null unless the XML may be converted again, see {@link #convertAgainIfNotAdjacent} */
+    protected @CheckForNull SpillingWriter jsonSpillOrNull = null, xmlOrNull = null;
+    protected int xmlDepth = 0;
+    protected boolean convertAgain = false;
+
+    /**
+     * @param json is flushed but not closed after transformation
+     * @param maxBufferedChars children of an element are held in memory, to determine which are arrays, up to this size
+     * @param convertAgainIfNotAdjacent if true, non-adjacent elements with the same name are merged into an array
+     *    however far apart they are, but no JSON is written until the document ends, see the class documentation
+     * @param tempDirectoryOrNull where JSON and XML larger than maxBufferedChars are held, or null for the system temporary directory
+     */
+    public JsonGenerator(
+        @Nonnull OutputStream json, int maxBufferedChars, boolean convertAgainIfNotAdjacent, @CheckForNull File tempDirectoryOrNull
+    ) {
+        this.outputStream = json;
+        this.json = new BufferedWriter(new OutputStreamWriter(json, UTF_8));
+        this.maxBufferedChars = maxBufferedChars;
+        this.convertAgainIfNotAdjacent = convertAgainIfNotAdjacent;
+        this.tempDirectoryOrNull = tempDirectoryOrNull;
+    }
+
+    /**
+     * @param json is flushed but not closed after transformation
+     * @param maxBufferedChars children of an element are held in memory, to determine which are arrays, up to this size
+     */
+    public JsonGenerator(@Nonnull OutputStream json, int maxBufferedChars) {
+        this(json, maxBufferedChars, false, null);
+    }
+
+    /** @param json is flushed but not closed after transformation */
+    public JsonGenerator(@Nonnull OutputStream json) {
+        this(json, 64 * 1024);
+    }
+
+    @Override public void startDocument() throws SAXException {
+        timer = new Timer("Create JSON from XML");
+        if (convertAgainIfNotAdjacent && maxBufferedChars < Integer.MAX_VALUE) {
+            jsonSpillOrNull = new SpillingWriter("json-");
+            xmlOrNull = new SpillingWriter("json-input-");
+        }
+        final Writer target = (jsonSpillOrNull == null) ? json : jsonSpillOrNull;
+        final Sink out = str -> {
+            try { target.append(str); }
+            catch (IOException e) { throw new SAXException(e); }
+        };
+        elements.push(new Element(0, out, true));
+    }
+
+    protected static void appendEscaped(@Nonnull StringBuilder xml, @Nonnull CharSequence str, boolean attribute) {
+        for (int i = 0; i < str.length(); i++) {
+            val c = str.charAt(i);
+            switch (c) {
+                case '&': xml.append("&amp;"); break;
+                case '<': xml.append("&lt;"); break;
+                case '>': xml.append("&gt;"); break;
+                case '"': xml.append(attribute ? "&quot;" : "\""); break;
+                case '\r': xml.append("&#13;"); break;
+                case '\n': xml.append(attribute ? "&#10;" : "\n"); break;
+                case '\t': xml.append(attribute ? "&#9;" : "\t"); break;
+                default: xml.append(c);
+            }
+        }
+    }
+
+    protected void recordXml(@Nonnull CharSequence str) throws SAXException {
+        try { xmlOrNull.append(str); }
+        catch (IOException e) { throw new SAXException(e); }
+    }
+
+    /** Stops converting as events arrive; the recorded XML is converted once the document ends, if it is being recorded */
+    protected void convertAgain(@Nonnull NotAdjacentException e) throws NotAdjacentException {
+        if (xmlOrNull == null) throw e;
+        Logger.getLogger(getClass()).info(e.getMessage() + "; document will be converted again once it ends");
+        convertAgain = true;
+        elements.clear();
+    }
+
+    @Override public void startPrefixMapping(String prefix, String uri) {
+        // XML.toJSONObject sees namespace declarations as attributes
+        namespaceDeclarations.put(prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix, uri);
+    }
+
+    @Override public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+        val name = qName.isEmpty() ? localName : qName;
+        val declarations = new ArrayList<Map.Entry<String, String>>(namespaceDeclarations.entrySet());
+        namespaceDeclarations.clear();
+
+        if (xmlOrNull != null) {
+            val xml = new StringBuilder("<").append(name);
+            for (val e : declarations) { xml.append(' ').append(e.getKey()).append("=\""); appendEscaped(xml, e.getValue(), true); xml.append('"'); }
+            for (int i = 0; i < attributes.getLength(); i++) {
+                xml.append(' ').append(attributes.getQName(i).isEmpty() ? attributes.getLocalName(i) : attributes.getQName(i)).append("=\"");
+                appendEscaped(xml, attributes.getValue(i), true);
+                xml.append('"');
+            }
+            recordXml(xml.append('>'));
+            xmlDepth++;
+        }
+        if (convertAgain) return;
+
+        try {
+            val parent = elements.peek();
+            val element = new Element(parent.depth + 1, parent.startChild(name), false);
+            for (val e : declarations) element.addAttribute(e.getKey(), e.getValue());
+            for (int i = 0; i < attributes.getLength(); i++) {
+                val attributeName = attributes.getQName(i).isEmpty() ? attributes.getLocalName(i) : attributes.getQName(i);
+                if ( ! element.pending.containsKey(attributeName)) element.addAttribute(attributeName, attributes.getValue(i));
+            }
+            elements.push(element);
+        }
+        catch (NotAdjacentException e) { convertAgain(e); }
+    }
+
+    @Override public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (xmlOrNull != null) {
+            recordXml("</" + (qName.isEmpty() ? localName : qName) + ">");
+            xmlDepth--;
+        }
+        if (convertAgain) return;
+
+        try {
+            elements.pop().end();
+            elements.peek().endChild();
+        }
+        catch (NotAdjacentException e) { convertAgain(e); }
+    }
+
+    @Override public void characters(char[] ch, int start, int length) throws SAXException {
+        if (xmlOrNull != null && xmlDepth > 0) {
+            val xml = new StringBuilder(length + 16);
+            appendEscaped(xml, new String(ch, start, length), false);
+            recordXml(xml);
+        }
+        if ( ! convertAgain && elements.size() > 1) elements.peek().text.append(ch, start, length); // text outside root element is ignored
+    }
+
+    @Override public void endDocument() throws SAXException {
+        try {
+            if ( ! convertAgain) {
+                try { elements.pop().end(); }
+                catch (NotAdjacentException e) { convertAgain(e); }
+            }
+
+            if (convertAgain) {
+                val factory = SAXParserFactory.newInstance();
+                factory.setNamespaceAware(true);
+                try (val xml = xmlOrNull.newReader()) {
+                    factory.newSAXParser().parse(new InputSource(xml), new JsonGenerator(outputStream, Integer.MAX_VALUE));
+                }
+            }
+            else if (jsonSpillOrNull != null) {
+                try (val spilled = jsonSpillOrNull.newReader()) {
+                    val buffer = new char[64 * 1024];
+                    for (int n; (n = spilled.read(buffer)) >= 0; ) json.write(buffer, 0, n);
+                }
+            }
+            json.flush();
+        }
+        catch (IOException | ParserConfigurationException e) { throw new SAXException(e); }
+        finally { close(); }
+    }
+
+    /** Stops the timer, and deletes temporary files; does not close the output */
+    @Override public void close() {
+        try {
+            if (jsonSpillOrNull != null) jsonSpillOrNull.close();
+            if (xmlOrNull != null) xmlOrNull.close();
+        }
+        catch (IOException e) { throw new RuntimeException(e); }
+        finally {
+            if (timer != null) timer.close();
+            timer = null;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.offerready.xslt;
+
+import lombok.Getter;
+import lombok.val;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Holds written bytes in fixed-size chunks taken from a {@link ChunkPool}, rather than in one array.
+ *    <p>
+ * A {@link java.io.ByteArrayOutputStream} copies its contents each time it grows, and {@link #toByteArray()} copies them again.
+ * Here, growing adds a chunk, and {@link #writeTo(OutputStream)} and {@link #writeTo(WritableByteChannel)} write the chunks
+ * as they are. Once the contents are no longer needed, {@link #release()} returns the chunks to the pool,
+ * so that large documents do not each allocate, and leave for the garbage collector, their full size.
+ *    <p>
+ * This offers the reading methods of {@link java.io.ByteArrayOutputStream}, but is not one, as it has no single buffer
+ * which that class's methods could read. Not thread-safe.
+ */
+public class SegmentedByteArrayOutputStream extends OutputStream {
+
+    /**
+     * Chunks which are not in use. Chunks are allocated if the pool is empty,
+     * and chunks are discarded if they are returned to a pool which is full.
+     */
+    public static class ChunkPool {
+        public static final @Nonnull ChunkPool defaultPool = new ChunkPool(64 * 1024, 256, false);
+
+        protected final @Getter int chunkSizeBytes;
+        protected final boolean direct;
+        protected final @Nonnull BlockingQueue<ByteBuffer> available;
+
+        /**
+         * @param maxPooledChunks chunks beyond this number are left to the garbage collector when released
+         * @param direct if true, chunks are direct buffers, outside the heap, which are fastest written to a channel
+         */
+        public ChunkPool(int chunkSizeBytes, int maxPooledChunks, boolean direct) {
+            this.chunkSizeBytes = chunkSizeBytes;
+            this.direct = direct;
+            this.available = new ArrayBlockingQueue<>(maxPooledChunks);
+        }
+
+        protected @Nonnull ByteBuffer take() {
+            val result = available.poll();
+            if (result != null) return result;
+            return direct ? ByteBuffer.allocateDirect(chunkSizeBytes) : ByteBuffer.allocate(chunkSizeBytes);
+        }
+
+        protected void give(@Nonnull ByteBuffer chunk) {
+            chunk.clear();
+            available.offer(chunk);
+        }
+
+        public int getPooledChunkCount() {
+            return available.size();
+        }
+    }
+
+    protected final @Nonnull ChunkPool pool;
+    protected final @Nonnull List<ByteBuffer> chunks = new ArrayList<>(); // all full except the last; in write mode
+    protected long size = 0;
+
+    public SegmentedByteArrayOutputStream(@Nonnull ChunkPool pool) {
+        this.pool = pool;
+    }
+
+    public SegmentedByteArrayOutputStream() {
+        this(ChunkPool.defaultPool);
+    }
+
+    protected @Nonnull ByteBuffer chunkWithSpace() {
+        val last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (last != null && last.hasRemaining()) return last;
+        val chunk = pool.take();
+        chunks.add(chunk);
+        return chunk;
+    }
+
+    @Override public void write(int b) {
+        chunkWithSpace().put((byte) b);
+        size++;
+    }
+
+    @Override public void write(@Nonnull byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        while (len > 0) {
+            val chunk = chunkWithSpace();
+            val n = Math.min(len, chunk.remaining());
+            chunk.put(b, off, n);
+            off += n; len -= n; size += n;
+        }
+    }
+
+    /** @throws IllegalStateException if more than 2GB have been written, as the contents do not fit into an array */
+    public int size() {
+        if (size > Integer.MAX_VALUE) throw new IllegalStateException("Contents too large for an array: " + size + " bytes");
+        return (int) size;
+    }
+
+    public long getSizeBytes() {
+        return size;
+    }
+
+    /** @return each chunk, ready to be read, without copying the bytes */
+    protected @Nonnull List<ByteBuffer> getReadableChunks() {
+        val result = new ArrayList<ByteBuffer>(chunks.size());
+        for (val c : chunks) {
+            val r = c.duplicate();
+            r.flip();
+            result.add(r);
+        }
+        return result;
+    }
+
+    public void writeTo(@Nonnull OutputStream out) throws IOException {
+        byte[] scratch = null;
+        for (val chunk : getReadableChunks()) {
+            if (chunk.hasArray()) {
+                out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            } else {
+                if (scratch == null) scratch = new byte[Math.min(pool.getChunkSizeBytes(), 8 * 1024)];
+                while (chunk.hasRemaining()) {
+                    val n = Math.min(scratch.length, chunk.remaining());
+                    chunk.get(scratch, 0, n);
+                    out.write(scratch, 0, n);
+                }
+            }
+        }
+    }
+
+    public void writeTo(@Nonnull WritableByteChannel out) throws IOException {
+        for (val chunk : getReadableChunks())
+            while (chunk.hasRemaining()) out.write(chunk);
+    }
+
+    public @Nonnull byte[] toByteArray() {
+        val result = new byte[size()];
+        int pos = 0;
+        for (val chunk : getReadableChunks()) {
+            val n = chunk.remaining();
+            chunk.get(result, pos, n);
+            pos += n;
+        }
+        return result;
+    }
+
+    @Override public @Nonnull String toString() {
+        return new String(toByteArray(), Charset.defaultCharset());
+    }
+
+    public @Nonnull String toString(@Nonnull String charsetName) throws UnsupportedEncodingException {
+        return new String(toByteArray(), charsetName);
+    }
+
+    public @Nonnull String toString(@Nonnull Charset charset) {
+        return new String(toByteArray(), charset);
+    }
+
+    /** Same as {@link #release()} */
+    public void reset() {
+        release();
+    }
+
+    /** Empties this stream, and returns its chunks to the pool; it may be written to again afterwards */
+    public void release() {
+        for (val c : chunks) pool.give(c);
+        chunks.clear();
+        size = 0;
+    }
+}
@@ -0,0 +1,152 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.SegmentedByteArrayOutputStream.ChunkPool;
+import lombok.val;
+import org.apache.log4j.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * As {@link BufferedHttpResponseDocumentGenerationDestination}, but a document larger than a threshold
+ * is written to a temporary file rather than held in memory, for example a large Excel or PDF export.
+ *    <p>
+ * Unlike its superclass, the document is released after {@link #deliver(HttpServletRequest, HttpServletResponse)} by default,
+ * which deletes the temporary file; otherwise, or if the document is not delivered, {@link #releaseBody()} deletes it.
+ */
+public class SpillingHttpResponseDocumentGenerationDestination extends BufferedHttpResponseDocumentGenerationDestination {
+
+    protected final long thresholdBytes;
+    protected final @CheckForNull File tempDirectoryOrNull;
+    protected @CheckForNull OutputStream outputStream = null;
+    protected @CheckForNull File spillFileOrNull = null;
+    protected long spillFileBytes = 0;
+
+    /** Writes to memory, and then to a file once the threshold is exceeded */
+    protected class SpillingOutputStream extends OutputStream {
+        protected @Nonnull OutputStream out = body;
+
+        protected void ensureSpace(int len) throws IOException {
+            if (spillFileOrNull != null || body.getSizeBytes() + len <= thresholdBytes) return;
+
+            spillFileOrNull = File.createTempFile("document-", ".tmp", tempDirectoryOrNull);
+            out = new BufferedOutputStream(new FileOutputStream(spillFileOrNull), 64 * 1024);
+            body.writeTo(out);
+            spillFileBytes = body.getSizeBytes();
+            SpillingHttpResponseDocumentGenerationDestination.super.releaseBody();
+        }
+
+        @Override public void write(int b) throws IOException {
+            ensureSpace(1);
+            out.write(b);
+            if (spillFileOrNull != null) spillFileBytes++;
+        }
+
+        @Override public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            ensureSpace(len);
+            out.write(b, off, len);
+            if (spillFileOrNull != null) spillFileBytes += len;
+        }
+
+        @Override public void flush() throws IOException { out.flush(); }
+        @Override public void close() throws IOException { out.close(); }
+    }
+
+    /** @param tempDirectoryOrNull where documents are spilled, or null for the system temporary directory */
+    public SpillingHttpResponseDocumentGenerationDestination(
+        @Nonnull ChunkPool chunkPool, long thresholdBytes, @CheckForNull File tempDirectoryOrNull
+    ) {
+        super(chunkPool);
+        setReleaseAfterDelivery(true);
+        this.thresholdBytes = thresholdBytes;
+        this.tempDirectoryOrNull = tempDirectoryOrNull;
+    }
+
+    public SpillingHttpResponseDocumentGenerationDestination(long thresholdBytes) {
+        this(ChunkPool.defaultPool, thresholdBytes, null);
+    }
+
+    public SpillingHttpResponseDocumentGenerationDestination() {
+        this(16 * 1024 * 1024);
+    }
+
+    @Override public @Nonnull OutputStream getOutputStream() {
+        releaseBody();
+        super.getOutputStream();
+        return outputStream = new SpillingOutputStream();
+    }
+
+    public boolean isSpilled() {
+        return spillFileOrNull != null;
+    }
+
+    /** @throws IllegalStateException if the document has been written to a file, as it is too large to be returned in memory */
+    @Override public @CheckForNull SegmentedByteArrayOutputStream getSegmentedBody() {
+        if (spillFileOrNull != null) throw new IllegalStateException("Document is " + spillFileBytes + " bytes, and has been written to a file");
+        return body;
+    }
+
+    @Override protected boolean hasBody() {
+        return outputStream != null;
+    }
+
+    @Override protected long getBodySizeBytes() {
+        return spillFileOrNull == null ? super.getBodySizeBytes() : spillFileBytes;
+    }
+
+    /**
+     * A file is sent with {@link FileChannel#transferTo}, so it is never read into memory as a whole.
+     * The Servlet API only offers a stream, not a channel, so the bytes still pass through a small buffer on their way.
+     *    <p>
+     * A file which is to be compressed is compressed while it is sent, and the compressed form is not kept,
+     * as that would take as much space again; its length is not known in advance.
+     */
+    @Override protected void writeBody(@Nonnull HttpServletResponse response, @CheckForNull String encodingOrNull) throws IOException {
+        if (spillFileOrNull == null) { super.writeBody(response, encodingOrNull); return; }
+
+        outputStream.close();
+        if (encodingOrNull != null) {
+            response.setHeader("Content-Encoding", encodingOrNull);
+            val out = HttpCompressionPolicy.newCompressingStream(encodingOrNull, response.getOutputStream());
+            Files.copy(spillFileOrNull.toPath(), out);
+            out.finish();
+            return;
+        }
+
+        response.setContentLengthLong(spillFileBytes);
+        try (val file = FileChannel.open(spillFileOrNull.toPath(), StandardOpenOption.READ)) {
+            final WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            for (long pos = 0; pos < spillFileBytes; ) {
+                val n = file.transferTo(pos, spillFileBytes - pos, out);
+                if (n <= 0) throw new EOFException("File '" + spillFileOrNull + "' is shorter than the " + spillFileBytes + " bytes written");
+                pos += n;
+            }
+        }
+    }
+
+    /** Releases memory used by the document, and deletes the file it was written to, if any */
+    @Override public void releaseBody() {
+        super.releaseBody();
+        if (spillFileOrNull == null) return;
+        try {
+            outputStream.close();
+            Files.deleteIfExists(spillFileOrNull.toPath());
+        }
+        catch (IOException e) { Logger.getLogger(getClass()).warn("Cannot delete '" + spillFileOrNull + "'", e); }
+        spillFileOrNull = null;
+        spillFileBytes = 0;
+    }
+}
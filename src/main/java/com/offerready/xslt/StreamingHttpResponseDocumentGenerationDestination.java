@@ -7,19 +7,38 @@ import java.io.OutputStream;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Writes the document directly to the response.
+ *    <p>
+ * If constructed with a request and an {@link HttpCompressionPolicy}, the document is compressed on the fly,
+ * if the client accepts it and the policy allows it.
+ */
 public class StreamingHttpResponseDocumentGenerationDestination implements DocumentGenerationDestination {
     
     protected @Nonnull HttpServletResponse response;
     protected boolean outputStarted = false; // Java silently ignores setting headers after content started, we make it non-silent
+    protected @CheckForNull HttpCompressionPolicy compressionOrNull = null;
+    protected @CheckForNull String acceptedEncodingOrNull = null;
+    protected @CheckForNull String contentType = null;
     
     public StreamingHttpResponseDocumentGenerationDestination(@Nonnull HttpServletResponse response) {
         this.response = response;
     }
 
+    public StreamingHttpResponseDocumentGenerationDestination(
+        @Nonnull HttpServletRequest request, @Nonnull HttpServletResponse response, @Nonnull HttpCompressionPolicy compression
+    ) {
+        this(response);
+        this.compressionOrNull = compression;
+        this.acceptedEncodingOrNull = HttpCompressionPolicy.negotiate(request.getHeader("Accept-Encoding"));
+    }
+
     @Override public void setContentType(@Nonnull String contentType) {
         if (outputStarted) throw new IllegalStateException("Cannot set headers after content started");
+        this.contentType = contentType;
         response.setContentType(contentType);
     }
     
@@ -36,6 +55,12 @@ public class StreamingHttpResponseDocumentGenerationDestination implements Docum
     @SneakyThrows(IOException.class)
     @Override public @Nonnull OutputStream getOutputStream() {
         outputStarted = true;
-        return response.getOutputStream();
+        if (compressionOrNull == null || ! compressionOrNull.isCompressible(contentType)) return response.getOutputStream();
+
+        response.addHeader("Vary", "Accept-Encoding");
+        if (acceptedEncodingOrNull == null) return response.getOutputStream();
+        return compressionOrNull.newCompressingStreamIfLarge(acceptedEncodingOrNull, response.getOutputStream(), encoding -> {
+            if (encoding != null) response.setHeader("Content-Encoding", encoding);
+        });
     }
 }
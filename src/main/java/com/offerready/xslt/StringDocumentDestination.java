@@ -1,15 +1,54 @@
 package com.offerready.xslt;
 
 import lombok.SneakyThrows;
+import lombok.val;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.regex.Pattern;
 
-public class StringDocumentDestination extends BufferedDocumentGenerationDestination {
+/**
+ * Holds a text document as a string.
+ *    <p>
+ * Text documents are written by {@link DocumentGenerator} as characters, into a {@link StringBuilder},
+ * so they are neither encoded nor decoded. The builder may be passed in, and reused for many documents.
+ * Documents written as bytes, for example via a {@link DocumentOutputCache}, are decoded from UTF-8.
+ * {@link #getBody()} works for both: a document written as characters is only encoded as UTF-8 when its body is requested.
+ */
+public class StringDocumentDestination extends BufferedDocumentGenerationDestination implements CharacterDocumentGenerationDestination {
     
     protected final Pattern charsetSuffix = Pattern.compile("; charset=utf-8", Pattern.CASE_INSENSITIVE);
+    protected final @Nonnull StringBuilder characters;
+    protected boolean writtenAsCharacters = false;
+
+    /** Appends to a {@link StringBuilder}; unlike {@link java.io.StringWriter} does not synchronize */
+    protected static class StringBuilderWriter extends Writer {
+        protected final @Nonnull StringBuilder builder;
+        protected StringBuilderWriter(@Nonnull StringBuilder builder) { this.builder = builder; }
+        @Override public void write(int c) { builder.append((char) c); }
+        @Override public void write(@Nonnull char[] c, int off, int len) { builder.append(c, off, len); }
+        @Override public void write(@Nonnull String str, int off, int len) { builder.append(str, off, off + len); }
+        @Override public @Nonnull Writer append(CharSequence csq) { builder.append(csq); return this; }
+        @Override public @Nonnull Writer append(CharSequence csq, int start, int end) { builder.append(csq, start, end); return this; }
+        @Override public @Nonnull Writer append(char c) { builder.append(c); return this; }
+        @Override public void flush() { }
+        @Override public void close() { }
+    }
+
+    /** @param characters emptied each time a document is written; can be reused for the next document */
+    public StringDocumentDestination(@Nonnull StringBuilder characters) {
+        this.characters = characters;
+    }
+
+    public StringDocumentDestination() {
+        this(new StringBuilder());
+    }
     
     protected void assertValid() {
         if ( ! charsetSuffix.matcher(contentType).find())
@@ -20,11 +59,40 @@ public class StringDocumentDestination extends BufferedDocumentGenerationDestina
         assertValid();
         return charsetSuffix.matcher(contentType).replaceAll("");
     }
-    
-    @Override
+
+    @Override public @Nonnull OutputStream getOutputStream() {
+        writtenAsCharacters = false;
+        return super.getOutputStream();
+    }
+
+    @Override public @Nonnull Writer getWriter() {
+        releaseBody();
+        body = null;
+        writtenAsCharacters = true;
+        characters.setLength(0);
+        return new StringBuilderWriter(characters);
+    }
+
+    /** A document written as characters is encoded as UTF-8 the first time this is called */
+    @SneakyThrows(IOException.class)
+    @Override public @CheckForNull SegmentedByteArrayOutputStream getSegmentedBody() {
+        if (writtenAsCharacters && body == null) {
+            body = new SegmentedByteArrayOutputStream(chunkPool);
+            try (val writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) { writer.append(characters); }
+        }
+        return body;
+    }
+
+    /** @return the document, without copying it if it was written as characters */
     @SneakyThrows(UnsupportedEncodingException.class)
-    public String toString() {
+    public @Nonnull CharSequence getCharacters() {
         assertValid();
+        if (writtenAsCharacters) return characters;
         return body.toString(StandardCharsets.UTF_8.name());
     }
+    
+    @Override
+    public String toString() {
+        return getCharacters().toString();
+    }
 }
@@ -1,21 +1,46 @@
 package com.offerready.xslt;
 
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 
 import com.databasesandlife.util.gwtsafe.ConfigurationException;
 import lombok.SneakyThrows;
+import lombok.Value;
 import lombok.val;
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
@@ -24,7 +49,11 @@ import com.databasesandlife.util.ThreadPool;
 import com.databasesandlife.util.Timer;
 
 import net.sf.saxon.TransformerFactoryImpl;
+import net.sf.saxon.jaxp.TransformerImpl;
+import net.sf.saxon.trans.CompilerInfo;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 /**
  * Wraps an XSLT {@link Templates} capable of performing an XSLT transformation.
@@ -37,6 +66,21 @@ import org.xml.sax.SAXException;
  * as long as transformations might need to be applied using it;
  * the cache caches only weak references.
  *    <p>
+ * The cache is safe to use from many threads at once. Looking up an XSLT which is already in the cache takes no lock.
+ * An object is entered into the cache as soon as its compilation is scheduled, so concurrent requests for the same XSLT
+ * all receive the same object, and the XSLT is only compiled once.
+ *    <p>
+ * As compiling a large XSLT can take seconds, a number of recently used objects can additionally be held with strong
+ * references, so they survive even while no client references them. See {@link #setRetentionPolicy(RetentionPolicy)}.
+ * Statistics to help choose the policy are available from {@link #getCacheStatistics()}.
+ *    <p>
+ * If an {@link XsltFileWatcher} is running, objects are recompiled in the background when their XSLT files change.
+ * If a file changes but an identical file elsewhere does not, the changed file gets a new object; use {@link #forFile(File)}.
+ *    <p>
+ * Compilation happens on {@link XsltCompilationThreads}. If an object is used before its XSLT has been compiled there,
+ * it is compiled by the thread using it, or that thread waits for the compilation in progress.
+ * Use {@link #getCompilationFuture()} or {@link #awaitCompilation(long, TimeUnit)} to wait explicitly.
+ *    <p>
  * Compilation of an XSLT file can fail (e.g. if the XSLT file is invalid).
  * In this case, the desired behaviour is that all other valid XSLTs can be applied, so no exception is thrown upon compilation.
  * The method {@link #assertValid()} returns void if the template is OK and throws the DocumentTemplateInvalidException otherwise.
@@ -44,7 +88,61 @@ import org.xml.sax.SAXException;
 @SuppressWarnings("serial")
 public class WeaklyCachedXsltTransformer {
     
-    private static final Map<String, WeakReference<WeaklyCachedXsltTransformer>> cache = new HashMap<>();
+    /**
+     * Saxon's Configuration (name pool, document pool, etc.) is large, so one is shared by everything compiled or
+     * transformed by this class. The factory is thread-safe, as long as its settings are not altered after creation.
+     */
+    protected static final @Nonnull TransformerFactoryImpl transformerFactory = (TransformerFactoryImpl) TransformerFactory.newInstance(
+        TransformerFactoryImpl.class.getName(), DocumentGenerator.class.getClassLoader());
+
+    /** Weak reference which knows its key, so that it can be removed from the cache once its referent is collected */
+    protected static class CacheEntry extends WeakReference<WeaklyCachedXsltTransformer> {
+        protected final @Nonnull String cacheKey;
+        protected CacheEntry(@Nonnull String k, @Nonnull WeaklyCachedXsltTransformer t) { super(t, collectedEntries); cacheKey = k; }
+    }
+
+    private static final ReferenceQueue<WeaklyCachedXsltTransformer> collectedEntries = new ReferenceQueue<>();
+    private static final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+
+    /**
+     * How many compiled XSLTs are held with strong references, on top of those referenced by clients.
+     * Once either limit is exceeded, the least recently used objects are released, and are then only weakly cached.
+     * The default retains nothing.
+     */
+    public static class RetentionPolicy {
+        public final int maxCount;
+        /** Sum of {@link WeaklyCachedXsltTransformer#estimatedSizeBytes}, which is only a rough estimate */
+        public final long maxEstimatedBytes;
+
+        public RetentionPolicy(int maxCount, long maxEstimatedBytes) { this.maxCount = maxCount; this.maxEstimatedBytes = maxEstimatedBytes; }
+        public RetentionPolicy(int maxCount) { this(maxCount, Long.MAX_VALUE); }
+    }
+
+    @Value
+    public static class CacheStatistics {
+        /** recompilations are misses for XSLTs which had been compiled, but were garbage collected */
+        long hits, misses, evictions, recompilations;
+        int retainedCount;
+        long retainedEstimatedBytes;
+    }
+
+    /** Rough memory used by a compiled XSLT, per element in the XSLT source */
+    protected static final long estimatedBytesPerXsltElement = 1024;
+
+    private static volatile @Nonnull RetentionPolicy retentionPolicy = new RetentionPolicy(0);
+    private static final ConcurrentMap<String, WeaklyCachedXsltTransformer> retained = new ConcurrentHashMap<>();
+    private static final AtomicBoolean releaseScheduled = new AtomicBoolean(false);
+
+    /** Keys of objects which have been garbage collected, so that compiling one again is counted as a recompilation */
+    protected static final int maxCollectedCacheKeys = 10_000;
+    private static final Map<String, Boolean> collectedCacheKeys = Collections.synchronizedMap(
+        new LinkedHashMap<String, Boolean>() {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) { return size() > maxCollectedCacheKeys; }
+        });
+    private static final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+        evictions = new AtomicLong(), recompilations = new AtomicLong();
+
+    private static final @Nonnull WeaklyCachedXsltTransformer identityTransformer = newIdentityTransformer();
     
     /** Thrown if an XSLT is applied which previously did not compile */
     public static class DocumentTemplateInvalidException extends Exception {
@@ -62,6 +160,26 @@ public class WeaklyCachedXsltTransformer {
          * @throws ConfigurationException if the XSLT file cannot be parsed
          */
         Document parseDocument() throws ConfigurationException;
+
+        /**
+         * @return The XSLT, as read by the compiler. This may be read lazily, e.g. a {@link SAXSource},
+         * to avoid holding the whole XSLT in memory before it is compiled.
+         * @throws ConfigurationException if the XSLT file cannot be parsed
+         */
+        default @Nonnull Source newSource() throws ConfigurationException {
+            val document = parseDocument();
+            return new DOMSource(document, document.getDocumentURI()); // System ID resolves relative xsl:import
+        }
+
+        /**
+         * @return The key of the XSLT returned by the last call to {@link #newSource()}, if that reads the XSLT itself,
+         * so that an XSLT which changed after {@link #calculateCacheKey()} is not cached under the previous key.
+         * Null if not known, in which case the key from {@link #calculateCacheKey()} is used.
+         */
+        default @CheckForNull String getSourceCacheKey() { return null; }
+
+        /** @return Files the XSLT is read from, so that {@link XsltFileWatcher} can recompile it when they change */
+        default @Nonnull Collection<File> getFiles() { return Collections.emptyList(); }
     }
     
     /**
@@ -75,48 +193,203 @@ public class WeaklyCachedXsltTransformer {
         Transformer newTransformer();
     }
   
-    protected @CheckForNull String error = null;
+    protected volatile @CheckForNull String error = null;
 
     /** After object is initialized, this is never null */
-    protected XsltTransformerFactory xsltTransformerFactory;
+    protected volatile XsltTransformerFactory xsltTransformerFactory;
+
+    /** Completed once compilation has finished, whether successfully or not */
+    protected final @Nonnull CompletableFuture<Void> compilation = new CompletableFuture<>();
+
+    /** Scheduled but possibly not yet started; null once compilation has finished */
+    protected volatile @CheckForNull CompileJob pendingCompileJob = null;
+
+    /** For choosing which objects to release from the strongly retained set */
+    protected volatile long lastUsedNanos = System.nanoTime();
+
+    protected long estimatedSizeBytes = 0;
+
+    /** Maximum number of idle {@link Transformer}s kept, for each set of parameters */
+    protected static final int maxPooledTransformersPerParameters = 16;
+
+    /**
+     * Idle {@link Transformer}s, which already have the parameters of the key set.
+     * Replaced, rather than cleared, when the XSLT is recompiled, so that borrowed objects are returned to the old pool.
+     */
+    protected volatile @Nonnull ConcurrentMap<Object, BlockingQueue<Transformer>> pooledTransformers = new ConcurrentHashMap<>();
+
+    /** Key under which this object is in the cache; changes if the XSLT file changes and is recompiled */
+    protected volatile @CheckForNull String cacheKey = null;
+
+    /** Where the XSLT came from, so it can be recompiled if one of the files changes */
+    protected final @Nonnull ConcurrentMap<Path, Xslt> xsltForFile = new ConcurrentHashMap<>();
+
+    /** Files which changed, while identical files elsewhere sharing this object did not; see {@link #forFile(File)} */
+    protected final @Nonnull ConcurrentMap<Path, WeaklyCachedXsltTransformer> replacementForFile = new ConcurrentHashMap<>();
+
+    /** Number of open {@link XsltFileWatcher}s; if zero, sources need not be recorded on every cache hit */
+    protected static final AtomicInteger fileWatcherCount = new AtomicInteger();
+
+    /**
+     * A {@link Transformer}, with its parameters already set, borrowed from a pool; return it by closing this object.
+     *    <p>
+     * Only the operations needed to perform a transformation are offered, so the only state a borrower can change is
+     * output properties, which are reset upon return. A {@link Transformer} whose transformation failed is not returned.
+     * Objects of this class are not thread-safe, they are intended to be used by one request.
+     */
+    public static class PooledTransformer implements AutoCloseable {
+        protected final @Nonnull ConcurrentMap<Object, BlockingQueue<Transformer>> pool;
+        protected final @Nonnull Object parameters;
+        protected final @Nonnull Transformer transformer;
+        protected boolean reusable = true;
+
+        protected PooledTransformer(
+            @Nonnull ConcurrentMap<Object, BlockingQueue<Transformer>> pool,
+            @Nonnull Object p, @Nonnull Transformer t
+        ) { this.pool = pool; parameters = p; transformer = t; }
+
+        public void setOutputProperty(@Nonnull String name, @Nonnull String value) { transformer.setOutputProperty(name, value); }
+
+        public void transform(@Nonnull Source source, @Nonnull Result result) throws TransformerException {
+            try { transformer.transform(source, result); }
+            catch (TransformerException | RuntimeException e) { reusable = false; throw e; }
+        }
+
+        @Override public void close() {
+            if ( ! reusable) return;
+            reusable = false; // in case of double close
+            transformer.setOutputProperties(null);
+            if (transformer instanceof TransformerImpl) {
+                // Saxon keeps the last input tree, output destination, and documents read by doc() until the next transformation.
+                // The documents must not be served to the next user, who might expect a newer version of them;
+                // the input and output must not stay reachable from an idle transformer.
+                val saxon = (TransformerImpl) transformer;
+                saxon.getUnderlyingController().clearDocumentPool();
+                saxon.getUnderlyingXsltTransformer().setInitialContextNode(null);
+                saxon.getUnderlyingXsltTransformer().setDestination(null);
+            }
+
+            BlockingQueue<Transformer> idle = pool.get(parameters);
+            if (idle == null) {
+                val key = (parameters instanceof Map) ? Collections.unmodifiableMap(new HashMap<>((Map<?, ?>) parameters)) : parameters;
+                pool.putIfAbsent(key, new ArrayBlockingQueue<>(maxPooledTransformersPerParameters));
+                idle = pool.get(key);
+            }
+            idle.offer(transformer); // discarded if pool is full
+        }
+    }
+
+    /**
+     * XSLT parameters whose values have already been converted to XSLT values, such as Saxon atomic values or nodes,
+     * so that the conversion is not done for each transformation.
+     *    <p>
+     * Transformers with these parameters set are pooled, so implementations must implement equals and hashCode.
+     */
+    public interface ConvertedParameters {
+        @Nonnull Map<String, ?> getConvertedValues();
+    }
     
+    @Value protected static class CompiledXslt {
+        @Nonnull Templates templates;
+        long estimatedSizeBytes;
+        /** See {@link Xslt#getSourceCacheKey()} */
+        @CheckForNull String cacheKeyOrNull;
+    }
+
+    /** Counts elements of a streamed XSLT as they pass, to estimate the size of the compiled XSLT */
+    protected static class ElementCountingFilter extends XMLFilterImpl {
+        long count = 0;
+        @Override public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            count++;
+            super.startElement(uri, localName, qName, atts);
+        }
+    }
+
+    /** @throws DocumentTemplateInvalidException containing the compiler's messages, if the XSLT does not compile */
+    protected static @Nonnull CompiledXslt compile(@Nonnull String nameForLogging, @Nonnull Xslt xslt)
+    throws DocumentTemplateInvalidException {
+        val errorString = new StringBuilder();
+        ErrorListener errorListener = new ErrorListener() {
+            public void warning(TransformerException e) { errorString.append("\nERROR: ").append(e.getMessage()); }
+            public void error(TransformerException e) { errorString.append("\nWARN: ").append(e.getMessage()); }
+            public void fatalError(TransformerException e) { errorString.append("\nFATAL: ").append(e.getMessage()); }
+        };
+
+        try (val t = new Timer("Compiling XSLT '" + nameForLogging + "'")) {
+            val source = xslt.newSource();
+
+            val counter = new ElementCountingFilter();
+            if (source instanceof SAXSource) {
+                val saxSource = (SAXSource) source;
+                if (saxSource.getXMLReader() != null) counter.setParent(saxSource.getXMLReader());
+                else {
+                    val factory = SAXParserFactory.newInstance();
+                    factory.setNamespaceAware(true);
+                    counter.setParent(factory.newSAXParser().getXMLReader());
+                }
+                saxSource.setXMLReader(counter);
+            } else if (source instanceof DOMSource && ((DOMSource) source).getNode() instanceof Document) {
+                counter.count = ((Document) ((DOMSource) source).getNode()).getElementsByTagName("*").getLength();
+            }
+
+            // Setting the ErrorListener on the factory would set it on the shared Configuration
+            val compilerInfo = new CompilerInfo(transformerFactory.getConfiguration().getDefaultXsltCompilerInfo());
+            compilerInfo.setErrorListener(errorListener);
+            val templates = transformerFactory.newTemplates(source, compilerInfo);
+            return new CompiledXslt(templates, counter.count * estimatedBytesPerXsltElement, xslt.getSourceCacheKey());
+        }
+        catch (Exception exception) {
+            final String error;
+            if (errorString.length() > 0) error = nameForLogging + ": " + errorString.toString();
+            else error = nameForLogging + ": " + exception.getMessage();
+
+            Logger.getLogger(WeaklyCachedXsltTransformer.class).error(error, exception);
+            throw new DocumentTemplateInvalidException(error);
+        }
+    }
+
+    /** Atomically replaces any previous version; transformations already in progress use the previous version */
+    protected void setTemplates(@Nonnull CompiledXslt compiled) {
+        xsltTransformerFactory = new XsltTransformerFactory() {
+            @SneakyThrows(TransformerConfigurationException.class)
+            @Override public Transformer newTransformer() { return compiled.getTemplates().newTransformer(); }
+        };
+        pooledTransformers = new ConcurrentHashMap<>(); // after factory, see borrowTransformer
+        error = null;
+        estimatedSizeBytes = compiled.getEstimatedSizeBytes();
+    }
+
+    /**
+     * Run either by {@link XsltCompilationThreads}, or, if the XSLT is needed before the thread pool reaches it,
+     * by the thread needing it. Whichever comes first does the work.
+     */
     protected class CompileJob implements Runnable {
         protected @Nonnull String md5, nameForLogging;
-        protected @Nonnull Document xslt;
+        protected @Nonnull Xslt xslt;
+        protected final @Nonnull AtomicBoolean started = new AtomicBoolean(false);
         
-        protected CompileJob(@Nonnull String m, @Nonnull String n, @Nonnull Document x) { md5 = m; nameForLogging = n; xslt = x; }
+        protected CompileJob(@Nonnull String m, @Nonnull String n, @Nonnull Xslt x) { md5 = m; nameForLogging = n; xslt = x; }
         
         public void run() {
-            val errorString = new StringBuilder();
-            ErrorListener errorListener = new ErrorListener() {
-                public void warning(TransformerException e) { errorString.append("\nERROR: ").append(e.getMessage()); }
-                public void error(TransformerException e) { errorString.append("\nWARN: ").append(e.getMessage()); }
-                public void fatalError(TransformerException e) { errorString.append("\nFATAL: ").append(e.getMessage()); }
-            };
-
-            try (val t = new Timer("Compiling XSLT '" + nameForLogging + "'")) {
-                val transformerFactory = (TransformerFactoryImpl) TransformerFactory.newInstance(
-                    TransformerFactoryImpl.class.getName(), DocumentGenerator.class.getClassLoader());
-                transformerFactory.setErrorListener(errorListener);
-                val templates = transformerFactory.newTemplates(new DOMSource(xslt));
-                xsltTransformerFactory = new XsltTransformerFactory() {
-                    @SneakyThrows(TransformerConfigurationException.class)
-                    @Override public Transformer newTransformer() { return templates.newTransformer(); }
-                };
+            if ( ! started.compareAndSet(false, true)) return;
+            try {
+                val compiled = compile(nameForLogging, xslt);
+                setTemplates(compiled);
+                val compiledKey = compiled.getCacheKeyOrNull();
+                if (compiledKey != null && ! compiledKey.equals(md5)) changeCacheKey(md5, compiledKey); // XSLT has changed meanwhile
+                retain(cacheKey, WeaklyCachedXsltTransformer.this);
+            }
+            catch (DocumentTemplateInvalidException e) {
+                error = e.getMessage();
             }
-            catch (Exception exception) {
-                if (errorString.length() > 0) error = nameForLogging + ": " + errorString.toString();
-                else error = nameForLogging + ": " + exception.getMessage();
-                
-                Logger.getLogger(getClass()).error(error, exception);
+            finally {
+                pendingCompileJob = null;
+                compilation.complete(null);
             }
-            
-            cache.put(md5, new WeakReference<WeaklyCachedXsltTransformer>(WeaklyCachedXsltTransformer.this));
         }
     }
     
     public static class XsltCompilationThreads extends ThreadPool {
-        final Map<String, WeaklyCachedXsltTransformer> toCompileForXsltMd5 = new HashMap<>();
         @Override public void execute() {
             try (val t = new Timer(threadNamePrefix)) {
                 super.execute(); 
@@ -124,43 +397,271 @@ public class WeaklyCachedXsltTransformer {
         }
     }
     
-    public synchronized static @Nonnull WeaklyCachedXsltTransformer getTransformerOrScheduleCompilation(
+    /** Released objects are still weakly cached, so may still be returned, if a client references them */
+    public static void setRetentionPolicy(@Nonnull RetentionPolicy policy) {
+        retentionPolicy = policy;
+        releaseLeastRecentlyUsed();
+    }
+
+    public static @Nonnull CacheStatistics getCacheStatistics() {
+        synchronized (retained) {
+            long bytes = 0;
+            for (val t : retained.values()) bytes += t.estimatedSizeBytes;
+            return new CacheStatistics(hits.get(), misses.get(), evictions.get(), recompilations.get(), retained.size(), bytes);
+        }
+    }
+
+    protected static void retain(@Nonnull String cacheKey, @Nonnull WeaklyCachedXsltTransformer transformer) {
+        if (retentionPolicy.maxCount <= 0) return;
+        retained.put(cacheKey, transformer);
+        releaseLeastRecentlyUsed();
+    }
+
+    /**
+     * Releases objects on another thread, so that a cache hit does not wait for the lock, or for the linear search.
+     * Several hits in quick succession lead to only one release.
+     */
+    protected static void scheduleReleaseLeastRecentlyUsed() {
+        if ( ! releaseScheduled.compareAndSet(false, true)) return;
+        ForkJoinPool.commonPool().execute(() -> {
+            releaseScheduled.set(false); // objects retained from now on are taken into account by a further release
+            releaseLeastRecentlyUsed();
+        });
+    }
+
+    /** Linear in the number of retained objects, but not called on the thread of a cache hit */
+    protected static void releaseLeastRecentlyUsed() {
+        synchronized (retained) {
+            val policy = retentionPolicy;
+            long bytes = 0;
+            for (val t : retained.values()) bytes += t.estimatedSizeBytes;
+
+            while ( ! retained.isEmpty() && (retained.size() > policy.maxCount || bytes > policy.maxEstimatedBytes)) {
+                Map.Entry<String, WeaklyCachedXsltTransformer> oldest = null;
+                for (val e : retained.entrySet())
+                    if (oldest == null || e.getValue().lastUsedNanos - oldest.getValue().lastUsedNanos < 0) oldest = e;
+                retained.remove(oldest.getKey(), oldest.getValue());
+                bytes -= oldest.getValue().estimatedSizeBytes;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    protected void recordFiles(@Nonnull Xslt xslt) {
+        for (val f : xslt.getFiles()) {
+            val path = f.toPath().toAbsolutePath().normalize();
+            if ( ! xsltForFile.containsKey(path)) xsltForFile.putIfAbsent(path, xslt);
+        }
+    }
+
+    /**
+     * Called by {@link XsltFileWatcher} when a file has changed.
+     * Recompiles all objects read from that file, if the contents have changed.
+     * If the new version does not compile, the previous version continues to be used.
+     */
+    protected static void recompileIfChanged(@Nonnull Path changedFile) {
+        for (val entry : cache.values()) {
+            val transformer = entry.get();
+            if (transformer == null || ! transformer.compilation.isDone()) continue;
+            val xslt = transformer.xsltForFile.get(changedFile);
+            if (xslt != null) transformer.recompile(changedFile.toString(), xslt);
+        }
+    }
+
+    protected synchronized void recompile(@Nonnull String nameForLogging, @Nonnull Xslt xslt) {
+        val oldKey = cacheKey;
+        val newKey = xslt.calculateCacheKey();
+        if (newKey.equals(oldKey)) return;
+
+        // Identical XSLTs elsewhere in the filesystem share this object; if they have not changed, their users keep it
+        val checked = Collections.newSetFromMap(new IdentityHashMap<Xslt, Boolean>());
+        val unchanged = new ArrayList<Xslt>();
+        for (val other : xsltForFile.values())
+            if (other != xslt && checked.add(other) && oldKey != null && oldKey.equals(calculateCacheKeyOrNull(other)))
+                unchanged.add(other);
+
+        final CompiledXslt compiled;
+        try {
+            compiled = compile(nameForLogging, xslt);
+        }
+        catch (DocumentTemplateInvalidException e) {
+            Logger.getLogger(getClass()).warn("Changed XSLT '" + nameForLogging + "' is invalid, " +
+                (xsltTransformerFactory == null ? "and no previous version exists" : "continuing to use previous version"));
+            if (xsltTransformerFactory == null && unchanged.isEmpty()) error = e.getMessage();
+            return;
+        }
+
+        val compiledKey = (compiled.getCacheKeyOrNull() == null) ? newKey : compiled.getCacheKeyOrNull();
+        if ( ! unchanged.isEmpty()) {
+            splitOff(xslt, compiledKey, compiled, unchanged);
+            Logger.getLogger(getClass()).info("Recompiled changed XSLT '" + nameForLogging + "', identical copies elsewhere are unchanged");
+            return;
+        }
+
+        setTemplates(compiled);
+        recordFiles(xslt); // the new version may import files the old one did not
+        changeCacheKey(oldKey, compiledKey);
+        Logger.getLogger(getClass()).info("Recompiled changed XSLT '" + nameForLogging + "'");
+    }
+
+    /** Moves this object to the key of the XSLT it now contains */
+    protected void changeCacheKey(@CheckForNull String oldKey, @Nonnull String newKey) {
+        cacheKey = newKey;
+        if (oldKey != null) cache.computeIfPresent(oldKey, (k, current) -> current.get() == this ? null : current);
+        cache.compute(newKey, (k, current) -> (current != null && current.get() != null) ? current : new CacheEntry(k, this));
+        if (oldKey != null && retained.remove(oldKey, this)) retain(newKey, this);
+    }
+
+    /** @return null if the key cannot be calculated, e.g. the file has been deleted */
+    protected static @CheckForNull String calculateCacheKeyOrNull(@Nonnull Xslt xslt) {
+        try { return xslt.calculateCacheKey(); }
+        catch (Exception e) { return null; }
+    }
+
+    /**
+     * The XSLT has changed in one place, but identical copies elsewhere, which share this object, have not.
+     * The changed files move to a new object, which {@link #forFile(File)} returns for them; this object is left alone.
+     */
+    protected void splitOff(
+        @Nonnull Xslt changed, @Nonnull String newKey, @Nonnull CompiledXslt compiled, @Nonnull Collection<Xslt> unchanged
+    ) {
+        val replacement = new WeaklyCachedXsltTransformer();
+        replacement.setTemplates(compiled);
+        replacement.cacheKey = newKey;
+        replacement.compilation.complete(null);
+        replacement.recordFiles(changed);
+        cache.compute(newKey, (k, current) -> (current != null && current.get() != null) ? current : new CacheEntry(k, replacement));
+        retain(newKey, replacement);
+
+        val moved = new ArrayList<Path>();
+        for (val e : xsltForFile.entrySet())
+            if (e.getValue() == changed && xsltForFile.remove(e.getKey(), changed)) moved.add(e.getKey());
+        for (val other : unchanged) recordFiles(other); // files they share with the changed XSLT, e.g. imported files
+        for (val path : moved)
+            if ( ! xsltForFile.containsKey(path)) replacementForFile.put(path, replacement);
+    }
+
+    /**
+     * @param xsltFile the file this object was requested for
+     * @return the object compiled from the current version of that file. This is this object, unless the file changed
+     *         while an identical file elsewhere, which shared this object, did not; see {@link XsltFileWatcher}
+     */
+    public @Nonnull WeaklyCachedXsltTransformer forFile(@Nonnull File xsltFile) {
+        val path = xsltFile.toPath().toAbsolutePath().normalize();
+        WeaklyCachedXsltTransformer result = this;
+        for (WeaklyCachedXsltTransformer next; (next = result.replacementForFile.get(path)) != null; ) result = next;
+        return result;
+    }
+
+    /** Removes entries from the cache whose {@link WeaklyCachedXsltTransformer} has been garbage collected */
+    protected static void expungeCollectedEntries() {
+        CacheEntry entry;
+        while ((entry = (CacheEntry) collectedEntries.poll()) != null)
+            if (cache.remove(entry.cacheKey, entry)) collectedCacheKeys.put(entry.cacheKey, true);
+    }
+
+    public static @Nonnull WeaklyCachedXsltTransformer getTransformerOrScheduleCompilation(
         @Nonnull XsltCompilationThreads threads, @Nonnull String nameForLogging, @Nonnull Xslt xslt
     ) throws ConfigurationException {
         val cacheKey = xslt.calculateCacheKey();
 
+        // Fast path: no lock taken
         val ref = cache.get(cacheKey);
-        WeaklyCachedXsltTransformer result = (ref == null) ? null : ref.get();
-        if (result != null) return result;
-        
-        result = threads.toCompileForXsltMd5.get(cacheKey);
-        if (result != null) return result;
-        
-        result = new WeaklyCachedXsltTransformer();
-        threads.toCompileForXsltMd5.put(cacheKey, result);
-        threads.addTask(result.new CompileJob(cacheKey, nameForLogging, xslt.parseDocument()));
-        return result;
+        val existing = (ref == null) ? null : ref.get();
+        if (existing != null) {
+            hits.incrementAndGet();
+            existing.lastUsedNanos = System.nanoTime();
+            if (existing.xsltTransformerFactory != null && retentionPolicy.maxCount > 0 && ! retained.containsKey(cacheKey)
+                    && retained.putIfAbsent(cacheKey, existing) == null)
+                scheduleReleaseLeastRecentlyUsed();
+            if (fileWatcherCount.get() > 0) existing.recordFiles(xslt);
+            return existing;
+        }
+
+        expungeCollectedEntries();
+
+        // The map locks only this key while deciding whether another thread has got here first.
+        // The object is complete before it is published: a thread finding it may compile it itself, see assertValid
+        val fresh = new WeaklyCachedXsltTransformer();
+        fresh.cacheKey = cacheKey;
+        val job = fresh.new CompileJob(cacheKey, nameForLogging, xslt);
+        fresh.pendingCompileJob = job;
+        val found = new WeaklyCachedXsltTransformer[1]; // strong reference, so the referent can't vanish after compute returns
+        val replacesCollected = new boolean[1];
+        val entry = cache.compute(cacheKey, (k, current) -> {
+            found[0] = (current == null) ? null : current.get();
+            if (found[0] != null) return current;
+            replacesCollected[0] = (current != null);
+            found[0] = fresh;
+            return new CacheEntry(k, fresh);
+        });
+        if (found[0] != fresh) {
+            hits.incrementAndGet();
+            if (fileWatcherCount.get() > 0) found[0].recordFiles(xslt);
+            return found[0];
+        }
+
+        // We are responsible for compiling it
+        misses.incrementAndGet();
+        fresh.recordFiles(xslt);
+        if (collectedCacheKeys.remove(cacheKey) != null || replacesCollected[0]) recompilations.incrementAndGet();
+        threads.addTask(job);
+        return fresh;
     }
 
+    /** The same object is always returned, so that its pool of {@link Transformer}s is shared */
     public static @Nonnull WeaklyCachedXsltTransformer getIdentityTransformer() {
-        val transformerFactory = (TransformerFactoryImpl) TransformerFactory.newInstance(
-            TransformerFactoryImpl.class.getName(), DocumentGenerator.class.getClassLoader());
-
+        return identityTransformer;
+    }
+    
+    protected static @Nonnull WeaklyCachedXsltTransformer newIdentityTransformer() {
         val result = new WeaklyCachedXsltTransformer();
         result.xsltTransformerFactory = new XsltTransformerFactory() {
             @SneakyThrows(TransformerConfigurationException.class)
             @Override public Transformer newTransformer() { return transformerFactory.newTransformer(); }
         };
+        result.compilation.complete(null);
         return result;
     }
-    
+
+    /** @return identifies the current version of the XSLT, see {@link Xslt#calculateCacheKey()}; null for the identity transformer */
+    public @CheckForNull String getCacheKey() {
+        return cacheKey;
+    }
+
+    /** @return completes, with this object, once the XSLT has been compiled, successfully or not */
+    public @Nonnull CompletableFuture<WeaklyCachedXsltTransformer> getCompilationFuture() {
+        return compilation.thenApply(v -> this);
+    }
+
+    /** If compilation has not started yet, e.g. it is queued behind many other XSLTs, compile it in this thread */
+    protected void compileNowIfPending() {
+        val job = pendingCompileJob;
+        if (job != null) job.run();
+    }
+
+    /**
+     * Waits until the XSLT has been compiled, successfully or not.
+     * If it has not started compiling, it is compiled immediately by the calling thread, without a timeout.
+     * @throws TimeoutException if another thread is compiling it, and hasn't finished in time
+     */
+    public void awaitCompilation(long timeout, @Nonnull TimeUnit unit) throws TimeoutException, InterruptedException {
+        compileNowIfPending();
+        try { compilation.get(timeout, unit); }
+        catch (ExecutionException e) { throw new RuntimeException(e); } // never completed exceptionally
+    }
+
+    /** Waits for compilation, if necessary. Compilation of the same XSLT will not be started twice. */
     public void assertValid() throws DocumentTemplateInvalidException {
+        compileNowIfPending();
+        compilation.join();
         if (error != null) throw new DocumentTemplateInvalidException(error);
     }
 
     public static @Nonnull WeaklyCachedXsltTransformer newInvalidTransformer(@Nonnull String error) {
         val result = new WeaklyCachedXsltTransformer();
         result.error = error;
+        result.compilation.complete(null);
         return result;
     }
     
@@ -168,4 +669,35 @@ public class WeaklyCachedXsltTransformer {
         assertValid();
         return xsltTransformerFactory.newTransformer();
     }
+
+    /**
+     * @param parameters XSLT parameters; must not be modified after being passed to this method
+     * @return should be closed after the transformation, to return it to the pool
+     */
+    public @Nonnull PooledTransformer borrowTransformer(@Nonnull Map<String, String> parameters)
+    throws DocumentTemplateInvalidException {
+        return borrowTransformer(parameters, parameters);
+    }
+
+    /** @return should be closed after the transformation, to return it to the pool */
+    public @Nonnull PooledTransformer borrowTransformer(@Nonnull ConvertedParameters parameters)
+    throws DocumentTemplateInvalidException {
+        return borrowTransformer(parameters, parameters.getConvertedValues());
+    }
+
+    /** @param poolKey equal keys must have equal parameter values */
+    protected @Nonnull PooledTransformer borrowTransformer(@Nonnull Object poolKey, @Nonnull Map<String, ?> parameters)
+    throws DocumentTemplateInvalidException {
+        assertValid();
+
+        // Read pool before factory; setTemplates writes them in the other order, so a pool never gets an old version
+        val pool = pooledTransformers;
+        val idle = pool.get(poolKey);
+        Transformer result = (idle == null) ? null : idle.poll();
+        if (result == null) {
+            result = xsltTransformerFactory.newTransformer();
+            for (val p : parameters.entrySet()) result.setParameter(p.getKey(), p.getValue());
+        }
+        return new PooledTransformer(pool, poolKey, result);
+    }
 }
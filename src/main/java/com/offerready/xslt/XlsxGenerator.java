@@ -0,0 +1,323 @@
+package com.offerready.xslt;
+
+import com.databasesandlife.util.Timer;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.xml.sax.SAXException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Converts HTML tables to an Excel 2007 (OOXML, ".xlsx") file, with the same rules as {@link ExcelGenerator}.
+ *    <p>
+ * {@link ExcelGenerator} holds the whole workbook in memory until the document ends, and the XLS format
+ * has at most 65,536 rows. Here, each row is written out as soon as it ends, so memory does not grow with the
+ * number of rows, and a sheet may have up to 1,048,576 rows. Only rows in &lt;tfoot&gt; are held,
+ * until the end of their table, as they appear after the body.
+ *    <p>
+ * Column widths are only known once all rows have been seen, but must appear before the rows in the sheet.
+ * Therefore rows are written to a temporary file, which is copied into the file once the document ends.
+ * Each distinct string is written once, to a shared-string table, and each distinct cell format is written once.
+ * These, and merged cells, are held in memory: they grow with the number of distinct strings and formats,
+ * and of cells with a colspan, rather than with the number of rows. Once {@link #maxSharedStrings} distinct strings
+ * have been seen, further new strings are written into their cells, so that the table does not grow without limit.
+ *    <p>
+ * {@link #close()} deletes the temporary file, if the document does not end, for example as the XSLT fails.
+ */
+public class XlsxGenerator extends ExcelGenerator implements AutoCloseable {
+
+    public static final String contentType = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
+    protected static final int maxRows = 1_048_576, maxColumns = 16_384;
+    protected static final String main = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    protected static final String relationships = "http://schemas.openxmlformats.org/package/2006/relationships";
+    protected static final String officeDocument = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    protected final @Nonnull ZipOutputStream xlsx;
+    protected final @CheckForNull File tempDirectoryOrNull;
+    protected @CheckForNull File rowsFile = null;
+    protected @CheckForNull Writer rows = null;
+    protected final @Nonnull Map<String, Integer> sharedStringIndex = new LinkedHashMap<>();
+    protected long sharedStringCount = 0;
+    protected final @Nonnull Map<CellAndNumberFormat, Integer> cellFormatIndex = new LinkedHashMap<>();
+    protected final @Nonnull StringBuilder mergeCells = new StringBuilder();
+    protected int mergeCellCount = 0;
+    protected @Setter int maxSharedStrings = 100_000;
+
+    /**
+     * @param xlsx is closed after transformation
+     * @param tempDirectoryOrNull where the rows are held until the document ends, or null for the system temporary directory
+     */
+    public XlsxGenerator(
+        @Nonnull InputDecimalSeparator inputDecimalSeparator, @Nonnull OutputStream xlsx, @CheckForNull File tempDirectoryOrNull
+    ) {
+        super(inputDecimalSeparator);
+        this.xlsx = new ZipOutputStream(xlsx, UTF_8);
+        this.tempDirectoryOrNull = tempDirectoryOrNull;
+        cellFormatIndex.put(new CellAndNumberFormat(new CellFormat(), null), 0);
+    }
+
+    /** @param xlsx is closed after transformation */
+    public XlsxGenerator(@Nonnull InputDecimalSeparator inputDecimalSeparator, @Nonnull OutputStream xlsx) {
+        this(inputDecimalSeparator, xlsx, null);
+    }
+
+    protected static @Nonnull String getColumnName(int colIdx) {
+        val result = new StringBuilder();
+        for (int c = colIdx + 1; c > 0; c = (c - 1) / 26) result.insert(0, (char) ('A' + (c - 1) % 26));
+        return result.toString();
+    }
+
+    /** Writes text escaped for XML; characters which XML does not allow are left out */
+    protected static void writeEscaped(@Nonnull Writer out, @Nonnull String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            val c = text.charAt(i);
+            switch (c) {
+                case '&': out.write("&amp;"); break;
+                case '<': out.write("&lt;"); break;
+                case '>': out.write("&gt;"); break;
+                case '"': out.write("&quot;"); break;
+                default:
+                    if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') break;
+                    if (c == '\uFFFE' || c == '\uFFFF') break;
+                    out.write(c);
+            }
+        }
+    }
+
+    /** @return null if the string is not in the table, and the table is full */
+    protected @CheckForNull Integer getSharedStringIndex(@Nonnull String string) {
+        Integer result = sharedStringIndex.get(string);
+        if (result == null && sharedStringIndex.size() < maxSharedStrings) sharedStringIndex.put(string, result = sharedStringIndex.size());
+        if (result != null) sharedStringCount++;
+        return result;
+    }
+
+    /** Writes the content of a shared or inline string */
+    protected static void writeStringItem(@Nonnull Writer out, @Nonnull String s) throws IOException {
+        val preserve = ! s.isEmpty() && (Character.isWhitespace(s.charAt(0)) || Character.isWhitespace(s.charAt(s.length() - 1)));
+        out.write(preserve ? "<t xml:space=\"preserve\">" : "<t>");
+        writeEscaped(out, s);
+        out.write("</t>");
+    }
+
+    protected int getCellFormatIndex(@Nonnull CellFormat format, @CheckForNull String numberFormat) {
+        return cellFormatIndex.computeIfAbsent(new CellAndNumberFormat(format, numberFormat), f -> cellFormatIndex.size());
+    }
+
+    @Override
+    @SneakyThrows(IOException.class)
+    protected void writeRow(@Nonnull List<CellFromHtml> row) {
+        if (nextRowInExcel >= maxRows) throw new IllegalStateException("More than " + maxRows + " rows, which is the maximum of an Excel sheet");
+
+        rows.write("<row r=\"" + (nextRowInExcel + 1) + "\">");
+        int colIdx = 0;
+        for (val cell : row) {
+            if (colIdx >= maxColumns) throw new IllegalStateException("More than " + maxColumns + " columns, which is the maximum of an Excel sheet");
+
+            val text = cell.string.toString();
+            Object cellValue = cell.forceText ? text : parseString(text);
+            if (cellValue instanceof Double && (((Double) cellValue).isNaN() || ((Double) cellValue).isInfinite())) cellValue = text.trim();
+
+            val ref = getColumnName(colIdx) + (nextRowInExcel + 1);
+            final int columnWidthChars;
+            if (cellValue instanceof Double) {
+                int decimalPlaces = inputDecimalSeparator.determineDecimalPlaces(text);
+                val style = getCellFormatIndex(cell.format, getNumberFormat(decimalPlaces));
+                rows.write("<c r=\"" + ref + "\"" + (style == 0 ? "" : " s=\"" + style + "\"") + "><v>" + cellValue + "</v></c>");
+                columnWidthChars = getFormattedLength((Double) cellValue, decimalPlaces);
+            } else if (cellValue instanceof String) {
+                val style = getCellFormatIndex(cell.format, null);
+                val index = getSharedStringIndex((String) cellValue);
+                rows.write("<c r=\"" + ref + "\"" + (style == 0 ? "" : " s=\"" + style + "\""));
+                if (index != null) rows.write(" t=\"s\"><v>" + index + "</v></c>");
+                else {
+                    rows.write(" t=\"inlineStr\"><is>");
+                    writeStringItem(rows, (String) cellValue);
+                    rows.write("</is></c>");
+                }
+                columnWidthChars = ((String) cellValue).length();
+            } else {
+                throw new RuntimeException("Unreachable: " + cellValue.getClass());
+            }
+
+            recordColumnWidth(colIdx, columnWidthChars);
+
+            val colspan = Math.max(1, cell.colspan); // references must ascend, or Excel reports the file as corrupt
+            if (colspan > 1) {
+                mergeCells.append("<mergeCell ref=\"").append(ref).append(":")
+                    .append(getColumnName(colIdx + colspan - 1)).append(nextRowInExcel + 1).append("\"/>");
+                mergeCellCount++;
+            }
+            colIdx += colspan;
+        }
+        rows.write("</row>");
+        nextRowInExcel++;
+    }
+
+    /** Rows are written as they end, apart from those in &lt;tfoot&gt;, which are written at the end of the table */
+    @Override protected void endRow(@Nonnull List<CellFromHtml> row) {
+        if (currentMatrix == currentFootMatrix) super.endRow(row);
+        else writeRow(row);
+    }
+
+    @Override public void startDocument() throws SAXException {
+        timer = new Timer("Create XLSX from XML");
+        try {
+            rowsFile = File.createTempFile("xlsx-rows-", ".xml", tempDirectoryOrNull);
+            rows = new BufferedWriter(new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(rowsFile)), UTF_8), 64 * 1024);
+        }
+        catch (IOException e) { throw new SAXException(e); }
+    }
+
+    protected void putEntry(@Nonnull Writer out, @Nonnull String name, @Nonnull String xml) throws IOException {
+        out.flush();
+        xlsx.putNextEntry(new ZipEntry(name));
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        out.write(xml);
+        out.flush();
+    }
+
+    protected void writeSheet(@Nonnull Writer out) throws IOException {
+        putEntry(out, "xl/worksheets/sheet1.xml", "<worksheet xmlns=\"" + main + "\">");
+        boolean hasColumns = false;
+        for (int colIdx = 0; colIdx < maxCharsSeenInColumn.size(); colIdx++) {
+            int length = maxCharsSeenInColumn.get(colIdx);
+            if (length == 0) continue;
+            if ( ! hasColumns) out.write("<cols>");
+            hasColumns = true;
+            out.write("<col min=\"" + (colIdx + 1) + "\" max=\"" + (colIdx + 1) + "\" width=\"" + (int) (length*1.5) + "\" customWidth=\"1\"/>");  // *1.5 otherwise cols too narrow
+        }
+        if (hasColumns) out.write("</cols>");
+        out.write("<sheetData>");
+        out.flush();
+        rows.close();
+        Files.copy(rowsFile.toPath(), xlsx);
+        out.write("</sheetData>");
+        if (mergeCellCount > 0) out.write("<mergeCells count=\"" + mergeCellCount + "\">" + mergeCells + "</mergeCells>");
+        out.write("</worksheet>");
+    }
+
+    protected void writeSharedStrings(@Nonnull Writer out) throws IOException {
+        putEntry(out, "xl/sharedStrings.xml",
+            "<sst xmlns=\"" + main + "\" count=\"" + sharedStringCount + "\" uniqueCount=\"" + sharedStringIndex.size() + "\">");
+        for (val s : sharedStringIndex.keySet()) {
+            out.write("<si>");
+            writeStringItem(out, s);
+            out.write("</si>");
+        }
+        out.write("</sst>");
+    }
+
+    protected void writeStyles(@Nonnull Writer out) throws IOException {
+        val numberFormatIds = new LinkedHashMap<String, Integer>();
+        val fontIds = new LinkedHashMap<List<Object>, Integer>();
+        fontIds.put(Arrays.asList(false, null), 0);
+        for (val f : cellFormatIndex.keySet()) {
+            if (f.numberFormat != null) numberFormatIds.computeIfAbsent(f.numberFormat, n -> 164 + numberFormatIds.size()); // 164+ are custom
+            fontIds.computeIfAbsent(Arrays.asList(f.format.isBold, f.format.color), k -> fontIds.size());
+        }
+
+        putEntry(out, "xl/styles.xml", "<styleSheet xmlns=\"" + main + "\">");
+        if ( ! numberFormatIds.isEmpty()) {
+            out.write("<numFmts count=\"" + numberFormatIds.size() + "\">");
+            for (val e : numberFormatIds.entrySet()) {
+                out.write("<numFmt numFmtId=\"" + e.getValue() + "\" formatCode=\"");
+                writeEscaped(out, e.getKey());
+                out.write("\"/>");
+            }
+            out.write("</numFmts>");
+        }
+        out.write("<fonts count=\"" + fontIds.size() + "\">");
+        for (val font : fontIds.keySet()) {
+            out.write("<font>");
+            if ((Boolean) font.get(0)) out.write("<b/>");
+            out.write("<sz val=\"10\"/>");
+            val color = (Color) font.get(1);
+            if (color != null) {
+                val rgb = color.toExcelColour().getDefaultRGB();
+                out.write(String.format("<color rgb=\"FF%02X%02X%02X\"/>", rgb.getRed(), rgb.getGreen(), rgb.getBlue()));
+            }
+            out.write("<name val=\"Arial\"/></font>");
+        }
+        out.write("</fonts>");
+        out.write("<fills count=\"2\"><fill><patternFill patternType=\"none\"/></fill><fill><patternFill patternType=\"gray125\"/></fill></fills>");
+        out.write("<borders count=\"2\"><border><left/><right/><top/><bottom/><diagonal/></border>" +
+            "<border><left/><right/><top style=\"thin\"><color auto=\"1\"/></top><bottom/><diagonal/></border></borders>");
+        out.write("<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>");
+        out.write("<cellXfs count=\"" + cellFormatIndex.size() + "\">");
+        for (val f : cellFormatIndex.keySet()) {
+            out.write("<xf numFmtId=\"" + (f.numberFormat == null ? 0 : numberFormatIds.get(f.numberFormat)) + "\"" +
+                " fontId=\"" + fontIds.get(Arrays.asList(f.format.isBold, f.format.color)) + "\" fillId=\"0\"" +
+                " borderId=\"" + (f.format.hasTopBorder ? 1 : 0) + "\" xfId=\"0\"" +
+                (f.numberFormat == null ? "" : " applyNumberFormat=\"1\"") + (f.format.isCentered ? " applyAlignment=\"1\">" +
+                "<alignment horizontal=\"center\"/></xf>" : "/>"));
+        }
+        out.write("</cellXfs>");
+        out.write("<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>");
+        out.write("</styleSheet>");
+    }
+
+    @Override public void endDocument() throws SAXException {
+        try {
+            val out = new BufferedWriter(new OutputStreamWriter(xlsx, UTF_8));
+            putEntry(out, "[Content_Types].xml", "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">" +
+                "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>" +
+                "<Default Extension=\"xml\" ContentType=\"application/xml\"/>" +
+                "<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>" +
+                "<Override PartName=\"/xl/worksheets/sheet1.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>" +
+                "<Override PartName=\"/xl/sharedStrings.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sharedStrings+xml\"/>" +
+                "<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>" +
+                "</Types>");
+            putEntry(out, "_rels/.rels", "<Relationships xmlns=\"" + relationships + "\">" +
+                "<Relationship Id=\"rId1\" Type=\"" + officeDocument + "/officeDocument\" Target=\"xl/workbook.xml\"/></Relationships>");
+            putEntry(out, "xl/workbook.xml", "<workbook xmlns=\"" + main + "\" xmlns:r=\"" + officeDocument + "\">" +
+                "<sheets><sheet name=\"Report\" sheetId=\"1\" r:id=\"rId1\"/></sheets></workbook>");
+            putEntry(out, "xl/_rels/workbook.xml.rels", "<Relationships xmlns=\"" + relationships + "\">" +
+                "<Relationship Id=\"rId1\" Type=\"" + officeDocument + "/worksheet\" Target=\"worksheets/sheet1.xml\"/>" +
+                "<Relationship Id=\"rId2\" Type=\"" + officeDocument + "/sharedStrings\" Target=\"sharedStrings.xml\"/>" +
+                "<Relationship Id=\"rId3\" Type=\"" + officeDocument + "/styles\" Target=\"styles.xml\"/></Relationships>");
+            writeSheet(out);
+            writeSharedStrings(out);
+            writeStyles(out);
+            out.flush();
+            xlsx.close();
+        }
+        catch (IOException e) { throw new SAXException(e); }
+        finally { close(); }
+    }
+
+    /** Stops the timer, and deletes the temporary file; does not close the output */
+    @Override public void close() {
+        try {
+            try { if (rows != null) rows.close(); }
+            finally { if (rowsFile != null) Files.deleteIfExists(rowsFile.toPath()); }
+        }
+        catch (IOException e) { throw new RuntimeException(e); }
+        finally {
+            rows = null;
+            rowsFile = null;
+            if (timer != null) timer.close();
+            timer = null;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.offerready.xslt;
+
+import lombok.SneakyThrows;
+import lombok.val;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches directories containing XSLT files, and recompiles any {@link WeaklyCachedXsltTransformer} whose XSLT file has changed.
+ *    <p>
+ * Recompilation happens on a background thread belonging to this object.
+ * The new version replaces the old version within the existing {@link WeaklyCachedXsltTransformer},
+ * so existing {@link DocumentGenerator}s use the new version, and no request has to wait for the compilation.
+ * If the new version does not compile, the previous version continues to be used.
+ *    <p>
+ * Files imported or included by XSLTs are also taken into account: if such a file changes,
+ * all XSLTs which import it, and only those, are recompiled. The directories containing such files must also be watched.
+ *    <p>
+ * If the same XSLT exists in several places in the filesystem, the objects are shared (see {@link WeaklyCachedXsltTransformer}).
+ * Changing the file in one place leaves the shared object alone, so users of the other places are not affected;
+ * the changed file gets a new object, which {@link WeaklyCachedXsltTransformer#forFile(File)} returns.
+ *    <p>
+ * Create this object before creating {@link DocumentGenerator}s, and close it when the application shuts down.
+ */
+public class XsltFileWatcher implements AutoCloseable {
+
+    protected final @Nonnull WatchService watchService;
+    protected final @Nonnull Map<WatchKey, Path> directoryForKey = new ConcurrentHashMap<>();
+    protected final @Nonnull Thread thread;
+
+    /** @param directories these are watched, including their subdirectories */
+    @SneakyThrows(IOException.class)
+    public XsltFileWatcher(@Nonnull Collection<File> directories) {
+        watchService = FileSystems.getDefault().newWatchService();
+        for (val d : directories) registerRecursively(d.toPath().toAbsolutePath().normalize());
+
+        WeaklyCachedXsltTransformer.fileWatcherCount.incrementAndGet();
+
+        thread = new Thread(this::run, getClass().getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    protected void registerRecursively(@Nonnull Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                directoryForKey.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    protected void run() {
+        try {
+            while (true) {
+                val key = watchService.take();
+                val directory = directoryForKey.get(key);
+                val changedFiles = new LinkedHashSet<Path>(); // editors often produce several events per save
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (directory == null || event.kind() == OVERFLOW) continue;
+                    val file = directory.resolve((Path) event.context());
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(file)) registerRecursively(file);
+                    else changedFiles.add(file);
+                }
+                if ( ! key.reset()) directoryForKey.remove(key);
+
+                for (val file : changedFiles) {
+                    try { fileChanged(file); }
+                    catch (Exception e) { Logger.getLogger(getClass()).error("Cannot recompile XSLT after change to '" + file + "'", e); }
+                }
+            }
+        }
+        catch (ClosedWatchServiceException | InterruptedException ignored) { } // close() has been called
+        catch (Exception e) { Logger.getLogger(getClass()).error("XSLT file watcher has stopped", e); }
+    }
+
+    /** @param file absolute and normalized */
+    protected static void fileChanged(@Nonnull Path file) {
+        // Modification time might not have changed, if the filesystem's resolution is coarse
+        DocumentGenerator.StyleVisionXslt.fingerprintForPath.remove(file);
+        WeaklyCachedXsltTransformer.recompileIfChanged(file);
+    }
+
+    @SneakyThrows({IOException.class, InterruptedException.class})
+    @Override public void close() {
+        watchService.close();
+        thread.join();
+        WeaklyCachedXsltTransformer.fileWatcherCount.decrementAndGet();
+    }
+}
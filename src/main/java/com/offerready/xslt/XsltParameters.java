@@ -1,13 +1,22 @@
 package com.offerready.xslt;
 
 import com.databasesandlife.util.gwtsafe.ConfigurationException;
-import lombok.RequiredArgsConstructor;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.ConvertedParameters;
+import lombok.Getter;
 import lombok.val;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.s9api.ItemType;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.trans.XPathException;
 import org.w3c.dom.Element;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -23,32 +32,152 @@ import static com.databasesandlife.util.DomParser.getSubElements;
  *    <p>
  * These can have localized versions for different languages.
  * For each <code>&lt;placeholder-value&gt;</code> element in the config file, there may be additional ones with the same
- * "placeholder-name", but with a "language" attribute, for example 
+ * "placeholder-name", but with a "language" attribute, for example
  * <code>&lt;placeholder-value placeholder-name="CostPerUserAlertTreshold" value="10" language="de"/&gt;</code>.
+ *    <p>
+ * Values are strings, unless a "type" attribute is present: one of "integer", "decimal", "double", "boolean",
+ * "date", "dateTime" or "document". A "document" value is the path of an XML file, relative to the template directory,
+ * and the parameter is its document node.
+ *    <p>
+ * The parameters for each language are converted to XSLT values once, see {@link #getSnapshot(String)}.
  */
-@RequiredArgsConstructor
 public class XsltParameters implements Serializable {
-    
+
+    protected static final Map<String, ItemType> atomicTypeForName = new HashMap<>();
+    static {
+        atomicTypeForName.put("string", ItemType.STRING);
+        atomicTypeForName.put("integer", ItemType.INTEGER);
+        atomicTypeForName.put("decimal", ItemType.DECIMAL);
+        atomicTypeForName.put("double", ItemType.DOUBLE);
+        atomicTypeForName.put("boolean", ItemType.BOOLEAN);
+        atomicTypeForName.put("date", ItemType.DATE);
+        atomicTypeForName.put("dateTime", ItemType.DATE_TIME);
+    }
+
+    /**
+     * Parameters for one language, merged with the default parameters, and converted to XSLT values.
+     * Immutable, so one object serves all transformations.
+     */
+    public static class Snapshot implements ConvertedParameters {
+        /** Values as in the configuration file */
+        protected final @Getter @Nonnull Map<String, String> strings;
+        protected final @Nonnull Map<String, String> types;
+        protected final @Nonnull Map<String, Sequence> values;
+        protected final int hashCode; // computed once, as transformers are looked up by this for each transformation
+
+        protected Snapshot(@Nonnull Map<String, String> strings, @Nonnull Map<String, String> types, @Nonnull Map<String, Sequence> values) {
+            this.strings = strings; this.types = types; this.values = values;
+            hashCode = strings.hashCode() * 31 + types.hashCode();
+        }
+
+        @Override public @Nonnull Map<String, Sequence> getConvertedValues() { return values; }
+
+        @Override public int hashCode() { return hashCode; }
+
+        @Override public boolean equals(Object other) {
+            if (other == this) return true;
+            if ( ! (other instanceof Snapshot)) return false;
+            val o = (Snapshot) other;
+            return hashCode == o.hashCode && strings.equals(o.strings) && types.equals(o.types);
+        }
+    }
+
     /** From language to a set of params. The language "" (empty string) is the default */
     final protected Map<String, Map<String, String>> paramsForLanguage;
-    
-    public XsltParameters(@Nonnull Element outputDefnElement) 
+
+    /** From param name to its type, if not "string". Paths of "document" params are absolute */
+    final protected Map<String, String> typeForParam;
+
+    /** From language to params, as passed to the XSLT; recreated after deserialization */
+    protected transient volatile Map<String, Snapshot> snapshotForLanguage;
+
+    public XsltParameters(@Nonnull Map<String, Map<String, String>> paramsForLanguage) {
+        this.paramsForLanguage = paramsForLanguage;
+        this.typeForParam = Collections.emptyMap();
+        this.snapshotForLanguage = newSnapshots();
+    }
+
+    /** @param templateContainerDirectory "document" values are relative to this directory */
+    public XsltParameters(@Nonnull File templateContainerDirectory, @Nonnull Element outputDefnElement)
     throws ConfigurationException {
         paramsForLanguage = new HashMap<>();
         paramsForLanguage.put("", new HashMap<>());
+        typeForParam = new HashMap<>();
+        val declaredTypeForParam = new HashMap<String, String>(); // including "string", so the order of entries doesn't matter
         for (Element p : getSubElements(outputDefnElement, "placeholder-value")) {
             String key = getMandatoryAttribute(p, "placeholder-name");
             String value = getMandatoryAttribute(p, "value");
             String language = getOptionalAttribute(p, "language", "");
+            String type = getOptionalAttribute(p, "type", "string");
+            if ( ! type.equals("document") && ! atomicTypeForName.containsKey(type))
+                throw new ConfigurationException("<placeholder-value placeholder-name='" + key + "'>: unknown type '" + type + "'");
+            val declaredType = declaredTypeForParam.putIfAbsent(key, type);
+            if (declaredType != null && ! declaredType.equals(type))
+                throw new ConfigurationException("<placeholder-value placeholder-name='" + key + "'>: different types for different languages");
+            if ( ! type.equals("string")) typeForParam.put(key, type);
+            if (type.equals("document")) value = new File(templateContainerDirectory, value).getAbsolutePath();
             paramsForLanguage.putIfAbsent(language, new HashMap<>());
             paramsForLanguage.get(language).put(key, value);
         }
+
+        try { snapshotForLanguage = newSnapshots(); }
+        catch (IllegalArgumentException e) { throw new ConfigurationException(e.getMessage(), e); }
     }
-    
-    public @Nonnull Map<String, String> get(@CheckForNull String language) {
-        val result = new HashMap<String, String>(paramsForLanguage.get(""));
-        val lang = paramsForLanguage.get(language);
-        if (lang != null) result.putAll(lang);
+
+    /** "document" values are relative to the current directory */
+    public XsltParameters(@Nonnull Element outputDefnElement)
+    throws ConfigurationException {
+        this(new File("."), outputDefnElement);
+    }
+
+    /** @throws IllegalArgumentException if a value is not valid for its type */
+    protected @Nonnull Map<String, Snapshot> newSnapshots() {
+        val defaults = paramsForLanguage.getOrDefault("", Collections.emptyMap());
+        val documentForPath = new HashMap<String, Sequence>();
+        val result = new HashMap<String, Snapshot>();
+        for (val language : paramsForLanguage.keySet()) {
+            val strings = new HashMap<String, String>(defaults);
+            strings.putAll(paramsForLanguage.get(language));
+
+            val types = new HashMap<String, String>();
+            val values = new HashMap<String, Sequence>();
+            for (val e : strings.entrySet()) {
+                val type = typeForParam.getOrDefault(e.getKey(), "string");
+                types.put(e.getKey(), type);
+                try {
+                    if (type.equals("document")) {
+                        if ( ! documentForPath.containsKey(e.getValue())) documentForPath.put(e.getValue(),
+                            WeaklyCachedXsltTransformer.transformerFactory.getConfiguration()
+                                .buildDocumentTree(new StreamSource(new File(e.getValue()))).getRootNode());
+                        values.put(e.getKey(), documentForPath.get(e.getValue()));
+                    }
+                    else values.put(e.getKey(), new XdmAtomicValue(e.getValue(), atomicTypeForName.get(type)).getUnderlyingValue());
+                }
+                catch (SaxonApiException | XPathException x) {
+                    throw new IllegalArgumentException("<placeholder-value placeholder-name='" + e.getKey() + "'>: " +
+                        "value '" + e.getValue() + "' is not a valid " + type + ": " + x.getMessage(), x);
+                }
+            }
+
+            result.put(language, new Snapshot(Collections.unmodifiableMap(strings), Collections.unmodifiableMap(types),
+                Collections.unmodifiableMap(values)));
+        }
+        if ( ! result.containsKey(""))
+            result.put("", new Snapshot(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap()));
         return result;
     }
+
+    /** @param language or null for the default parameters */
+    public @Nonnull Snapshot getSnapshot(@CheckForNull String language) {
+        Map<String, Snapshot> snapshots = snapshotForLanguage;
+        if (snapshots == null) snapshotForLanguage = snapshots = newSnapshots(); // values were valid when parsed
+
+        val result = (language == null) ? null : snapshots.get(language);
+        return (result == null) ? snapshots.get("") : result;
+    }
+
+    /** @return a new map, which the caller may modify */
+    public @Nonnull Map<String, String> get(@CheckForNull String language) {
+        return new HashMap<>(getSnapshot(language).getStrings());
+    }
 }
@@ -0,0 +1,167 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import junit.framework.TestCase;
+import lombok.val;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class AsyncHttpResponseDocumentGenerationDestinationTest extends TestCase {
+
+    /** Accepts one write each time {@link #accept()} is called, as the container would for a slow client */
+    protected static class SlowClientOutputStream extends ServletOutputStream {
+        protected final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        protected int credit = 0;
+        protected boolean listenerWaiting = false;
+        protected @CheckForNull WriteListener listener;
+
+        @Override public synchronized boolean isReady() {
+            if (credit > 0) return true;
+            listenerWaiting = true;
+            return false;
+        }
+
+        @Override public void setWriteListener(WriteListener l) {
+            listener = l;
+            try { l.onWritePossible(); }
+            catch (IOException e) { throw new RuntimeException(e); }
+        }
+
+        @Override public void write(int b) { write(new byte[] { (byte) b }, 0, 1); }
+
+        @Override public synchronized void write(@Nonnull byte[] b, int off, int len) {
+            if (credit == 0) throw new IllegalStateException("Written when not ready");
+            credit--;
+            received.write(b, off, len);
+        }
+
+        protected void accept() throws IOException {
+            boolean notify;
+            synchronized (this) {
+                credit++;
+                notify = listenerWaiting;
+                listenerWaiting = false;
+            }
+            if (notify) listener.onWritePossible();
+        }
+    }
+
+    protected static @Nonnull AsyncContext newAsyncContext(
+        @Nonnull SlowClientOutputStream out, @Nonnull Map<String, Object> calls, @Nonnull AtomicInteger completeCount
+    ) {
+        val response = Proxy.newProxyInstance(getClassLoader(), new Class<?>[] { HttpServletResponse.class }, (p, m, args) -> {
+            if (args != null && args.length > 0) calls.put(m.getName(), args[0]);
+            switch (m.getName()) {
+                case "getOutputStream": return out;
+                case "isCommitted": return false;
+                default: return null;
+            }
+        });
+        return (AsyncContext) Proxy.newProxyInstance(getClassLoader(), new Class<?>[] { AsyncContext.class }, (p, m, args) -> {
+            switch (m.getName()) {
+                case "getResponse": return response;
+                case "complete": completeCount.incrementAndGet(); return null;
+                default: throw new UnsupportedOperationException(m.getName());
+            }
+        });
+    }
+
+    protected static @Nonnull ClassLoader getClassLoader() {
+        return AsyncHttpResponseDocumentGenerationDestinationTest.class.getClassLoader();
+    }
+
+    public void test_transformAsync() throws Exception {
+        val dir = Files.createTempDirectory("xslt").toFile();
+        val file = new File(dir, "report.xslt");
+        val executor = Executors.newSingleThreadExecutor();
+        try {
+            Files.write(file.toPath(), ("<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+                "<xsl:output method='text'/><xsl:template match='/'>" +
+                "<xsl:if test='rows/@fail'><xsl:value-of select='error()'/></xsl:if>" +
+                "<xsl:for-each select='1 to rows/@count'>Row <xsl:value-of select='.'/><xsl:text>&#10;</xsl:text></xsl:for-each>" +
+                "</xsl:template></xsl:stylesheet>").getBytes(UTF_8));
+            val defn = new DocumentOutputDefinition(new XsltParameters(Collections.singletonMap("", Collections.emptyMap())));
+            defn.xsltFileOrNull = file;
+            val generator = new DocumentGenerator(new XsltCompilationThreads(), defn);
+
+            // Client reads slowly, document is larger than the queue
+            {
+                val out = new SlowClientOutputStream();
+                val calls = new ConcurrentHashMap<String, Object>();
+                val completeCount = new AtomicInteger();
+                val destination = new AsyncHttpResponseDocumentGenerationDestination(newAsyncContext(out, calls, completeCount), 1024, 2);
+                val rendered = generator.transformAsync(destination,
+                    () -> new StreamSource(new StringReader("<rows count='10000'/>")), true, null, null, executor);
+                while ( ! destination.getDelivered().isDone()) { out.accept(); Thread.sleep(0, 1000); }
+
+                rendered.get(10, TimeUnit.SECONDS);
+                destination.getDelivered().get();
+                val expected = new StringBuilder();
+                for (int i = 1; i <= 10000; i++) expected.append("Row ").append(i).append("\n");
+                assertEquals(expected.toString(), new String(out.received.toByteArray(), UTF_8));
+                assertEquals("text/plain; charset=UTF-8", calls.get("setContentType"));
+                assertEquals(1, completeCount.get());
+            }
+
+            // Document cannot be generated
+            {
+                val out = new SlowClientOutputStream();
+                val calls = new ConcurrentHashMap<String, Object>();
+                val completeCount = new AtomicInteger();
+                val destination = new AsyncHttpResponseDocumentGenerationDestination(newAsyncContext(out, calls, completeCount));
+                val rendered = generator.transformAsync(destination,
+                    () -> new StreamSource(new StringReader("<rows fail='true'/>")), true, null, null, executor)
+                    .whenComplete((x, e) -> { if (e != null) destination.abort(e); });
+
+                try { rendered.get(10, TimeUnit.SECONDS); fail(); }
+                catch (ExecutionException e) { }
+                assertTrue(destination.getDelivered().isCompletedExceptionally());
+                assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, calls.get("sendError"));
+                assertEquals(1, completeCount.get());
+            }
+
+            // Document cannot be generated, client is ready to receive everything; output stream is closed before abort
+            {
+                val out = new SlowClientOutputStream();
+                out.credit = Integer.MAX_VALUE;
+                val calls = new ConcurrentHashMap<String, Object>();
+                val completeCount = new AtomicInteger();
+                val destination = new AsyncHttpResponseDocumentGenerationDestination(newAsyncContext(out, calls, completeCount));
+                val rendered = generator.transformAsync(destination,
+                    () -> new StreamSource(new StringReader("<rows fail='true'/>")), true, null, null, executor);
+
+                try { rendered.get(10, TimeUnit.SECONDS); fail(); }
+                catch (ExecutionException e) { }
+                assertTrue(destination.getDelivered().isCompletedExceptionally());
+                assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, calls.get("sendError"));
+                assertEquals(1, completeCount.get());
+            }
+        }
+        finally {
+            executor.shutdown();
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package com.offerready.xslt;
+
+import com.databasesandlife.util.DomParser;
+import com.databasesandlife.util.MD5Hex;
+import com.offerready.xslt.DocumentGenerator.BatchItem;
+import com.offerready.xslt.DocumentGenerator.Output;
+import com.offerready.xslt.DocumentGenerator.StyleVisionXslt;
+import com.offerready.xslt.DocumentOutputDefinition.OutputConversion;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import junit.framework.TestCase;
+import lombok.val;
+import net.sf.saxon.om.NodeInfo;
+import org.json.JSONObject;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import javax.annotation.Nonnull;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class DocumentGeneratorTest extends TestCase {
+
+    public void test_StyleVisionXslt_calculateCacheKey() throws Exception {
+        val dir1 = Files.createTempDirectory("xslt1").toFile();
+        val dir2 = Files.createTempDirectory("xslt2").toFile();
+        val file1 = new File(dir1, "report.xslt");
+        val file2 = new File(dir2, "report.xslt");
+        try {
+            Files.write(file1.toPath(), "<a/>".getBytes(UTF_8));
+            Files.write(file2.toPath(), "<a/>".getBytes(UTF_8));
+            assertEquals(MD5Hex.md5(file1), new StyleVisionXslt(file1).calculateCacheKey());
+            assertEquals(new StyleVisionXslt(file1).calculateCacheKey(), new StyleVisionXslt(file2).calculateCacheKey());
+
+            Files.write(file1.toPath(), "<bb/>".getBytes(UTF_8));
+            assertTrue(file1.setLastModified(file1.lastModified() + 2000));
+            assertEquals(MD5Hex.md5(file1), new StyleVisionXslt(file1).calculateCacheKey());
+            assertFalse(new StyleVisionXslt(file1).calculateCacheKey().equals(new StyleVisionXslt(file2).calculateCacheKey()));
+        }
+        finally {
+            for (val f : new File[] { file1, file2, dir1, dir2 }) Files.deleteIfExists(f.toPath());
+        }
+    }
+
+    public void test_StyleVisionXslt_calculateCacheKey_imports() throws Exception {
+        val dir = Files.createTempDirectory("xslt").toFile();
+        val lib = new File(dir, "lib");
+        val main = new File(dir, "report.xslt");
+        val common = new File(lib, "common.xslt");
+        val other = new File(dir, "other.xslt");
+        try {
+            assertTrue(lib.mkdir());
+            Files.write(main.toPath(), ("<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+                "<xsl:import href='lib/common.xslt'/></xsl:stylesheet>").getBytes(UTF_8));
+            Files.write(common.toPath(), ("<!DOCTYPE xsl:stylesheet SYSTEM 'missing.dtd'>" + // not fetched
+                "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+                "<xsl:include href='../other.xslt'/></xsl:stylesheet>").getBytes(UTF_8));
+            Files.write(other.toPath(), "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'/>".getBytes(UTF_8));
+
+            val xslt = new StyleVisionXslt(main);
+            val key = xslt.calculateCacheKey();
+            assertFalse(key.equals(MD5Hex.md5(main)));
+            assertEquals(3, xslt.getFiles().size());
+            assertTrue(xslt.getFiles().contains(other));
+            assertEquals(key, new StyleVisionXslt(main).calculateCacheKey());
+
+            Files.write(other.toPath(), "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'></xsl:stylesheet>".getBytes(UTF_8));
+            assertFalse(key.equals(new StyleVisionXslt(main).calculateCacheKey()));
+        }
+        finally {
+            for (val f : new File[] { main, common, other, lib, dir }) Files.deleteIfExists(f.toPath());
+        }
+    }
+
+    public void test_StyleVisionXslt_newSource() throws Exception {
+        val dir = Files.createTempDirectory("xslt").toFile();
+        val file = new File(dir, "report.xslt");
+        try {
+            // Saxon-HE refuses xsl:import-schema; result-document/@href would write a file rather than to the output
+            Files.write(file.toPath(), ("<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+                "<xsl:import-schema schema-location='report.xsd'><!-- ignored --></xsl:import-schema>" +
+                "<xsl:output method='text'/>" +
+                "<xsl:template match='/'><xsl:result-document href='out.txt'>ok</xsl:result-document></xsl:template>" +
+                "</xsl:stylesheet>").getBytes(UTF_8));
+
+            val threads = new XsltCompilationThreads();
+            val transformer = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                threads, file.getName(), new StyleVisionXslt(file));
+            threads.execute();
+            transformer.assertValid();
+
+            val result = new StringWriter();
+            try (val t = transformer.borrowTransformer(Collections.emptyMap())) {
+                t.transform(new StreamSource(new StringReader("<input/>")), new StreamResult(result));
+            }
+            assertEquals("ok", result.toString());
+            assertFalse(new File(dir, "out.txt").exists());
+        }
+        finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    public void test_StyleVisionXslt_newSource_changedAfterKeyCalculated() throws Exception {
+        val dir = Files.createTempDirectory("xslt").toFile();
+        val file = new File(dir, "report.xslt");
+        val unique = UUID.randomUUID().toString();
+        try {
+            val v1 = "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+                "<xsl:output method='text'/><xsl:template match='/'>v1 " + unique + "</xsl:template></xsl:stylesheet>";
+            Files.write(file.toPath(), v1.getBytes(UTF_8));
+            val v1Key = new StyleVisionXslt(file).calculateCacheKey();
+
+            val threads = new XsltCompilationThreads();
+            val transformer = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                threads, file.getName(), new StyleVisionXslt(file));
+            Files.write(file.toPath(), v1.replace("v1", "version 2").getBytes(UTF_8)); // before it is compiled
+            threads.execute();
+
+            val result = new StringWriter();
+            try (val t = transformer.borrowTransformer(Collections.emptyMap())) {
+                t.transform(new StreamSource(new StringReader("<input/>")), new StreamResult(result));
+            }
+            assertEquals("version 2 " + unique, result.toString());
+            assertEquals(new StyleVisionXslt(file).calculateCacheKey(), transformer.getCacheKey());
+
+            // Version 1 isn't found under its own key
+            Files.write(file.toPath(), v1.getBytes(UTF_8));
+            assertEquals(v1Key, new StyleVisionXslt(file).calculateCacheKey());
+            assertNotSame(transformer, WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                threads, file.getName(), new StyleVisionXslt(file)));
+        }
+        finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    /** Generates rows as if from a database cursor; no input document ever exists */
+    protected static class CursorXmlReader extends XMLFilterImpl {
+        @Override public boolean getFeature(String name) { return name.endsWith("/namespaces"); }
+        @Override public void setFeature(String name, boolean value) { }
+
+        @Override public void parse(InputSource input) throws SAXException {
+            getContentHandler().startDocument();
+            getContentHandler().startElement("", "rows", "rows", new AttributesImpl());
+            for (int n = 1; n <= 3; n++) {
+                val attributes = new AttributesImpl();
+                attributes.addAttribute("", "n", "n", "CDATA", Integer.toString(n));
+                getContentHandler().startElement("", "row", "row", attributes);
+                getContentHandler().endElement("", "row", "row");
+            }
+            getContentHandler().endElement("", "rows", "rows");
+            getContentHandler().endDocument();
+        }
+    }
+
+    /** @param file written, and compiled, immediately */
+    protected static @Nonnull DocumentGenerator newGenerator(
+        @Nonnull File file, @Nonnull OutputConversion conversion, @Nonnull String template
+    ) throws Exception {
+        Files.write(file.toPath(), ("<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform' " +
+            "xmlns:fo='http://www.w3.org/1999/XSL/Format' exclude-result-prefixes='fo'>" +
+            "<xsl:output method='" + (conversion == OutputConversion.none ? "text" : "xml") + "'/>" +
+            "<xsl:template match='/'>" + template + "</xsl:template></xsl:stylesheet>").getBytes(UTF_8));
+        val defn = new DocumentOutputDefinition(new XsltParameters(Collections.singletonMap("", Collections.emptyMap())));
+        defn.xsltFileOrNull = file;
+        defn.outputConversion = conversion;
+
+        val generator = new DocumentGenerator(new XsltCompilationThreads(), defn);
+        generator.assertTemplateValid();
+        return generator;
+    }
+
+    protected static @Nonnull BufferedDocumentGenerationDestination transform(
+        @Nonnull OutputConversion conversion, @Nonnull String template, @Nonnull Source input
+    ) throws Exception {
+        val dir = Files.createTempDirectory("xslt").toFile();
+        val file = new File(dir, "report.xslt");
+        try {
+            val generator = newGenerator(file, conversion, template);
+            val destination = new BufferedDocumentGenerationDestination();
+            generator.transform(destination, input, true, null, null);
+            return destination;
+        }
+        finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    public void test_transform_source() throws Exception {
+        val sum = "<xsl:value-of select='sum(//row/@n)'/>";
+
+        val text = transform(OutputConversion.none, sum, new SAXSource(new CursorXmlReader(), new InputSource()));
+        assertEquals("6", text.getBody().toString("UTF-8"));
+
+        val json = transform(OutputConversion.xmlToJson, "<total>" + sum + "</total>",
+            new SAXSource(new CursorXmlReader(), new InputSource()));
+        assertEquals("6", new JSONObject(json.getBody().toString("UTF-8")).get("total").toString());
+
+        val excel = transform(OutputConversion.excelXmlToExcelBinary, "<table><tr><td>" + sum + "</td></tr></table>",
+            new SAXSource(new CursorXmlReader(), new InputSource()));
+        assertEquals((byte) 0xD0, excel.getBody().toByteArray()[0]); // OLE2 compound document
+
+        val xlsx = transform(OutputConversion.excelXmlToXlsx, "<table><tr><td>" + sum + "</td></tr></table>",
+            new SAXSource(new CursorXmlReader(), new InputSource()));
+        assertTrue(xlsx.getBody().toString("ISO-8859-1").startsWith("PK")); // zip
+
+        val pdf = transform(OutputConversion.xslFoToPdf,
+            "<fo:root><fo:layout-master-set><fo:simple-page-master master-name='A4'><fo:region-body/>" +
+            "</fo:simple-page-master></fo:layout-master-set><fo:page-sequence master-reference='A4'>" +
+            "<fo:flow flow-name='xsl-region-body'><fo:block>" + sum + "</fo:block></fo:flow></fo:page-sequence></fo:root>",
+            new SAXSource(new CursorXmlReader(), new InputSource()));
+        assertTrue(pdf.getBody().toString("ISO-8859-1").startsWith("%PDF"));
+
+        val html = transform(OutputConversion.htmlToBodyFragment,
+            "<html><head><style>.a { }</style></head><body><p>" + sum + "</p></body></html>",
+            new SAXSource(new CursorXmlReader(), new InputSource()));
+        assertEquals("<style>.a { }</style>\n\n\n<p>6</p>\n", html.getBody().toString("UTF-8"));
+
+        val xml = "<rows><row n='1'/><row n='2'/><row n='3'/></rows>";
+        val stax = transform(OutputConversion.none, sum,
+            new StAXSource(XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(xml))));
+        assertEquals("6", stax.getBody().toString("UTF-8"));
+
+        val channel = transform(OutputConversion.none, sum,
+            new StreamSource(Channels.newInputStream(Channels.newChannel(new ByteArrayInputStream(xml.getBytes(UTF_8))))));
+        assertEquals("6", channel.getBody().toString("UTF-8"));
+    }
+
+    public void test_transformEach() throws Exception {
+        val dir = Files.createTempDirectory("xslt").toFile();
+        val files = new File[] { new File(dir, "text.xslt"), new File(dir, "json.xslt"), new File(dir, "excel.xslt"), new File(dir, "invalid.xslt") };
+        val sum = "<xsl:value-of select='sum(//row/@n)'/>";
+        val executor = Executors.newFixedThreadPool(2);
+        try {
+            val text = newGenerator(files[0], OutputConversion.none, sum);
+            val json = newGenerator(files[1], OutputConversion.xmlToJson, "<total>" + sum + "</total>");
+            val excel = newGenerator(files[2], OutputConversion.excelXmlToExcelBinary, "<table><tr><td>" + sum + "</td></tr></table>");
+            val failing = newGenerator(files[3], OutputConversion.none, "<xsl:value-of select='error()'/>");
+
+            assertTrue(DocumentGenerator.prepareInput(new SAXSource(new CursorXmlReader(), new InputSource())) instanceof NodeInfo);
+
+            for (val e : new Executor[] { null, executor }) {
+                // A source which can only be read once is used for all documents
+                val destinations = new BufferedDocumentGenerationDestination[] {
+                    new BufferedDocumentGenerationDestination(), new BufferedDocumentGenerationDestination(),
+                    new BufferedDocumentGenerationDestination() };
+                DocumentGenerator.transformEach(new SAXSource(new CursorXmlReader(), new InputSource()), Arrays.asList(
+                    new Output(text, destinations[0]), new Output(json, destinations[1]), new Output(excel, destinations[2])),
+                    null, null, e);
+                assertEquals("6", destinations[0].getBody().toString("UTF-8"));
+                assertEquals("6", new JSONObject(destinations[1].getBody().toString("UTF-8")).get("total").toString());
+                assertEquals((byte) 0xD0, destinations[2].getBody().toByteArray()[0]);
+
+                // Other documents are generated, even if one fails
+                val generated = new BufferedDocumentGenerationDestination();
+                try {
+                    DocumentGenerator.transformEach(new SAXSource(new CursorXmlReader(), new InputSource()), Arrays.asList(
+                        new Output(failing, new BufferedDocumentGenerationDestination()), new Output(text, generated)), null, null, e);
+                    fail();
+                }
+                catch (Exception x) { assertTrue(x.toString(), x instanceof TransformerException); }
+                assertEquals("6", generated.getBody().toString("UTF-8"));
+            }
+        }
+        finally {
+            executor.shutdown();
+            for (val f : files) Files.deleteIfExists(f.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    public void test_StringDocumentDestination() throws Exception {
+        val dir = Files.createTempDirectory("xslt").toFile();
+        val file = new File(dir, "report.xslt");
+        try {
+            val generator = newGenerator(file, OutputConversion.none, "<xsl:value-of select='//row/@n'/> \u00C4\u20AC");
+
+            // Characters are written into the builder, without passing through bytes; the builder is reused
+            val characters = new StringBuilder();
+            for (val xml : new String[] { "<rows><row n='1'/><row n='2'/></rows>", "<rows><row n='3'/></rows>" }) {
+                val destination = new StringDocumentDestination(characters);
+                generator.transform(destination, new StreamSource(new StringReader(xml)), true, null, null);
+                assertSame(characters, destination.getCharacters());
+                assertEquals(characters.toString(), destination.getBody().toString("UTF-8")); // encoded on demand
+                assertEquals("text/plain", destination.getContentType());
+            }
+            assertEquals("3 \u00C4\u20AC", characters.toString());
+
+            // Plain XML, for debugging
+            val plain = new StringDocumentDestination();
+            generator.transform(plain, new StreamSource(new StringReader("<a>\u00C4</a>")), false, null, null);
+            assertTrue(plain.toString(), plain.toString().contains("<a>\u00C4</a>"));
+
+            // Written as bytes, for example by the output cache
+            val bytes = new StringDocumentDestination();
+            generator.setOutputCache(new DocumentOutputCache(1000, 60_000));
+            generator.transform(bytes, DomParser.newDocumentBuilder().parse(new InputSource(new StringReader("<rows><row n='4'/></rows>"))), true, null, null);
+            assertEquals("4 \u00C4\u20AC", bytes.toString());
+        }
+        finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    public void test_getFopFactory() throws Exception {
+        val dir = Files.createTempDirectory("fop").toFile();
+        val config = new File(dir, "fop.xconf");
+        try {
+            Files.write(config.toPath(), "<fop version='1.0'/>".getBytes(UTF_8));
+            val factory = DocumentGenerator.getFopFactory(dir, config, dir);
+            assertSame(factory, DocumentGenerator.getFopFactory(dir, config, dir));
+            assertNotSame(factory, DocumentGenerator.getFopFactory(dir, config, null));
+
+            Files.write(config.toPath(), "<fop version='1.0'><renderers/></fop>".getBytes(UTF_8));
+            assertTrue(config.setLastModified(config.lastModified() + 2000));
+            val changed = DocumentGenerator.getFopFactory(dir, config, dir);
+            assertNotSame(factory, changed);
+            assertSame(changed, DocumentGenerator.getFopFactory(dir, config, dir));
+        }
+        finally {
+            Files.deleteIfExists(config.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    public void test_transformAll() throws Exception {
+        val dir = Files.createTempDirectory("xslt").toFile();
+        val file = new File(dir, "statement.xslt");
+        try {
+            Files.write(file.toPath(), ("<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+                "<xsl:output method='text'/><xsl:template match='/'>Statement <xsl:value-of select='customer/@id'/></xsl:template>" +
+                "</xsl:stylesheet>").getBytes(UTF_8));
+            val defn = new DocumentOutputDefinition(new XsltParameters(Collections.singletonMap("", Collections.emptyMap())));
+            defn.xsltFileOrNull = file;
+            val generator = new DocumentGenerator(new XsltCompilationThreads(), defn);
+
+            val count = 200;
+            val maxInFlight = 4;
+            val inFlight = new AtomicInteger();
+            val maxSeenInFlight = new AtomicInteger();
+            val destinations = new ConcurrentHashMap<Integer, BufferedDocumentGenerationDestination>();
+            final Stream<BatchItem> items = IntStream.range(0, count).mapToObj(i -> {
+                maxSeenInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max); // item taken from stream
+                return new BatchItem("customer " + i,
+                    () -> {
+                        if (i == 13) { inFlight.decrementAndGet(); throw new RuntimeException("no data"); }
+                        if (i == 14) { inFlight.decrementAndGet(); throw new AssertionError("not an Exception"); }
+                        return new StreamSource(new StringReader("<customer id='" + i + "'/>"));
+                    },
+                    () -> {
+                        final BufferedDocumentGenerationDestination destination = new BufferedDocumentGenerationDestination() {
+                            @Override public @Nonnull OutputStream getOutputStream() {
+                                return new FilterOutputStream(super.getOutputStream()) {
+                                    @Override public void close() throws IOException { super.close(); inFlight.decrementAndGet(); }
+                                };
+                            }
+                        };
+                        destinations.put(i, destination);
+                        return destination;
+                    }, null);
+            });
+
+            val executor = Executors.newFixedThreadPool(3);
+            try {
+                val summary = generator.transformAll(items, executor, maxInFlight);
+                assertEquals(count - 2, summary.getSucceededCount());
+                assertEquals(2, summary.getFailures().size());
+                val failures = new TreeMap<String, Throwable>();
+                for (val f : summary.getFailures()) failures.put(f.getId(), f.getException());
+                assertEquals(Arrays.asList("customer 13", "customer 14"), new ArrayList<>(failures.keySet()));
+                assertTrue(failures.get("customer 14") instanceof AssertionError);
+                assertTrue(summary.getDocumentsPerSecond() > 0);
+            }
+            finally {
+                executor.shutdown();
+            }
+
+            // Interrupted while taking items: no more are taken, those in flight are waited for
+            val taken = new AtomicInteger();
+            final Stream<BatchItem> interrupted = IntStream.range(0, count).mapToObj(i -> {
+                if (taken.incrementAndGet() == 10) Thread.currentThread().interrupt();
+                return new BatchItem("customer " + i, () -> new StreamSource(new StringReader("<customer id='" + i + "'/>")),
+                    BufferedDocumentGenerationDestination::new, null);
+            });
+            val singleThread = Executors.newSingleThreadExecutor();
+            try { generator.transformAll(interrupted, singleThread, maxInFlight); fail(); }
+            catch (InterruptedException expected) { }
+            finally { singleThread.shutdown(); }
+            assertEquals(10, taken.get());
+            assertFalse(Thread.interrupted());
+
+            assertEquals("Statement 42", destinations.get(42).getBody().toString("UTF-8"));
+            assertTrue("in flight: " + maxSeenInFlight.get(), maxSeenInFlight.get() <= maxInFlight + 1); // +1 taken, waiting
+        }
+        finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+}
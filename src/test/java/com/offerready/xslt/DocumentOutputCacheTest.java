@@ -0,0 +1,229 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.DocumentOutputCache.CachedDocument;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import junit.framework.TestCase;
+import lombok.val;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class DocumentOutputCacheTest extends TestCase {
+
+    protected static void deleteRecursively(@Nonnull File dir) {
+        val files = dir.listFiles();
+        if (files != null) for (val f : files) deleteRecursively(f);
+        dir.delete();
+    }
+
+    protected static @Nonnull CachedDocument doc(@Nonnull String body, long createdMillis) {
+        return new CachedDocument("text/plain", true, "a.txt", body.getBytes(UTF_8), createdMillis);
+    }
+
+    public void test_tiers() throws Exception {
+        val dir = Files.createTempDirectory("cache").toFile();
+        try {
+            val now = System.currentTimeMillis();
+            val cache = new DocumentOutputCache(10, dir, 1000, 60_000);
+            cache.put("a", doc("aaaaa", now));
+            cache.put("b", doc("bbbbb", now));
+            cache.put("c", doc("ccccc", now)); // "a" no longer fits in memory
+            cache.put("old", doc("x", now - 120_000));
+
+            assertEquals("aaaaa", new String(cache.get("a").getBody(), UTF_8));
+            assertNull(cache.get("old"));
+            assertEquals(1, cache.getStatistics().getDiskHits());
+            assertTrue(cache.getStatistics().getMemoryBytes() <= 10);
+
+            // Disk tier is used after restart; files left by unfinished writes are deleted
+            Files.write(new File(dir, "d.1.tmp").toPath(), new byte[] { 1 });
+            val restarted = new DocumentOutputCache(10, dir, 1000, 60_000);
+            val fromDisk = restarted.get("b");
+            assertEquals("bbbbb", new String(fromDisk.getBody(), UTF_8));
+            assertEquals("a.txt", fromDisk.getFilenameOrNull());
+            assertTrue(fromDisk.isDownload());
+            assertFalse(new File(dir, "d.1.tmp").exists());
+
+            restarted.clear();
+            assertNull(restarted.get("c"));
+            assertEquals(0, restarted.getStatistics().getDiskBytes());
+        }
+        finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    /** Receives the document; if a latch is given, the first write waits for it, as if the client were slow */
+    protected static class Client implements DocumentGenerationDestination {
+        final @CheckForNull CountDownLatch slow;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String contentType = null;
+        Client(@CheckForNull CountDownLatch slow) { this.slow = slow; }
+        @Override public void setContentType(@Nonnull String contentType) { this.contentType = contentType; }
+        @Override public void setContentDispositionToDownload(@CheckForNull String filename) { }
+        @Override public @Nonnull OutputStream getOutputStream() {
+            return new FilterOutputStream(body) {
+                @Override public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+                    try { if (slow != null) slow.await(); }
+                    catch (InterruptedException e) { throw new IOException(e); }
+                    out.write(b, off, len);
+                }
+            };
+        }
+    }
+
+    protected static @Nonnull DocumentOutputCache.DocumentGeneration<IOException> generation(@Nonnull byte[] body, @Nonnull AtomicInteger count) {
+        return destination -> {
+            count.incrementAndGet();
+            destination.setContentType("text/plain");
+            try (val out = destination.getOutputStream()) {
+                for (int i = 0; i < body.length; i += 100) out.write(body, i, Math.min(100, body.length - i));
+            }
+        };
+    }
+
+    public void test_largeDocuments() throws Exception {
+        val dir = Files.createTempDirectory("cache").toFile();
+        try {
+            val body = new byte[1000];
+            Arrays.fill(body, (byte) 'x');
+            val generated = new AtomicInteger();
+
+            // Larger than memory: recorded to a file, and sent from it
+            val cache = new DocumentOutputCache(10, dir, 5000, 60_000);
+            for (int i = 0; i < 2; i++) {
+                val client = new Client(null);
+                cache.writeTo("big", client, generation(body, generated));
+                assertEquals("text/plain", client.contentType);
+                assertTrue(Arrays.equals(body, client.body.toByteArray()));
+            }
+            assertEquals(1, generated.get());
+            assertEquals(1, cache.getStatistics().getDiskHits());
+            assertEquals(0, cache.getStatistics().getMemoryBytes());
+            assertFalse(cache.get("big").isInMemory());
+            assertTrue(Arrays.equals(body, cache.get("big").getBody()));
+            assertEquals(1, dir.listFiles().length); // no temporary files remain
+
+            // Larger than disk: passed through to the client, and not cached
+            val small = new DocumentOutputCache(10, dir, 500, 60_000);
+            val client = new Client(null);
+            small.writeTo("bigger", client, generation(body, generated));
+            assertTrue(Arrays.equals(body, client.body.toByteArray()));
+            assertNull(small.get("bigger"));
+            assertEquals(0, dir.listFiles((d, name) -> name.endsWith(".tmp")).length);
+        }
+        finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    public void test_slowClientDoesNotDelayOthers() throws Exception {
+        val body = "hello".getBytes(UTF_8);
+        val generated = new AtomicInteger();
+        val cache = new DocumentOutputCache(1024, 60_000);
+        val generating = new CountDownLatch(1);
+        val finishGenerating = new CountDownLatch(1);
+        val slowClientReady = new CountDownLatch(1);
+
+        val slowClient = new Client(slowClientReady);
+        val first = new Thread(() -> {
+            try {
+                cache.writeTo("a", slowClient, destination -> {
+                    generating.countDown();
+                    finishGenerating.await();
+                    generation(body, generated).generate(destination);
+                });
+            }
+            catch (Exception e) { throw new RuntimeException(e); }
+        });
+        first.start();
+        try {
+            assertTrue(generating.await(10, TimeUnit.SECONDS));
+            val waiter = new Client(null);
+            val second = new Thread(() -> {
+                try { cache.writeTo("a", waiter, generation(body, generated)); }
+                catch (Exception e) { throw new RuntimeException(e); }
+            });
+            second.start();
+            finishGenerating.countDown();
+
+            second.join(10_000);
+            assertFalse(second.isAlive());
+            assertEquals("hello", new String(waiter.body.toByteArray(), UTF_8));
+            assertTrue(first.isAlive()); // still sending to the slow client
+            assertEquals(1, generated.get());
+        }
+        finally {
+            finishGenerating.countDown();
+            slowClientReady.countDown();
+            first.join(10_000);
+        }
+        assertEquals("hello", new String(slowClient.body.toByteArray(), UTF_8));
+    }
+
+    public void test_DocumentGenerator() throws Exception {
+        val dir = Files.createTempDirectory("xslt").toFile();
+        val file = new File(dir, "report.xslt");
+        try {
+            Files.write(file.toPath(), ("<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+                "<xsl:output method='text'/><xsl:param name='greeting'/>" +
+                "<xsl:template match='/'><xsl:value-of select='$greeting, name/@first'/></xsl:template>" +
+                "</xsl:stylesheet>").getBytes(UTF_8));
+            val paramsForLanguage = new HashMap<String, Map<String, String>>();
+            paramsForLanguage.put("", new HashMap<>());
+            paramsForLanguage.get("").put("greeting", "Hello");
+            paramsForLanguage.put("de", new HashMap<>());
+            paramsForLanguage.get("de").put("greeting", "Hallo");
+            val defn = new DocumentOutputDefinition(new XsltParameters(paramsForLanguage));
+            defn.xsltFileOrNull = file;
+            val generator = new DocumentGenerator(new XsltCompilationThreads(), defn);
+            generator.setOutputCache(new DocumentOutputCache(1024 * 1024, 60_000));
+
+            val inputRequested = new AtomicInteger();
+            val outputs = new String[4];
+            val languages = new String[] { null, null, "de", "fr" };
+            for (int i = 0; i < outputs.length; i++) {
+                val destination = new StringDocumentDestination();
+                generator.transform("user 1 version 1", destination, () -> {
+                    inputRequested.incrementAndGet();
+                    return new StreamSource(new StringReader("<name first='Adam'/>"));
+                }, true, null, languages[i]);
+                assertEquals("text/plain", destination.getContentType());
+                outputs[i] = destination.toString();
+            }
+
+            assertEquals("Hello Adam", outputs[0]);
+            assertEquals("Hello Adam", outputs[1]);
+            assertEquals("Hallo Adam", outputs[2]);
+            assertEquals("Hello Adam", outputs[3]); // "fr" has no values of its own
+            assertEquals(2, inputRequested.get());
+
+            // Document input is identified by its content
+            val first = new StringDocumentDestination();
+            generator.transform(first, XsltParametersTest.parse("<name first='Eve'/>").getOwnerDocument(), true, null, null);
+            val second = new StringDocumentDestination();
+            generator.transform(second, XsltParametersTest.parse("<name first='Eve'/>").getOwnerDocument(), true, null, null);
+            assertEquals("Hello Eve", second.toString());
+            assertEquals(3, generator.outputCacheOrNull.getStatistics().getMemoryHits());
+        }
+        finally {
+            deleteRecursively(dir);
+        }
+    }
+}
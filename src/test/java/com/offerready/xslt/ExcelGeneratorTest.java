@@ -1,9 +1,22 @@
 package com.offerready.xslt;
 
+import com.offerready.xslt.ExcelGenerator.InputDecimalSeparator;
 import junit.framework.TestCase;
 import lombok.val;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import static com.offerready.xslt.ExcelGenerator.InputDecimalSeparator.magic;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class ExcelGeneratorTest extends TestCase {
     
@@ -24,4 +37,83 @@ public class ExcelGeneratorTest extends TestCase {
         
         assertNull(magic.tryParseNumber("foo"));
     }
-}
\ No newline at end of file
+
+    /** The previous implementation, which used regular expressions and exceptions, to compare results */
+    protected static @CheckForNull Double previousTryParseNumber(@Nonnull InputDecimalSeparator separator, @Nonnull String str) {
+        switch (separator) {
+            case dot:
+                try { return new Double(str.replace(",","")); }
+                catch (NumberFormatException ignored) { return null; }
+            case comma:
+                try { return new Double(str.replace(".", "").replace(",", ".")); }
+                catch (NumberFormatException ignored) { return null; }
+            default:
+                Matcher matcherDecimal = Pattern.compile("(-?[\\d,.']+)[,.](\\d{2})").matcher(str);
+                if (matcherDecimal.matches()) {
+                    try { return new Double(matcherDecimal.group(1).replaceAll("[,.']", "") + "." + matcherDecimal.group(2)); }
+                    catch (NumberFormatException ignored) { }
+                }
+                Matcher matcherInteger = Pattern.compile("(-?[\\d,.']+)").matcher(str);
+                if (matcherInteger.matches()) {
+                    try { return new Double(matcherInteger.group(1).replaceAll("[,.']", "")); }
+                    catch (NumberFormatException ignored) { }
+                }
+                return null;
+        }
+    }
+
+    protected static int previousDetermineDecimalPlaces(@Nonnull InputDecimalSeparator separator, @Nonnull String string) {
+        switch (separator) {
+            case dot: return string.contains(".") ? string.trim().length() - string.trim().lastIndexOf(".") - 1 : 0;
+            case comma: return string.contains(",") ? string.trim().length() - string.trim().lastIndexOf(",") - 1 : 0;
+            default: return string.matches("\\s*-?[\\d',.]*[.,]\\d{2}\\s*") ? 2 : 0;
+        }
+    }
+
+    public void test_tryParseNumber_sameAsPrevious() {
+        val tokens = new String[] { "0", "1", "5", "9", "12", ",", ".", "'", "-", "+", " ", "\t", "e", "E3", "x", "NaN", "Infinity", "d", "0x1p" };
+        val random = new Random(1);
+        for (int i = 0; i < 50_000; i++) {
+            val str = new StringBuilder();
+            for (int t = random.nextInt(7); t > 0; t--) str.append(tokens[random.nextInt(tokens.length)]);
+            for (val separator : InputDecimalSeparator.values()) {
+                val expected = previousTryParseNumber(separator, str.toString());
+                assertEquals(separator + " '" + str + "'", expected, separator.tryParseNumber(str.toString()));
+                if (expected != null) assertEquals(separator + " '" + str + "'",
+                    previousDetermineDecimalPlaces(separator, str.toString()), separator.determineDecimalPlaces(str.toString()));
+            }
+        }
+    }
+
+    public void test_getFormattedLength() {
+        val values = new ArrayList<Double>(Arrays.asList(0.0, -0.0, -0.001, 0.005, 1.005, 9.5, 0.5, 99.995, 99.9949,
+            -99.995, 999.9999999, 1e15, 9.99999999999999e14, 999999999999999.9, Double.NaN, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE));
+        val random = new Random(1);
+        for (int i = 0; i < 20_000; i++) {
+            val magnitude = Math.pow(10, random.nextInt(20) - 4);
+            values.add((random.nextBoolean() ? -1 : 1) * (random.nextBoolean() ? random.nextDouble() * magnitude : magnitude - random.nextInt(100) * 1e-6));
+        }
+        for (val value : values)
+            for (int decimalPlaces = 0; decimalPlaces <= 20; decimalPlaces++)
+                assertEquals(value + " " + decimalPlaces, String.format("%."+decimalPlaces+"f", value).length(),
+                    ExcelGenerator.getFormattedLength(value, decimalPlaces));
+    }
+
+    protected static @Nonnull byte[] generate(@Nonnull String html, boolean isMergedCellChecking) throws Exception {
+        val xls = new ByteArrayOutputStream();
+        val generator = new ExcelGenerator(InputDecimalSeparator.magic, xls);
+        generator.workbookSettings.setMergedCellChecking(isMergedCellChecking);
+        SAXParserFactory.newInstance().newSAXParser().parse(new ByteArrayInputStream(html.getBytes(UTF_8)), generator);
+        return xls.toByteArray();
+    }
+
+    /** Merged cells are not checked by jxl, as they cannot intersect; the file must be as if they had been */
+    public void test_mergedCellChecking() throws Exception {
+        val html = new StringBuilder("<html><body><table><thead><tr><th colspan='3' style='font-weight: bold'>Report</th></tr></thead>");
+        for (int i = 0; i < 200; i++) html.append("<tr><td style='color: red'>Name ").append(i).append("</td>")
+            .append("<td colspan='").append(1 + i % 3).append("'>").append(i).append(",50</td><td>x&#160;y</td></tr>");
+        html.append("</table></body></html>");
+        assertTrue(Arrays.equals(generate(html.toString(), true), generate(html.toString(), false)));
+    }
+}
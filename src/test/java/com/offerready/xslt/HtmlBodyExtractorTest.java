@@ -0,0 +1,144 @@
+package com.offerready.xslt;
+
+import junit.framework.TestCase;
+import lombok.val;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class HtmlBodyExtractorTest extends TestCase {
+
+    /** The previous implementation, which scanned the document once per element type, to compare output and speed */
+    protected static class PreviousHtmlBodyExtractor {
+        protected List<String> scriptsToIgnore = new ArrayList<String>();
+
+        protected static class Range {
+            int startIncl, endExcl;
+            Range(int s, int e) { startIncl = s; endExcl = e; }
+            boolean overlaps(Range x) { return x.endExcl > startIncl && x.startIncl < endExcl; }
+        }
+
+        protected @Nonnull String ignoreScripts(@Nonnull String html) {
+            for (val s : scriptsToIgnore)
+                html = html.replaceAll("<script src=['\"][^'\"]*" + Pattern.quote(s) + "[^'\"]*['\"]></script>", "<!-- ignoring " + s + " -->");
+            return html;
+        }
+
+        protected void extractElements(
+            @Nonnull StringBuilder result, @Nonnull String input, @Nonnull List<Range> ranges,
+            @Nonnull String start, @CheckForNull String endOfStartOrNull, @Nonnull String end
+        ) {
+            int startIdx = -1;
+            val ourResult = new StringBuilder();
+            while ((startIdx = input.indexOf(start, startIdx+1)) >= 0) {
+                int idxOfEndTag = input.indexOf(end, startIdx);
+                Range range = endOfStartOrNull == null
+                    ? new Range(startIdx, idxOfEndTag + end.length())
+                    : new Range(input.indexOf(endOfStartOrNull, startIdx) + endOfStartOrNull.length(), idxOfEndTag);
+                boolean rangeOverlaps = false;
+                for (Range r : ranges) if (r.overlaps(range)) rangeOverlaps = true;
+                if (rangeOverlaps) continue;
+                ourResult.append(ignoreScripts(input.substring(range.startIncl, range.endExcl)));
+                ranges.add(range);
+            }
+            ourResult.append("\n");
+            result.insert(0, ourResult);
+        }
+
+        public @Nonnull String extractBody(@Nonnull String htmlText) {
+            val result = new StringBuilder();
+            val ranges = new ArrayList<Range>();
+            extractElements(result, htmlText, ranges, "<body",         ">",  "</body>");
+            extractElements(result, htmlText, ranges, "<!--[if IE]>",  null, "<![endif]-->");
+            extractElements(result, htmlText, ranges, "<!--[if !IE]>", null, "<!--<![endif]-->");
+            extractElements(result, htmlText, ranges, "<style",        null, "</style>");
+            return result.toString();
+        }
+    }
+
+    protected static final String[] starts = { "<body", "<!--[if IE]>", "<!--[if !IE]>", "<style" };
+    protected static final String[] ends = { "</body>", "<![endif]-->", "<!--<![endif]-->", "</style>" };
+
+    protected static boolean isEachElementEnded(@Nonnull String html) {
+        for (int k = 0; k < starts.length; k++)
+            for (int i = html.indexOf(starts[k]); i >= 0; i = html.indexOf(starts[k], i + 1))
+                if (html.indexOf(ends[k], i) < 0) return false;
+        return true;
+    }
+
+    protected static void assertSameAsPrevious(@Nonnull String html, @Nonnull String... scriptsToIgnore) {
+        val previous = new PreviousHtmlBodyExtractor();
+        val extractor = new HtmlBodyExtractor();
+        for (val s : scriptsToIgnore) { previous.scriptsToIgnore.add(s); extractor.addScriptToIgnore(s); }
+        assertEquals(html, previous.extractBody(html), extractor.extractBody(html));
+    }
+
+    protected static @Nonnull String newReport(int styles, int rows) {
+        val html = new StringBuilder("<html><head><title>Report</title>");
+        for (int i = 0; i < styles; i++) html.append("<style type='text/css'>.c").append(i).append(" { color: red }</style>");
+        html.append("<!--[if IE]><style>.ie { }</style><![endif]-->");
+        html.append("<script src='/js/jquery-1.4.min.js'></script></head><body class='report'>");
+        html.append("<script src='/js/report.js'></script><table>");
+        for (int i = 0; i < rows; i++) {
+            if (i % 100 == 0) html.append("<style>.r").append(i).append(" { }</style>");
+            html.append("<tr><td class='c").append(i % 10).append("'>Row ").append(i).append("</td><td>").append(i * 3.5).append("</td></tr>");
+        }
+        return html.append("</table></body></html>").toString();
+    }
+
+    public void test_extractBody() {
+        val html = "<html><head><style>.a { }</style><!--[if IE]><style>.ie { }</style><![endif]-->" +
+            "<!--[if !IE]><!--><link rel='stylesheet'/><!--<![endif]-->" +
+            "<script src='/jquery.min.js'></script></head>" +
+            "<body class='x'><p>Hello</p><style>.b { }</style><script src=\"/jquery.min.js\"></script></body></html>";
+        assertEquals("<style>.a { }</style>\n" +
+            "<!--[if !IE]><!--><link rel='stylesheet'/><!--<![endif]-->\n" +
+            "<!--[if IE]><style>.ie { }</style><![endif]-->\n" +
+            "<p>Hello</p><style>.b { }</style><!-- ignoring jquery -->\n",
+            new HtmlBodyExtractor().addScriptToIgnore("jquery").extractBody(html));
+
+        assertSameAsPrevious(html);
+        assertSameAsPrevious(html, "jquery", "query", "none");
+        assertSameAsPrevious("");
+        assertSameAsPrevious("<body></body>");
+        assertSameAsPrevious("<body><body>x</body></body><body>y</body>");
+        assertSameAsPrevious("<!--[if IE]><body class='ie'><![endif]--><!--[if !IE]><!--><body><!--<![endif]-->x</body>");
+        assertSameAsPrevious(newReport(20, 500), "jquery", "report");
+    }
+
+    public void test_extractBody_random() {
+        val tokens = new String[] { "<body>", "<body class='a'>", "</body>", "<!--[if IE]>", "<![endif]-->",
+            "<!--[if !IE]>", "<!--<![endif]-->", "<style>", "</style>", "x", ">", "<script src='a.js'></script>" };
+        val random = new Random(1);
+        int compared = 0;
+        for (int i = 0; i < 20_000; i++) {
+            val html = new StringBuilder();
+            for (int t = random.nextInt(12); t > 0; t--) html.append(tokens[random.nextInt(tokens.length)]);
+            if ( ! isEachElementEnded(html.toString())) continue;
+            try { new PreviousHtmlBodyExtractor().extractBody(html.toString()); }
+            catch (StringIndexOutOfBoundsException e) { continue; } // e.g. "<body" whose ">" is that of "</body>"
+            assertSameAsPrevious(html.toString(), "a.js");
+            compared++;
+        }
+        assertTrue(compared > 1000);
+    }
+
+    public void test_newExtractingWriter() throws Exception {
+        val html = newReport(3, 10);
+        val out = new StringWriter();
+        try (val writer = new HtmlBodyExtractor().newExtractingWriter(out)) {
+            for (int i = 0; i < html.length(); i += 7) writer.write(html, i, Math.min(7, html.length() - i));
+        }
+        assertEquals(new HtmlBodyExtractor().extractBody(html), out.toString());
+    }
+
+    /** A large report, with many style elements, gives the same result as the previous implementation */
+    public void test_extractBody_large() {
+        assertSameAsPrevious(newReport(2_000, 5_000), "jquery");
+    }
+}
@@ -0,0 +1,140 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.SegmentedByteArrayOutputStream.ChunkPool;
+import junit.framework.TestCase;
+import lombok.val;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static com.offerready.xslt.SpillingHttpResponseDocumentGenerationDestinationTest.newResponse;
+import static com.offerready.xslt.SpillingHttpResponseDocumentGenerationDestinationTest.write;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class HttpCompressionPolicyTest extends TestCase {
+
+    protected static final HttpCompressionPolicy policy = new HttpCompressionPolicy(100, HttpCompressionPolicy.defaultExcludedContentTypes);
+
+    protected static @Nonnull HttpServletRequest newRequest(@CheckForNull String acceptEncoding) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpCompressionPolicyTest.class.getClassLoader(),
+            new Class<?>[] { HttpServletRequest.class },
+            (p, m, args) -> m.getName().equals("getHeader") && "Accept-Encoding".equals(args[0]) ? acceptEncoding : null);
+    }
+
+    protected static @Nonnull String decompress(@CheckForNull Object encoding, @Nonnull byte[] body) throws Exception {
+        if (encoding == null) return new String(body, UTF_8);
+        val compressed = new ByteArrayInputStream(body);
+        val in = encoding.equals("gzip") ? new GZIPInputStream(compressed) : new InflaterInputStream(compressed);
+        val result = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) != -1; ) result.write(b);
+        return new String(result.toByteArray(), UTF_8);
+    }
+
+    protected static @Nonnull String newText(int rows) {
+        val result = new StringBuilder();
+        for (int i = 0; i < rows; i++) result.append("Row ").append(i).append("\n");
+        return result.toString();
+    }
+
+    public void test_negotiate() {
+        assertNull(HttpCompressionPolicy.negotiate(null));
+        assertNull(HttpCompressionPolicy.negotiate(""));
+        assertNull(HttpCompressionPolicy.negotiate("identity, br"));
+        assertEquals("gzip", HttpCompressionPolicy.negotiate("gzip, deflate, br"));
+        assertEquals("gzip", HttpCompressionPolicy.negotiate("x-gzip"));
+        assertEquals("deflate", HttpCompressionPolicy.negotiate("deflate"));
+        assertEquals("deflate", HttpCompressionPolicy.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("deflate", HttpCompressionPolicy.negotiate("gzip;q=0, *"));
+        assertEquals("gzip", HttpCompressionPolicy.negotiate("*"));
+        assertNull(HttpCompressionPolicy.negotiate("*;q=0"));
+    }
+
+    public void test_isCompressible() {
+        assertTrue(policy.isCompressible("text/html; charset=UTF-8"));
+        assertTrue(policy.isCompressible("application/json"));
+        assertFalse(policy.isCompressible("application/pdf"));
+        assertFalse(policy.isCompressible("Application/MS-Excel"));
+        assertFalse(policy.isCompressible("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"));
+        assertFalse(policy.isCompressible("image/png"));
+        assertFalse(policy.isCompressible(null));
+    }
+
+    public void test_streaming() throws Exception {
+        for (val acceptEncoding : Arrays.asList(null, "gzip", "deflate")) {
+            for (val text : new String[] { "small", newText(100) }) {
+                for (val contentType : new String[] { "text/plain", "application/pdf" }) {
+                    val body = new ByteArrayOutputStream();
+                    val calls = new HashMap<String, Object>();
+                    val destination = new StreamingHttpResponseDocumentGenerationDestination(
+                        newRequest(acceptEncoding), newResponse(body, calls), policy);
+                    destination.setContentType(contentType);
+                    try (val out = destination.getOutputStream()) { out.write(text.getBytes(UTF_8)); }
+
+                    val compressed = acceptEncoding != null && text.length() >= 100 && contentType.equals("text/plain");
+                    assertEquals(compressed ? "Content-Encoding" : null, calls.get("setHeader"));
+                    assertEquals(contentType.equals("text/plain") ? "Vary" : null, calls.get("addHeader"));
+                    assertEquals(text, decompress(compressed ? acceptEncoding : null, body.toByteArray()));
+                    if (compressed) assertTrue(body.size() < text.length());
+                }
+            }
+        }
+    }
+
+    public void test_buffered() throws Exception {
+        val text = newText(100);
+        val pool = new ChunkPool(64, 16, false);
+
+        // Compressed once, then served to several clients
+        val destination = new BufferedHttpResponseDocumentGenerationDestination(pool);
+        destination.setCompression(policy);
+        write(destination, text);
+        for (val acceptEncoding : Arrays.asList("gzip", null, "deflate", "gzip")) {
+            val body = new ByteArrayOutputStream();
+            val calls = new HashMap<String, Object>();
+            destination.deliver(newRequest(acceptEncoding), newResponse(body, calls));
+            assertEquals(acceptEncoding == null ? null : "Content-Encoding", calls.get("setHeader"));
+            assertEquals((long) body.size(), calls.get("setContentLengthLong"));
+            assertEquals(text, decompress(acceptEncoding, body.toByteArray()));
+        }
+        assertEquals(2, destination.compressedBodyForEncoding.size());
+        assertEquals(text, destination.getBody().toString("UTF-8")); // kept after delivery
+        destination.releaseBody();
+        assertEquals(0, destination.compressedBodyForEncoding.size());
+        assertEquals(0, destination.getBody().size());
+
+        // Released after delivery, if requested
+        val once = new BufferedHttpResponseDocumentGenerationDestination(pool);
+        once.setReleaseAfterDelivery(true);
+        write(once, text);
+        once.deliver(newRequest(null), newResponse(new ByteArrayOutputStream(), new HashMap<>()));
+        assertEquals(0, once.getBody().size());
+
+        // A spilled document is compressed while it is sent
+        val dir = Files.createTempDirectory("spill").toFile();
+        try {
+            val spilling = new SpillingHttpResponseDocumentGenerationDestination(pool, 100, dir);
+            spilling.setCompression(policy);
+            write(spilling, text);
+            assertTrue(spilling.isSpilled());
+            val body = new ByteArrayOutputStream();
+            val calls = new HashMap<String, Object>();
+            spilling.deliver(newRequest("gzip"), newResponse(body, calls));
+            assertNull(calls.get("setContentLengthLong"));
+            assertEquals(text, decompress("gzip", body.toByteArray()));
+            assertEquals(0, dir.list().length);
+        }
+        finally {
+            for (val f : dir.listFiles()) f.delete();
+            dir.delete();
+        }
+    }
+}
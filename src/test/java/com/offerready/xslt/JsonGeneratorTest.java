@@ -0,0 +1,120 @@
+package com.offerready.xslt;
+
+import junit.framework.TestCase;
+import lombok.val;
+import net.sf.saxon.TransformerFactoryImpl;
+import org.json.JSONObject;
+import org.json.XML;
+import org.xml.sax.helpers.AttributesImpl;
+
+import javax.annotation.Nonnull;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class JsonGeneratorTest extends TestCase {
+
+    protected static @Nonnull String toJson(@Nonnull String xml, int maxBufferedChars, boolean convertAgain) throws TransformerException {
+        val json = new ByteArrayOutputStream();
+        new TransformerFactoryImpl().newTransformer().transform(new StreamSource(new StringReader(xml)),
+            new SAXResult(new JsonGenerator(json, maxBufferedChars, convertAgain, null)));
+        return new String(json.toByteArray(), UTF_8);
+    }
+
+    protected static void assertSameAsOrgJson(@Nonnull String xml, int maxBufferedChars, boolean convertAgain) throws Exception {
+        val expected = new JSONObject(XML.toJSONObject(xml).toString()); // normalize Long vs Integer
+        val actual = toJson(xml, maxBufferedChars, convertAgain);
+        assertTrue(expected.toString(2) + "\n" + actual, expected.similar(new JSONObject(actual)));
+    }
+
+    protected static void assertSameAsOrgJson(@Nonnull String xml, int maxBufferedChars) throws Exception {
+        assertSameAsOrgJson(xml, maxBufferedChars, false);
+    }
+
+    public void test_conventions() throws Exception {
+        for (val max : new int[] { 64 * 1024, 30 }) {
+            assertSameAsOrgJson("<a/>", max);
+            assertSameAsOrgJson("<a>  </a>", max);
+            assertSameAsOrgJson("<a x='1' y='true' z='null'>" +
+                "<b>text</b><b>2.5</b><c/><d w='x'>mixed <e/> tail</d><f>-7</f><g>0012</g><h>a &amp; &lt;b&gt;</h></a>", max);
+            assertSameAsOrgJson("<a>one<b/>two</a>", max);
+            assertSameAsOrgJson("<a><b><c>1</c><c>2</c></b><b><c>3</c></b></a>", max);
+            assertSameAsOrgJson("<r xmlns='urn:x' xmlns:p='urn:p'><p:s>1</p:s><p:s>2</p:s></r>", max);
+        }
+
+        // Non-adjacent elements with the same name are merged, while they fit in memory
+        assertSameAsOrgJson("<a><b>1</b><c/><b>2</b></a>", 64 * 1024);
+    }
+
+    public void test_streaming() throws Exception {
+        val xml = new StringBuilder("<report><title>Sales</title><rows>");
+        for (int i = 0; i < 5000; i++) xml.append("<row n='").append(i).append("'><name>Row ").append(i).append("</name></row>");
+        xml.append("</rows><total>5000</total></report>");
+        assertSameAsOrgJson(xml.toString(), 1000);
+
+        // The first "b" is written before the second "b" is seen
+        try { toJson("<a><b>long text long text</b><c/><b/></a>", 10, false); fail(); }
+        catch (TransformerException e) { assertTrue(e.getMessage(), e.getMessage().contains("'b' cannot be converted to a JSON array")); }
+    }
+
+    public void test_streaming_writtenBeforeDocumentEnds() throws Exception {
+        val json = new ByteArrayOutputStream();
+        try (val generator = new JsonGenerator(json, 1000)) {
+            generator.startDocument();
+            generator.startElement("", "report", "report", new AttributesImpl());
+            for (int i = 0; i < 5000; i++) {
+                generator.startElement("", "row", "row", new AttributesImpl());
+                generator.characters("text".toCharArray(), 0, 4);
+                generator.endElement("", "row", "row");
+            }
+            assertTrue(json.size() > 0);
+            generator.endElement("", "report", "report");
+            generator.endDocument();
+        }
+        assertEquals(5000, new JSONObject(new String(json.toByteArray(), UTF_8)).getJSONObject("report").getJSONArray("row").length());
+    }
+
+    public void test_convertAgain() throws Exception {
+        // The first "b" is converted before the second "b" is seen, so the document is converted again
+        assertSameAsOrgJson("<a><b>long text long text</b><c/><b/></a>", 10, true);
+        assertSameAsOrgJson("<a x='a &amp; b'>\n<b>long &amp; text\tlong &lt;text&gt;</b><c/><b>2</b><d><b/></d>tail</a>", 10, true);
+        val escaped = "<a x='&quot;&#10;&#9;&#13;'>\r\n<b>long &amp; text\tlong &lt;text&gt;</b><c/><b>\"2\"</b></a>";
+        assertEquals(toJson(escaped, 64 * 1024, false), toJson(escaped, 10, true));
+        val rows = new StringBuilder("<report><rows>");
+        for (int i = 0; i < 5000; i++) rows.append("<row n='").append(i).append("'><name>Row ").append(i).append("</name></row>");
+        rows.append("</rows><title>Sales</title><rows/></report>");
+        assertSameAsOrgJson(rows.toString(), 1000, true);
+    }
+
+    public void test_temporaryFiles() throws Exception {
+        val dir = Files.createTempDirectory("json").toFile();
+        try {
+            val xml = new StringBuilder("<report>");
+            for (int i = 0; i < 1000; i++) xml.append("<row>").append(i).append("</row><other/>");
+            xml.append("</report>");
+
+            val json = new ByteArrayOutputStream();
+            new TransformerFactoryImpl().newTransformer().transform(new StreamSource(new StringReader(xml.toString())),
+                new SAXResult(new JsonGenerator(json, 100, true, dir)));
+            assertTrue(new JSONObject(XML.toJSONObject(xml.toString()).toString()).similar(new JSONObject(new String(json.toByteArray(), UTF_8))));
+            assertEquals(0, dir.list().length);
+
+            // Input ends early: files are deleted by close()
+            try (val generator = new JsonGenerator(new ByteArrayOutputStream(), 100, true, dir)) {
+                new TransformerFactoryImpl().newTransformer().transform(
+                    new StreamSource(new StringReader(xml.substring(0, xml.length() - 100))), new SAXResult(generator));
+                fail();
+            }
+            catch (TransformerException ignored) { }
+            assertEquals(0, dir.list().length);
+        }
+        finally {
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.SegmentedByteArrayOutputStream.ChunkPool;
+import junit.framework.TestCase;
+import lombok.val;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+public class SegmentedByteArrayOutputStreamTest extends TestCase {
+
+    public void test_write() throws Exception {
+        for (val direct : new boolean[] { false, true }) {
+            val pool = new ChunkPool(10, 2, direct);
+            val expected = new ByteArrayOutputStream();
+            val out = new SegmentedByteArrayOutputStream(pool);
+            for (val s : new String[] { "a", "", "0123456789", "longer than one chunk of ten bytes", "b" }) {
+                expected.write(s.getBytes("UTF-8"));
+                out.write(s.getBytes("UTF-8"));
+            }
+            out.write('!');
+            expected.write('!');
+
+            assertEquals(expected.size(), out.size());
+            assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+            assertEquals(expected.toString("UTF-8"), out.toString("UTF-8"));
+
+            val viaStream = new ByteArrayOutputStream();
+            out.writeTo(viaStream);
+            assertTrue(Arrays.equals(expected.toByteArray(), viaStream.toByteArray()));
+
+            val viaChannel = new ByteArrayOutputStream();
+            out.writeTo(Channels.newChannel(viaChannel));
+            assertTrue(Arrays.equals(expected.toByteArray(), viaChannel.toByteArray()));
+
+            // Chunks are reused; those beyond the pool size are discarded
+            out.release();
+            assertEquals(0, out.size());
+            assertEquals(2, pool.getPooledChunkCount());
+            val reused = new SegmentedByteArrayOutputStream(pool);
+            reused.write("xyz".getBytes("UTF-8"));
+            assertEquals(1, pool.getPooledChunkCount());
+            assertEquals("xyz", reused.toString("UTF-8"));
+        }
+    }
+
+    public void test_destinationBody() throws Exception {
+        val destination = new BufferedDocumentGenerationDestination(new ChunkPool(10, 2, false));
+        assertNull(destination.getBody());
+        try (val out = destination.getOutputStream()) { out.write("longer than one chunk".getBytes("UTF-8")); }
+
+        // A copy, which any ByteArrayOutputStream method can read
+        val body = destination.getBody();
+        assertEquals(ByteArrayOutputStream.class, body.getClass());
+        assertEquals("longer than one chunk", body.toString("UTF-8"));
+        assertEquals("longer than one chunk", destination.getSegmentedBody().toString("UTF-8"));
+
+        destination.releaseBody();
+        assertEquals(0, destination.getBody().size());
+        assertEquals("longer than one chunk", body.toString("UTF-8"));
+    }
+}
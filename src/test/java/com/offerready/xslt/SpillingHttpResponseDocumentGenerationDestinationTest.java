@@ -0,0 +1,80 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.SegmentedByteArrayOutputStream.ChunkPool;
+import junit.framework.TestCase;
+import lombok.val;
+
+import javax.annotation.Nonnull;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class SpillingHttpResponseDocumentGenerationDestinationTest extends TestCase {
+
+    /** @param calls receives the first argument of each method called on the response */
+    protected static @Nonnull HttpServletResponse newResponse(@Nonnull ByteArrayOutputStream body, @Nonnull Map<String, Object> calls) {
+        val out = new ServletOutputStream() {
+            @Override public boolean isReady() { return true; }
+            @Override public void setWriteListener(WriteListener l) { }
+            @Override public void write(int b) { body.write(b); }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(SpillingHttpResponseDocumentGenerationDestinationTest.class.getClassLoader(),
+            new Class<?>[] { HttpServletResponse.class }, (p, m, args) -> {
+                if (args != null && args.length > 0) calls.put(m.getName(), args[0]);
+                return m.getName().equals("getOutputStream") ? out : null;
+            });
+    }
+
+    protected static void write(@Nonnull DocumentGenerationDestination destination, @Nonnull String text) throws Exception {
+        destination.setContentType("text/plain");
+        try (val out = destination.getOutputStream()) {
+            for (val c : text.getBytes(UTF_8)) out.write(c);
+        }
+    }
+
+    public void test_deliver() throws Exception {
+        val dir = Files.createTempDirectory("spill").toFile();
+        try {
+            val big = new StringBuilder();
+            for (int i = 0; i < 1000; i++) big.append("Row ").append(i).append("\n");
+
+            for (val text : new String[] { "small", big.toString() }) {
+                val destination = new SpillingHttpResponseDocumentGenerationDestination(new ChunkPool(16, 4, false), 100, dir);
+                destination.setStatusCode(404);
+                write(destination, text);
+                assertEquals(text.length() > 100, destination.isSpilled());
+                assertEquals(text.length() > 100 ? 1 : 0, dir.list().length);
+
+                val body = new ByteArrayOutputStream();
+                val calls = new HashMap<String, Object>();
+                destination.deliver(newResponse(body, calls));
+                assertEquals(text, new String(body.toByteArray(), UTF_8));
+                assertEquals((long) text.length(), calls.get("setContentLengthLong"));
+                assertEquals(404, calls.get("setStatus"));
+                assertEquals(0, dir.list().length);
+            }
+
+            // Redirect, document not sent, but file deleted
+            val destination = new SpillingHttpResponseDocumentGenerationDestination(new ChunkPool(16, 4, false), 100, dir);
+            write(destination, big.toString());
+            destination.setRedirectUrl(new URL("http://example.com/"));
+            val calls = new HashMap<String, Object>();
+            destination.deliver(newResponse(new ByteArrayOutputStream(), calls));
+            assertEquals("http://example.com/", calls.get("sendRedirect"));
+            assertEquals(0, dir.list().length);
+        }
+        finally {
+            for (val f : dir.listFiles()) f.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.offerready.xslt;
+
+import com.databasesandlife.util.DomParser;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.RetentionPolicy;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.Xslt;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import junit.framework.TestCase;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.annotation.Nonnull;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WeaklyCachedXsltTransformerTest extends TestCase {
+
+    protected static final String identityXslt =
+        "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+        "  <xsl:template match='@*|node()'><xsl:copy><xsl:apply-templates select='@*|node()'/></xsl:copy></xsl:template>" +
+        "</xsl:stylesheet>";
+
+    protected static final String greetingXslt =
+        "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+        "  <xsl:param name='greeting'/>" +
+        "  <xsl:template match='/'><greeting><xsl:value-of select='$greeting'/></greeting></xsl:template>" +
+        "</xsl:stylesheet>";
+
+    protected static class CountingXslt implements Xslt {
+        protected final @Nonnull String cacheKey, xsltText;
+        protected final @Nonnull AtomicInteger parseCount;
+
+        protected CountingXslt(@Nonnull String k, @Nonnull String x, @Nonnull AtomicInteger c) { cacheKey = k; xsltText = x; parseCount = c; }
+        protected CountingXslt(@Nonnull String k, @Nonnull AtomicInteger c) { this(k, identityXslt, c); }
+
+        @Override public @Nonnull String calculateCacheKey() { return cacheKey; }
+
+        @SneakyThrows
+        @Override public @Nonnull Document parseDocument() {
+            parseCount.incrementAndGet();
+            return DomParser.newDocumentBuilder().parse(new InputSource(new StringReader(xsltText)));
+        }
+    }
+
+    public void test_getTransformerOrScheduleCompilation_concurrent() throws Exception {
+        val keyPrefix = UUID.randomUUID() + "-";
+        val keyCount = 20;
+        val threadCount = 16;
+        val lookupsPerThread = 500;
+
+        val parseCounts = new ArrayList<AtomicInteger>();
+        val seen = new ArrayList<Set<WeaklyCachedXsltTransformer>>(); // also keeps the weakly-cached objects alive
+        for (int k = 0; k < keyCount; k++) {
+            parseCounts.add(new AtomicInteger());
+            seen.add(Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>())));
+        }
+
+        val compilationThreads = new XsltCompilationThreads();
+        val start = new CountDownLatch(1);
+        val executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            val futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < threadCount; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < lookupsPerThread; i++) {
+                        val k = ThreadLocalRandom.current().nextInt(keyCount);
+                        seen.get(k).add(WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                            compilationThreads, "key " + k, new CountingXslt(keyPrefix + k, parseCounts.get(k))));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (val f : futures) f.get();
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        compilationThreads.execute();
+
+        for (int k = 0; k < keyCount; k++) {
+            assertEquals("no duplicate compilation of key " + k, 1, parseCounts.get(k).get());
+            assertEquals("no duplicate objects for key " + k, 1, seen.get(k).size());
+
+            val transformer = seen.get(k).iterator().next();
+            transformer.assertValid();
+            assertNotNull(transformer.newTransformer());
+
+            val again = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                compilationThreads, "key " + k, new CountingXslt(keyPrefix + k, parseCounts.get(k)));
+            assertSame("entry for key " + k + " not lost", transformer, again);
+            assertEquals(1, parseCounts.get(k).get());
+        }
+    }
+
+    public void test_getTransformerOrScheduleCompilation_invalid() throws Exception {
+        val parseCount = new AtomicInteger();
+        val threads = new XsltCompilationThreads();
+        val xslt = new CountingXslt(UUID.randomUUID().toString(), "<not-xslt/>", parseCount);
+
+        val transformer = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(threads, "invalid", xslt);
+        threads.execute();
+
+        try { transformer.assertValid(); fail(); }
+        catch (WeaklyCachedXsltTransformer.DocumentTemplateInvalidException ignored) { }
+
+        assertSame(transformer, WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(threads, "invalid", xslt));
+        assertEquals(1, parseCount.get());
+    }
+
+    public void test_retentionPolicy() throws Exception {
+        val keyPrefix = UUID.randomUUID() + "-";
+        val parseCount = new AtomicInteger();
+        val before = WeaklyCachedXsltTransformer.getCacheStatistics();
+
+        WeaklyCachedXsltTransformer.setRetentionPolicy(new RetentionPolicy(2));
+        try {
+            for (int k = 0; k < 3; k++) {
+                val threads = new XsltCompilationThreads();
+                WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                    threads, "key " + k, new CountingXslt(keyPrefix + k, parseCount));
+                threads.execute();
+            }
+
+            // Objects are no longer referenced by us, but the last two must survive garbage collection
+            System.gc();
+            val threads = new XsltCompilationThreads();
+            for (int k = 1; k < 3; k++)
+                WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                    threads, "key " + k, new CountingXslt(keyPrefix + k, parseCount));
+            assertEquals(3, parseCount.get());
+
+            val after = WeaklyCachedXsltTransformer.getCacheStatistics();
+            assertEquals(2, after.getRetainedCount());
+            assertTrue(after.getRetainedEstimatedBytes() > 0);
+            assertEquals(3, after.getMisses() - before.getMisses());
+            assertEquals(2, after.getHits() - before.getHits());
+            assertEquals(1, after.getEvictions() - before.getEvictions());
+        }
+        finally {
+            WeaklyCachedXsltTransformer.setRetentionPolicy(new RetentionPolicy(0));
+        }
+    }
+
+    public void test_retentionPolicy_hit() throws Exception {
+        val keyPrefix = UUID.randomUUID() + "-";
+        val parseCount = new AtomicInteger();
+        val before = WeaklyCachedXsltTransformer.getCacheStatistics();
+
+        WeaklyCachedXsltTransformer.setRetentionPolicy(new RetentionPolicy(1));
+        try {
+            val threads = new XsltCompilationThreads();
+            val first = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                threads, "first", new CountingXslt(keyPrefix + "first", parseCount));
+            val second = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                threads, "second", new CountingXslt(keyPrefix + "second", parseCount));
+            threads.execute(); // one of the two is released
+
+            // A hit on the released object retains it again, and the other is released by another thread
+            val hit = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                threads, "first", new CountingXslt(keyPrefix + "first", parseCount));
+            assertSame(first, hit);
+            for (int i = 0; i < 100 && WeaklyCachedXsltTransformer.getCacheStatistics().getRetainedCount() > 1; i++) Thread.sleep(10);
+            assertEquals(1, WeaklyCachedXsltTransformer.getCacheStatistics().getRetainedCount());
+            assertTrue(WeaklyCachedXsltTransformer.getCacheStatistics().getEvictions() - before.getEvictions() >= 2);
+            assertNotNull(second);
+        }
+        finally {
+            WeaklyCachedXsltTransformer.setRetentionPolicy(new RetentionPolicy(0));
+        }
+    }
+
+    public void test_recompilations() throws Exception {
+        val key = UUID.randomUUID().toString();
+        val parseCount = new AtomicInteger();
+        val before = WeaklyCachedXsltTransformer.getCacheStatistics();
+
+        val threads = new XsltCompilationThreads();
+        WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(threads, "key", new CountingXslt(key, parseCount));
+        threads.execute();
+        for (int i = 0; i < 100 && parseCount.get() < 2; i++) {
+            System.gc();
+            WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(threads, "key", new CountingXslt(key, parseCount));
+            threads.execute();
+        }
+
+        assertEquals(2, parseCount.get());
+        assertEquals(1, WeaklyCachedXsltTransformer.getCacheStatistics().getRecompilations() - before.getRecompilations());
+    }
+
+    public void test_borrowTransformer() throws Exception {
+        val threads = new XsltCompilationThreads();
+        val transformer = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(threads, "greeting",
+            new CountingXslt(UUID.randomUUID().toString(), greetingXslt, new AtomicInteger()));
+        threads.execute();
+
+        val english = Collections.singletonMap("greeting", "Hello");
+        val german = Collections.singletonMap("greeting", "Hallo");
+
+        final Transformer first;
+        try (val pooled = transformer.borrowTransformer(english)) {
+            first = pooled.transformer;
+            pooled.setOutputProperty(OutputKeys.METHOD, "text");
+            assertEquals("Hello", first.getParameter("greeting"));
+        }
+
+        try (val pooled = transformer.borrowTransformer(new HashMap<>(english))) {
+            assertSame(first, pooled.transformer);
+            assertFalse("text".equals(pooled.transformer.getOutputProperty(OutputKeys.METHOD)));
+            try (val concurrent = transformer.borrowTransformer(english)) {
+                assertNotSame(first, concurrent.transformer);
+            }
+        }
+
+        try (val pooled = transformer.borrowTransformer(german)) {
+            assertNotSame(first, pooled.transformer);
+            assertEquals("Hallo", pooled.transformer.getParameter("greeting"));
+        }
+    }
+
+    public void test_borrowTransformer_docChanges() throws Exception {
+        val xslt =
+            "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+            "  <xsl:param name='uri'/>" +
+            "  <xsl:output method='text'/>" +
+            "  <xsl:template match='/'><xsl:value-of select='doc($uri)/name'/></xsl:template>" +
+            "</xsl:stylesheet>";
+        val threads = new XsltCompilationThreads();
+        val transformer = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(threads, "doc",
+            new CountingXslt(UUID.randomUUID().toString(), xslt, new AtomicInteger()));
+        threads.execute();
+
+        val file = File.createTempFile("doc-", ".xml");
+        try {
+            val parameters = Collections.singletonMap("uri", file.toURI().toString());
+
+            Files.write(file.toPath(), "<name>Adam</name>".getBytes(StandardCharsets.UTF_8));
+            final Transformer first;
+            try (val pooled = transformer.borrowTransformer(parameters)) {
+                first = pooled.transformer;
+                val result = new StringWriter();
+                pooled.transform(new StreamSource(new StringReader("<x/>")), new StreamResult(result));
+                assertEquals("Adam", result.toString());
+            }
+
+            Files.write(file.toPath(), "<name>Eve</name>".getBytes(StandardCharsets.UTF_8));
+            try (val pooled = transformer.borrowTransformer(parameters)) {
+                assertSame(first, pooled.transformer);
+                val result = new StringWriter();
+                pooled.transform(new StreamSource(new StringReader("<x/>")), new StreamResult(result));
+                assertEquals("Eve", result.toString());
+            }
+        }
+        finally { file.delete(); }
+    }
+
+    public void test_compilationOnDemand() throws Exception {
+        val keyPrefix = UUID.randomUUID() + "-";
+        val threads = new XsltCompilationThreads();
+        val first = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+            threads, "first", new CountingXslt(keyPrefix + "first", new AtomicInteger()));
+        val second = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+            threads, "second", new CountingXslt(keyPrefix + "second", new AtomicInteger()));
+        val future = second.getCompilationFuture();
+        assertFalse(future.isDone());
+
+        // Thread pool has not been started, so requesting it compiles it in this thread
+        second.awaitCompilation(1, TimeUnit.SECONDS);
+        assertSame(second, future.get(0, TimeUnit.SECONDS));
+        assertFalse(first.getCompilationFuture().isDone());
+
+        threads.execute();
+        assertTrue(first.getCompilationFuture().isDone());
+        first.assertValid();
+        second.assertValid();
+    }
+
+    public void test_lookupFromOtherPool_beforeCompilation() throws Exception {
+        val key = UUID.randomUUID().toString();
+        val parseCount = new AtomicInteger();
+        val scheduling = new XsltCompilationThreads();
+        val other = new XsltCompilationThreads();
+        val scheduled = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+            scheduling, "greeting", new CountingXslt(key, greetingXslt, parseCount));
+
+        // Found in the cache by another pool, before either pool has run: compiled by this thread on use
+        val found = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+            other, "greeting", new CountingXslt(key, greetingXslt, parseCount));
+        assertSame(scheduled, found);
+        assertEquals(key, found.getCacheKey());
+        try (val pooled = found.borrowTransformer(Collections.singletonMap("greeting", "Hello"))) {
+            assertEquals("Hello", pooled.transformer.getParameter("greeting"));
+        }
+
+        other.execute();
+        scheduling.execute();
+        assertEquals(1, parseCount.get());
+    }
+
+    public void test_borrowTransformer_beforeCompilation() throws Exception {
+        val threads = new XsltCompilationThreads();
+        val transformer = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+            threads, "greeting", new CountingXslt(UUID.randomUUID().toString(), greetingXslt, new AtomicInteger()));
+        try (val pooled = transformer.borrowTransformer(Collections.singletonMap("greeting", "Hello"))) {
+            assertEquals("Hello", pooled.transformer.getParameter("greeting"));
+        }
+        threads.execute(); // job has already been done, so does nothing
+        transformer.assertValid();
+    }
+}
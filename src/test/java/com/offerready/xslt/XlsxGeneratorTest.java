@@ -0,0 +1,177 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.ExcelGenerator.InputDecimalSeparator;
+import jxl.Workbook;
+import junit.framework.TestCase;
+import lombok.val;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.annotation.Nonnull;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class XlsxGeneratorTest extends TestCase {
+
+    protected static final String html = "<html><body><table>" +
+        "<tfoot><tr><td>Total</td><td style='font-weight: bold; border-top: 1px'>1,234.50</td></tr></tfoot>" +
+        "<thead><tr><th colspan='2' style='text-align: center; color: red'>Sales &amp; costs</th></tr></thead>" +
+        "<tr><td>North</td><td>1,000.00</td></tr>" +
+        "<tr><td></td><td><table><tr><td>Nested, ignored</td></tr></table></td></tr>" +
+        "<tr><td>South<script>ignored</script></td><td>234.5</td></tr>" +
+        "<tr><td>North</td><td excel-type='text'>007</td></tr>" +
+        "</table></body></html>";
+
+    protected static @Nonnull Map<String, String> unzip(@Nonnull byte[] zip) throws Exception {
+        val result = new HashMap<String, String>();
+        try (val in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            for (ZipEntry e; (e = in.getNextEntry()) != null; ) {
+                val out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+                result.put(e.getName(), new String(out.toByteArray(), UTF_8));
+            }
+        }
+        return result;
+    }
+
+    protected static @Nonnull org.w3c.dom.Document parse(@Nonnull String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+
+    /** @return the value of each cell, by reference such as "A1", with shared strings resolved */
+    protected static @Nonnull Map<String, String> readCells(@Nonnull Map<String, String> xlsx) throws Exception {
+        val strings = new ArrayList<String>();
+        val si = parse(xlsx.get("xl/sharedStrings.xml")).getElementsByTagName("si");
+        for (int i = 0; i < si.getLength(); i++) strings.add(si.item(i).getTextContent());
+
+        val result = new HashMap<String, String>();
+        val cells = parse(xlsx.get("xl/worksheets/sheet1.xml")).getElementsByTagName("c");
+        for (int i = 0; i < cells.getLength(); i++) {
+            val c = (Element) cells.item(i);
+            if ("inlineStr".equals(c.getAttribute("t"))) { result.put(c.getAttribute("r"), c.getElementsByTagName("t").item(0).getTextContent()); continue; }
+            val v = c.getElementsByTagName("v").item(0).getTextContent();
+            result.put(c.getAttribute("r"), "s".equals(c.getAttribute("t")) ? strings.get(Integer.parseInt(v)) : v);
+        }
+        return result;
+    }
+
+    public void test_generate() throws Exception {
+        val dir = Files.createTempDirectory("xlsx").toFile();
+        try {
+            val xlsx = new ByteArrayOutputStream();
+            SAXParserFactory.newInstance().newSAXParser().parse(new ByteArrayInputStream(html.getBytes(UTF_8)),
+                new XlsxGenerator(InputDecimalSeparator.dot, xlsx, dir));
+            assertEquals(0, dir.list().length);
+            assertGenerated(xlsx);
+
+            // Input ends early: the file is deleted by close()
+            try (val generator = new XlsxGenerator(InputDecimalSeparator.dot, new ByteArrayOutputStream(), dir)) {
+                SAXParserFactory.newInstance().newSAXParser().parse(
+                    new ByteArrayInputStream(html.substring(0, html.length() - 20).getBytes(UTF_8)), generator);
+                fail();
+            }
+            catch (SAXException ignored) { }
+            assertEquals(0, dir.list().length);
+        }
+        finally {
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    protected void assertGenerated(@Nonnull ByteArrayOutputStream xlsx) throws Exception {
+        val entries = unzip(xlsx.toByteArray());
+        for (val xml : entries.values()) parse(xml); // well-formed
+
+        val cells = readCells(entries);
+        assertEquals("Sales & costs", cells.get("A1"));
+        assertEquals("North", cells.get("A2"));
+        assertEquals("1000.0", cells.get("B2"));
+        assertEquals("South", cells.get("A3"));
+        assertEquals("234.5", cells.get("B3"));
+        assertEquals("007", cells.get("B4"));
+        assertEquals("Total", cells.get("A5"));
+        assertEquals("1234.5", cells.get("B5"));
+        assertEquals(9, cells.size());
+
+        val sheet = entries.get("xl/worksheets/sheet1.xml");
+        assertTrue(sheet, sheet.contains("<mergeCells count=\"1\"><mergeCell ref=\"A1:B1\"/></mergeCells>"));
+        assertTrue(sheet, sheet.contains("<cols><col min=\"1\" max=\"1\" width=\"19\" customWidth=\"1\"/>"));
+        assertTrue(entries.get("xl/sharedStrings.xml").contains("count=\"6\" uniqueCount=\"5\""));
+
+        val styles = entries.get("xl/styles.xml");
+        assertTrue(styles, styles.contains("formatCode=\"#,##0.00\""));
+        assertTrue(styles, styles.contains("<font><b/>"));
+        assertTrue(styles, styles.contains("<color rgb=\"FFFF0000\"/>"));
+        assertTrue(styles, styles.contains("<alignment horizontal=\"center\"/>"));
+        assertTrue(styles, styles.contains(" borderId=\"1\""));
+    }
+
+    public void test_limits() throws Exception {
+        val xlsx = new ByteArrayOutputStream();
+        val generator = new XlsxGenerator(InputDecimalSeparator.dot, xlsx);
+        generator.setMaxSharedStrings(2);
+        SAXParserFactory.newInstance().newSAXParser().parse(new ByteArrayInputStream(("<html><body><table>" +
+            "<tr><td colspan='0'>a</td><td colspan='-1'>b</td><td>c</td></tr>" +
+            "<tr><td>a</td><td>d</td></tr></table></body></html>").getBytes(UTF_8)), generator);
+        val entries = unzip(xlsx.toByteArray());
+        val cells = readCells(entries);
+
+        // Each cell takes at least one column
+        assertEquals("a", cells.get("A1"));
+        assertEquals("b", cells.get("B1"));
+        assertEquals("c", cells.get("C1"));
+
+        // Strings beyond the table's limit are written into their cells
+        assertTrue(entries.get("xl/sharedStrings.xml").contains("count=\"3\" uniqueCount=\"2\""));
+        assertEquals("a", cells.get("A2"));
+        assertEquals("d", cells.get("B2"));
+        assertTrue(entries.get("xl/worksheets/sheet1.xml").contains("t=\"inlineStr\"><is><t>d</t></is>"));
+    }
+
+    /** The same cells are produced as in the XLS format */
+    public void test_sameAsXls() throws Exception {
+        for (val separator : InputDecimalSeparator.values()) {
+            val xlsx = new ByteArrayOutputStream();
+            SAXParserFactory.newInstance().newSAXParser().parse(new ByteArrayInputStream(html.getBytes(UTF_8)),
+                new XlsxGenerator(separator, xlsx));
+            val cells = readCells(unzip(xlsx.toByteArray()));
+
+            val xls = new ByteArrayOutputStream();
+            ExcelGenerator.writeExcelBinaryFromExcelXml(separator, xls, new ByteArrayInputStream(html.getBytes(UTF_8)));
+            val sheet = Workbook.getWorkbook(new ByteArrayInputStream(xls.toByteArray())).getSheet(0);
+            final List<String> checked = new ArrayList<>();
+            for (int row = 0; row < sheet.getRows(); row++) {
+                for (val cell : sheet.getRow(row)) {
+                    if (cell.getType() == jxl.CellType.EMPTY) continue;
+                    val ref = XlsxGenerator.getColumnName(cell.getColumn()) + (row + 1);
+                    if (cell.getType() == jxl.CellType.NUMBER)
+                        assertEquals(ref, ((jxl.NumberCell) cell).getValue(), Double.parseDouble(cells.get(ref)));
+                    else assertEquals(ref, cell.getContents(), cells.get(ref));
+                    checked.add(ref);
+                }
+            }
+            assertEquals(cells.keySet().size(), checked.size() + (int) cells.values().stream().filter(String::isEmpty).count());
+        }
+    }
+
+    public void test_getColumnName() {
+        assertEquals("A", XlsxGenerator.getColumnName(0));
+        assertEquals("Z", XlsxGenerator.getColumnName(25));
+        assertEquals("AA", XlsxGenerator.getColumnName(26));
+        assertEquals("XFD", XlsxGenerator.getColumnName(16_383));
+    }
+}
@@ -0,0 +1,161 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.DocumentGenerator.StyleVisionXslt;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import junit.framework.TestCase;
+import lombok.val;
+
+import javax.annotation.Nonnull;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class XsltFileWatcherTest extends TestCase {
+
+    protected static @Nonnull String xslt(@Nonnull String output) {
+        return "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+            "<xsl:output method='text'/>" +
+            "<xsl:template match='/'>" + output + "</xsl:template>" +
+            "</xsl:stylesheet>";
+    }
+
+    protected static @Nonnull String transform(@Nonnull WeaklyCachedXsltTransformer transformer) throws Exception {
+        val result = new StringWriter();
+        try (val t = transformer.borrowTransformer(Collections.emptyMap())) {
+            t.transform(new StreamSource(new StringReader("<input/>")), new StreamResult(result));
+        }
+        return result.toString();
+    }
+
+    /** Does what the watcher's thread does when it is notified of the change */
+    protected static void write(@Nonnull File file, @Nonnull String contents) throws Exception {
+        Files.write(file.toPath(), contents.getBytes(UTF_8));
+        XsltFileWatcher.fileChanged(file.toPath().toAbsolutePath().normalize());
+    }
+
+    public void test_recompileOnChange() throws Exception {
+        val dir = Files.createTempDirectory("xslt").toFile();
+        val file = new File(dir, "report.xslt");
+        val unique = UUID.randomUUID().toString(); // so the cache doesn't contain this XSLT from another test
+        try {
+            Files.write(file.toPath(), xslt("v1 " + unique).getBytes(UTF_8));
+            val threads = new XsltCompilationThreads();
+            val transformer = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                threads, file.getName(), new StyleVisionXslt(file));
+            threads.execute();
+            assertEquals("v1 " + unique, transform(transformer));
+
+            write(file, xslt("v2 " + unique));
+            assertEquals("v2 " + unique, transform(transformer));
+
+            // Invalid XSLT: previous version is still used
+            write(file, "<xsl:stylesheet");
+            assertEquals("v2 " + unique, transform(transformer));
+            transformer.assertValid();
+
+            write(file, xslt("v3 " + unique));
+            assertEquals("v3 " + unique, transform(transformer));
+        }
+        finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    public void test_recompileOnChangeOfImportedFile() throws Exception {
+        val dir = Files.createTempDirectory("xslt").toFile();
+        val file = new File(dir, "report.xslt");
+        val common = new File(dir, "common.xslt");
+        val unique = UUID.randomUUID().toString();
+        try {
+            Files.write(file.toPath(), ("<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+                "<xsl:import href='common.xslt'/><xsl:output method='text'/></xsl:stylesheet>").getBytes(UTF_8));
+            Files.write(common.toPath(), xslt("v1 " + unique).getBytes(UTF_8));
+            val threads = new XsltCompilationThreads();
+            val transformer = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                threads, file.getName(), new StyleVisionXslt(file));
+            threads.execute();
+            assertEquals("v1 " + unique, transform(transformer));
+
+            write(common, xslt("v2 " + unique));
+            assertEquals("v2 " + unique, transform(transformer));
+        }
+        finally {
+            for (val f : new File[] { file, common, dir }) Files.deleteIfExists(f.toPath());
+        }
+    }
+
+    public void test_recompileOnChangeOfNewlyImportedFile() throws Exception {
+        val dir = Files.createTempDirectory("xslt").toFile();
+        val file = new File(dir, "report.xslt");
+        val common = new File(dir, "common.xslt");
+        val unique = UUID.randomUUID().toString();
+        try {
+            Files.write(file.toPath(), xslt("v1 " + unique).getBytes(UTF_8));
+            Files.write(common.toPath(), xslt("v2 " + unique).getBytes(UTF_8));
+            val threads = new XsltCompilationThreads();
+            val transformer = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                threads, file.getName(), new StyleVisionXslt(file));
+            threads.execute();
+            assertEquals("v1 " + unique, transform(transformer));
+
+            write(file, "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+                "<xsl:import href='common.xslt'/><xsl:output method='text'/></xsl:stylesheet>");
+            assertEquals("v2 " + unique, transform(transformer));
+
+            write(common, xslt("v3 " + unique));
+            assertEquals("v3 " + unique, transform(transformer));
+        }
+        finally {
+            for (val f : new File[] { file, common, dir }) Files.deleteIfExists(f.toPath());
+        }
+    }
+
+    public void test_recompileOnChange_identicalFileElsewhere() throws Exception {
+        val dirA = Files.createTempDirectory("xslt").toFile();
+        val dirB = Files.createTempDirectory("xslt").toFile();
+        val fileA = new File(dirA, "report.xslt");
+        val fileB = new File(dirB, "report.xslt");
+        val unique = UUID.randomUUID().toString();
+        WeaklyCachedXsltTransformer.fileWatcherCount.incrementAndGet(); // as if a watcher were running, so fileB is recorded
+        try {
+            Files.write(fileA.toPath(), xslt("v1 " + unique).getBytes(UTF_8));
+            Files.write(fileB.toPath(), xslt("v1 " + unique).getBytes(UTF_8));
+            val threads = new XsltCompilationThreads();
+            val transformerA = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                threads, fileA.getName(), new StyleVisionXslt(fileA));
+            val transformerB = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(
+                threads, fileB.getName(), new StyleVisionXslt(fileB));
+            threads.execute();
+            assertSame(transformerA, transformerB);
+
+            write(fileA, xslt("v2 " + unique));
+            assertEquals("v2 " + unique, transform(transformerA.forFile(fileA)));
+            assertEquals("v1 " + unique, transform(transformerB.forFile(fileB)));
+            assertEquals("v1 " + unique, transform(transformerB));
+
+            // Changed file now has an object of its own, which is recompiled in place
+            write(fileA, xslt("v3 " + unique));
+            assertSame(transformerA.forFile(fileA), transformerA.forFile(fileA).forFile(fileA));
+            assertEquals("v3 " + unique, transform(transformerA.forFile(fileA)));
+            assertEquals("v1 " + unique, transform(transformerB.forFile(fileB)));
+
+            // No unchanged copy remains, so the shared object is recompiled in place
+            write(fileB, xslt("v4 " + unique));
+            assertSame(transformerB, transformerB.forFile(fileB));
+            assertEquals("v4 " + unique, transform(transformerB));
+            assertEquals("v3 " + unique, transform(transformerA.forFile(fileA)));
+        }
+        finally {
+            WeaklyCachedXsltTransformer.fileWatcherCount.decrementAndGet();
+            for (val f : new File[] { fileA, fileB, dirA, dirB }) Files.deleteIfExists(f.toPath());
+        }
+    }
+}
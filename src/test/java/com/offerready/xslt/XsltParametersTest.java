@@ -0,0 +1,92 @@
+package com.offerready.xslt;
+
+import com.databasesandlife.util.DomParser;
+import com.databasesandlife.util.gwtsafe.ConfigurationException;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import com.offerready.xslt.WeaklyCachedXsltTransformerTest.CountingXslt;
+import junit.framework.TestCase;
+import lombok.val;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import javax.annotation.Nonnull;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class XsltParametersTest extends TestCase {
+
+    protected static @Nonnull Element parse(@Nonnull String xml) throws Exception {
+        return DomParser.newDocumentBuilder().parse(new InputSource(new StringReader(xml))).getDocumentElement();
+    }
+
+    public void test_getSnapshot() throws Exception {
+        val dir = Files.createTempDirectory("params").toFile();
+        val countries = new File(dir, "countries.xml");
+        try {
+            Files.write(countries.toPath(), "<countries><country/><country/></countries>".getBytes(UTF_8));
+            val params = new XsltParameters(dir, parse("<output>" +
+                "<placeholder-value placeholder-name='greeting' value='Hello'/>" +
+                "<placeholder-value placeholder-name='greeting' value='Hallo' language='de'/>" +
+                "<placeholder-value placeholder-name='limit' value='10' type='integer'/>" +
+                "<placeholder-value placeholder-name='debug' value='true' type='boolean'/>" +
+                "<placeholder-value placeholder-name='since' value='2020-01-31' type='date'/>" +
+                "<placeholder-value placeholder-name='countries' value='countries.xml' type='document'/>" +
+                "</output>"));
+
+            assertSame(params.getSnapshot("de"), params.getSnapshot("de"));
+            assertSame(params.getSnapshot(null), params.getSnapshot("fr"));
+            assertEquals("Hallo", params.get("de").get("greeting"));
+            assertEquals("10", params.get("de").get("limit"));
+
+            val threads = new XsltCompilationThreads();
+            val transformer = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(threads, "params",
+                new CountingXslt(UUID.randomUUID().toString(),
+                    "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform' " +
+                    "xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                    "<xsl:output method='text'/>" +
+                    "<xsl:param name='greeting'/><xsl:param name='limit'/><xsl:param name='debug'/>" +
+                    "<xsl:param name='since'/><xsl:param name='countries'/>" +
+                    "<xsl:template match='/'><xsl:value-of select='$greeting, $limit + 1, $debug instance of xs:boolean, " +
+                    "month-from-date($since), count($countries//country)'/></xsl:template>" +
+                    "</xsl:stylesheet>", new AtomicInteger()));
+            threads.execute();
+
+            val result = new StringWriter();
+            try (val t = transformer.borrowTransformer(params.getSnapshot("de"))) {
+                t.transform(new StreamSource(new StringReader("<input/>")), new StreamResult(result));
+            }
+            assertEquals("Hallo 11 true 1 2", result.toString());
+        }
+        finally {
+            Files.deleteIfExists(countries.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    public void test_invalid() throws Exception {
+        try { new XsltParameters(parse("<output><placeholder-value placeholder-name='x' value='ten' type='integer'/></output>")); fail(); }
+        catch (ConfigurationException e) { assertTrue(e.getMessage(), e.getMessage().contains("'x'")); }
+
+        try { new XsltParameters(parse("<output><placeholder-value placeholder-name='x' value='1' type='long'/></output>")); fail(); }
+        catch (ConfigurationException e) { assertTrue(e.getMessage(), e.getMessage().contains("long")); }
+
+        // Untyped (string) and typed entries for the same parameter conflict, whichever comes first
+        for (val entries : new String[] {
+            "<placeholder-value placeholder-name='x' value='1' type='integer'/><placeholder-value placeholder-name='x' value='2' language='de'/>",
+            "<placeholder-value placeholder-name='x' value='1' language='de'/><placeholder-value placeholder-name='x' value='2' type='integer'/>",
+            "<placeholder-value placeholder-name='x' value='a.xml' language='de'/><placeholder-value placeholder-name='x' value='b.xml' type='document'/>",
+            "<placeholder-value placeholder-name='x' value='1' type='string'/><placeholder-value placeholder-name='x' value='2' type='integer' language='de'/>",
+        }) {
+            try { new XsltParameters(parse("<output>" + entries + "</output>")); fail(entries); }
+            catch (ConfigurationException e) { assertTrue(e.getMessage(), e.getMessage().contains("different types")); }
+        }
+    }
+}